@@ -0,0 +1,60 @@
+package com.workable.honeybadger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filtering of errors against small and large lists of excluded exception classes and causes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExclusionBenchmark {
+
+    @Param({"4", "64", "1024"})
+    private int exclusions;
+
+    private HoneybadgerClient client;
+    private Exception included;
+    private Exception excluded;
+
+    @Setup
+    public void setUp() {
+        StringBuilder classes = new StringBuilder();
+        StringBuilder causes = new StringBuilder();
+        for (int i = 0; i < exclusions; i++) {
+            classes.append("com.example.module").append(i).append(".ExpectedException,");
+            causes.append("com.example.module").append(i).append(".service,");
+        }
+        // Matches only at the end of the list, the worst case for a linear scan
+        classes.append(UnsupportedOperationException.class.getName());
+
+        client = new HoneybadgerClient(null, null, classes.toString(), causes.toString());
+        included = JsonMarshallerBenchmark.throwAt(32);
+        excluded = new UnsupportedOperationException();
+    }
+
+    @Benchmark
+    public boolean shouldExcludeIncluded() {
+        return client.shouldExclude(included);
+    }
+
+    @Benchmark
+    public boolean shouldExcludeExcluded() {
+        return client.shouldExclude(excluded);
+    }
+}
@@ -0,0 +1,140 @@
+package com.workable.honeybadger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Marshalling of errors with shallow and deep stack traces, few and many system properties, with and without a
+ * servlet request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonMarshallerBenchmark {
+
+    private static final String PROPERTY_PREFIX = "benchmark.property.";
+
+    @Param({"8", "256"})
+    private int stackDepth;
+
+    @Param({"16", "512"})
+    private int systemProperties;
+
+    @Param({"false", "true"})
+    private boolean servletRequest;
+
+    private JsonMarshaller marshaller;
+    private Error error;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < systemProperties; i++) {
+            System.setProperty(PROPERTY_PREFIX + i, "value-" + i);
+        }
+
+        marshaller = new JsonMarshaller(new HashSet<String>());
+        error = new Error("Benchmark error", throwAt(stackDepth));
+        error.setReporter(getClass().getName());
+        if (servletRequest) {
+            error.setContext(request());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (int i = 0; i < systemProperties; i++) {
+            System.clearProperty(PROPERTY_PREFIX + i);
+        }
+    }
+
+    @Benchmark
+    public String marshall() {
+        return marshaller.marshall(error);
+    }
+
+    @Benchmark
+    public byte[] marshallBytes() {
+        return marshaller.marshallBytes(error);
+    }
+
+    /**
+     * @return an exception thrown from the specified stack depth
+     */
+    static Exception throwAt(int depth) {
+        try {
+            recurse(depth);
+            throw new AssertionError();
+        } catch (IllegalStateException e) {
+            return e;
+        }
+    }
+
+    private static void recurse(int depth) {
+        if (depth <= 0) {
+            throw new IllegalStateException("Thrown at the bottom of the stack",
+                                            new IllegalArgumentException("The cause"));
+        }
+        recurse(depth - 1);
+    }
+
+    /**
+     * @return a servlet request with typical headers and parameters
+     */
+    private static HttpServletRequest request() {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("getMethod", "POST");
+        values.put("getScheme", "https");
+        values.put("getServerName", "www.example.com");
+        values.put("getServerPort", 443);
+        values.put("getRequestURI", "/jobs/apply");
+        values.put("getRequestURL", new StringBuffer("https://www.example.com/jobs/apply"));
+        values.put("getQueryString", "id=42&source=benchmark");
+        values.put("getContentType", "application/x-www-form-urlencoded");
+        values.put("getContentLength", 128);
+        values.put("getRemoteAddr", "10.0.0.1");
+        values.put("getRemotePort", 52814);
+        values.put("getPathInfo", "/apply");
+        values.put("getHeader", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        values.put("getParameterMap", Collections.singletonMap("id", new String[]{"42"}));
+
+        return (HttpServletRequest) Proxy.newProxyInstance(
+            JsonMarshallerBenchmark.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getHeaderNames")) {
+                        return Collections.enumeration(Collections.singleton("Accept"));
+                    }
+                    Object value = values.get(method.getName());
+                    if (value == null && method.getReturnType() == int.class) {
+                        return 0;
+                    }
+                    return value;
+                }
+            });
+    }
+}
@@ -0,0 +1,108 @@
+package com.workable.honeybadger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of submitting errors from contending threads to a client dispatching them to a local stub endpoint.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportErrorBenchmark {
+
+    /**
+     * Bounds the notices waiting for the stub, so that the reporting threads outpacing it measure the overflow
+     * policy instead of a queue growing for the whole run
+     */
+    private static final int QUEUE_SIZE = 10000;
+
+    private HttpServer server;
+    private HoneybadgerClient client;
+    private Exception exception;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream body = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                while (body.read(buffer) >= 0) {
+                    // Drain the notice
+                }
+                exchange.sendResponseHeaders(201, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+
+        System.setProperty(HoneybadgerClient.HONEYBADGER_URL_SYS_PROP_KEY,
+                           "http://localhost:" + server.getAddress().getPort() + "/v1/notices");
+        client = new HoneybadgerClient("benchmark", null, null, null);
+        client.setQueueSize(QUEUE_SIZE);
+        client.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        exception = JsonMarshallerBenchmark.throwAt(32);
+    }
+
+    @TearDown
+    public void tearDown() {
+        // Stops the dispatcher threads of this trial before the next one starts its own client
+        client.close(TimeUnit.SECONDS.toMillis(5));
+        server.stop(0);
+        System.clearProperty(HoneybadgerClient.HONEYBADGER_URL_SYS_PROP_KEY);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void reportError1() {
+        reportError();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void reportError4() {
+        reportError();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void reportError16() {
+        reportError();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void reportError64() {
+        reportError();
+    }
+
+    private void reportError() {
+        client.reportError(new Error("Benchmark error", exception));
+    }
+}
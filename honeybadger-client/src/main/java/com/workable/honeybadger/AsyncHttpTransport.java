@@ -0,0 +1,213 @@
+package com.workable.honeybadger;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking HTTP transport posting payloads to the Honeybadger API from a single I/O thread.
+ * <p>
+ * A send returns as soon as the request is handed over to the I/O reactor and its outcome is reported to a callback,
+ * so that a dispatcher thread does not wait for a round trip per notice. Up to <code>maxInFlight</code> requests are
+ * outstanding at a time over the pooled keep-alive connections; further sends block until a response frees a slot,
+ * which throttles the dispatchers to the pace of the link.
+ * <p>
+ * Requires the optional <code>org.apache.httpcomponents:httpasyncclient</code> dependency, see {@link #isAvailable()}.
+ */
+class AsyncHttpTransport {
+
+    private final URI uri;
+    private final String apiKey;
+    private final int compressionThreshold;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final CloseableHttpAsyncClient httpClient;
+
+    /**
+     * @param uri                  The Honeybadger endpoint to post notices to
+     * @param apiKey               The Honeybadger API Key
+     * @param maxConnections       Max pooled connections to the endpoint
+     * @param maxInFlight          Max requests awaiting their response
+     * @param connectTimeout       Connect timeout in milliseconds
+     * @param socketTimeout        Socket (read) timeout in milliseconds
+     * @param keepAlive            Max time in milliseconds an idle connection is kept alive
+     * @param compressionThreshold Min size in bytes of a body to be gzip compressed, or -1 to never compress
+     * @param priority             The priority of the I/O thread
+     */
+    AsyncHttpTransport(URI uri, String apiKey, int maxConnections, int maxInFlight, int connectTimeout,
+                       int socketTimeout, long keepAlive, int compressionThreshold, int priority) {
+        this.uri = uri;
+        this.apiKey = apiKey;
+        this.compressionThreshold = compressionThreshold;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setConnectionRequestTimeout(connectTimeout)
+            .setSocketTimeout(socketTimeout)
+            .build();
+
+        IOReactorConfig reactorConfig = IOReactorConfig.custom()
+            .setIoThreadCount(1)
+            .setConnectTimeout(connectTimeout)
+            .setSoTimeout(socketTimeout)
+            .build();
+
+        this.httpClient = HttpAsyncClients.custom()
+            .setMaxConnTotal(maxConnections)
+            .setMaxConnPerRoute(maxConnections)
+            .setDefaultIOReactorConfig(reactorConfig)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(new HttpTransport.BoundedKeepAliveStrategy(keepAlive))
+            .setThreadFactory(new DaemonThreadFactory("io", priority))
+            .disableCookieManagement()
+            .build();
+        this.httpClient.start();
+    }
+
+    /**
+     * @return <code>true</code> if the async HTTP client is on the classpath
+     */
+    static boolean isAvailable() {
+        try {
+            Class.forName("org.apache.http.impl.nio.client.HttpAsyncClients", false,
+                          AsyncHttpTransport.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Posts the specified body without waiting for the response, blocking only while <code>maxInFlight</code> requests
+     * are outstanding. Bodies over the compression threshold are sent gzip compressed, unless compression does not make
+     * them smaller.
+     *
+     * @param uri         The endpoint to post to
+     * @param body        The request body
+     * @param contentType The content type of the body
+     * @param callback    Notified of the response or the failure on the I/O thread
+     * @throws InterruptedException if interrupted while waiting for a slot, in which case the body is not sent
+     */
+    void send(URI uri, byte[] body, ContentType contentType, final Callback callback) throws InterruptedException {
+        HttpPost post = new HttpPost(uri);
+        post.setHeader("X-API-Key", apiKey);
+
+        if (compressionThreshold >= 0 && body.length >= compressionThreshold) {
+            GzipCompressor compressor = GzipCompressor.get();
+            try {
+                int size = compressor.compress(body);
+                if (size < body.length) {
+                    // The buffer of the compressor is reused once the compressor is released
+                    ByteArrayEntity entity = new ByteArrayEntity(Arrays.copyOf(compressor.buffer(), size), contentType);
+                    entity.setContentEncoding("gzip");
+                    post.setEntity(entity);
+                }
+            } finally {
+                compressor.release();
+            }
+        }
+        if (post.getEntity() == null) {
+            post.setEntity(new ByteArrayEntity(body, contentType));
+        }
+
+        inFlight.acquire();
+        try {
+            // The permit is released once the callback has handled the outcome, so that awaiting the requests in
+            // flight also awaits their handling
+            httpClient.execute(post, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    try {
+                        callback.completed(new HttpTransport.Response(
+                            response.getStatusLine().getStatusCode(),
+                            HttpTransport.retryAfter(response.getFirstHeader(HttpHeaders.RETRY_AFTER))));
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    try {
+                        callback.failed(e instanceof IOException ? (IOException) e : new IOException(e));
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    try {
+                        callback.failed(new IOException("Request cancelled"));
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // Closed
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the outstanding requests to complete and their callbacks to return.
+     *
+     * @return <code>false</code> if some requests were still outstanding after the timeout
+     */
+    boolean awaitInFlight(long timeout) throws InterruptedException {
+        if (!inFlight.tryAcquire(maxInFlight, timeout, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        inFlight.release(maxInFlight);
+        return true;
+    }
+
+    /**
+     * @return the number of requests awaiting their response
+     */
+    int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * Closes the transport, cancelling the outstanding requests.
+     */
+    void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    /**
+     * Outcome of an asynchronous send.
+     */
+    interface Callback {
+
+        void completed(HttpTransport.Response response);
+
+        void failed(IOException e);
+    }
+}
@@ -0,0 +1,154 @@
+package com.workable.honeybadger;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of the rendered "backtrace" and "source" blocks of notices, keyed by stack trace.
+ * <p>
+ * During an error storm the same stack trace is rendered over and over; with this cache a repeated stack trace costs
+ * a hash and a comparison of its frames instead of its rendering. The key is made of the frames and headers the
+ * snapshot holds, which together determine both blocks, so that the cached bytes are always exact. The names of the
+ * frames are mostly shared with the loaded classes and cache their hash, so hashing a stack trace walks its frames
+ * without reading the names again. Huge stack traces are not cached.
+ */
+final class BacktraceCache {
+
+    /**
+     * Stack traces with more frames, or with longer headers, are rendered every time
+     */
+    private static final int MAX_CACHED_FRAMES = 1024;
+    private static final int MAX_CACHED_HEADERS_LENGTH = 64 * 1024;
+
+    private final Map<Key, JsonMarshaller.Backtrace> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries Max number of stack traces cached
+     */
+    BacktraceCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<Key, JsonMarshaller.Backtrace>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, JsonMarshaller.Backtrace> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the rendered blocks of the error, or <code>null</code> if they are not cached
+     */
+    JsonMarshaller.Backtrace get(ErrorSnapshot error) {
+        if (!isCacheable(error)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        JsonMarshaller.Backtrace backtrace;
+        Key key = new Key(error);
+        synchronized (entries) {
+            backtrace = entries.get(key);
+        }
+        (backtrace == null ? misses : hits).incrementAndGet();
+        return backtrace;
+    }
+
+    void put(ErrorSnapshot error, JsonMarshaller.Backtrace backtrace) {
+        if (!isCacheable(error)) {
+            return;
+        }
+        Key key = new Key(error);
+        synchronized (entries) {
+            entries.put(key, backtrace);
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static boolean isCacheable(ErrorSnapshot error) {
+        if (error.frameLines.length > MAX_CACHED_FRAMES) {
+            return false;
+        }
+        int length = error.cause == null ? 0 : error.cause.length();
+        for (String header : error.headers) {
+            length += header.length();
+        }
+        return length <= MAX_CACHED_HEADERS_LENGTH;
+    }
+
+    /**
+     * Frames and headers of a snapshot, the arrays being shared with the snapshot rather than copied.
+     */
+    private static final class Key {
+
+        private final String[] classes;
+        private final String[] methods;
+        private final String[] files;
+        private final int[] lines;
+        private final String[] headers;
+        private final String[] indents;
+        private final int[] blockFrames;
+        private final int[] commonFrames;
+        private final String cause;
+        private final int hashCode;
+
+        private Key(ErrorSnapshot error) {
+            this.classes = error.frameClasses;
+            this.methods = error.frameMethods;
+            this.files = error.frameFiles;
+            this.lines = error.frameLines;
+            this.headers = error.headers;
+            this.indents = error.indents;
+            this.blockFrames = error.blockFrames;
+            this.commonFrames = error.commonFrames;
+            this.cause = error.cause;
+
+            int hashCode = Arrays.hashCode(classes);
+            hashCode = 31 * hashCode + Arrays.hashCode(methods);
+            hashCode = 31 * hashCode + Arrays.hashCode(files);
+            hashCode = 31 * hashCode + Arrays.hashCode(lines);
+            hashCode = 31 * hashCode + Arrays.hashCode(headers);
+            hashCode = 31 * hashCode + Arrays.hashCode(indents);
+            hashCode = 31 * hashCode + Arrays.hashCode(blockFrames);
+            hashCode = 31 * hashCode + Arrays.hashCode(commonFrames);
+            this.hashCode = 31 * hashCode + Objects.hashCode(cause);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hashCode == other.hashCode && Arrays.equals(lines, other.lines)
+                   && Arrays.equals(blockFrames, other.blockFrames) && Arrays.equals(commonFrames, other.commonFrames)
+                   && Arrays.equals(methods, other.methods) && Arrays.equals(classes, other.classes)
+                   && Arrays.equals(files, other.files) && Arrays.equals(indents, other.indents)
+                   && Arrays.equals(headers, other.headers) && Objects.equals(cause, other.cause);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.workable.honeybadger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops sending to Honeybadger after repeated failures.
+ * <p>
+ * The circuit opens after a number of consecutive failures and rejects all attempts for a while. Once that time has
+ * elapsed a single probe is let through: the circuit closes if it succeeds, otherwise it opens again.
+ */
+final class CircuitBreaker {
+
+    private final int threshold;
+    private final long timeout;
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * Time in nanoseconds until which the circuit is open
+     */
+    private final AtomicLong openUntil = new AtomicLong(System.nanoTime());
+
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    /**
+     * @param threshold Consecutive failures opening the circuit
+     * @param timeout   Time in milliseconds the circuit stays open before probing
+     */
+    CircuitBreaker(int threshold, long timeout) {
+        this.threshold = threshold;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * @return <code>true</code> if a request may be attempted
+     */
+    boolean allowRequest() {
+        if (openUntil.get() - System.nanoTime() > 0) {
+            return false;
+        }
+        if (failures.get() < threshold) {
+            return true;
+        }
+        // Half open, only one probe at a time
+        return probing.compareAndSet(false, true);
+    }
+
+    void onSuccess() {
+        failures.set(0);
+        probing.set(false);
+    }
+
+    void onFailure() {
+        if (failures.incrementAndGet() >= threshold) {
+            open(timeout);
+        }
+        probing.set(false);
+    }
+
+    /**
+     * Rejects all requests for the specified time, e.g. when asked to by the server. A probe being throttled is
+     * neither a success nor a failure: another one is let through once the pause is over.
+     */
+    void pause(long millis) {
+        open(TimeUnit.MILLISECONDS.toNanos(millis));
+        probing.set(false);
+    }
+
+    /**
+     * @return the time in milliseconds until the circuit may let a request through
+     */
+    long remaining() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openUntil.get() - System.nanoTime()));
+    }
+
+    boolean isOpen() {
+        return openUntil.get() - System.nanoTime() > 0 || failures.get() >= threshold;
+    }
+
+    private void open(long nanos) {
+        long until = System.nanoTime() + nanos;
+        while (true) {
+            long current = openUntil.get();
+            if (current - until >= 0 || openUntil.compareAndSet(current, until)) {
+                return;
+            }
+        }
+    }
+}
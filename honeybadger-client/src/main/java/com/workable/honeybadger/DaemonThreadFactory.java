@@ -15,9 +15,17 @@ public class DaemonThreadFactory implements ThreadFactory {
     private final int priority;
 
     public DaemonThreadFactory(int priority) {
+        this("dispatcher", priority);
+    }
+
+    /**
+     * @param name     The name of the pool, the threads being named <code>honeybadger-[name]-[pool]-thread-[n]</code>
+     * @param priority The priority of the threads
+     */
+    public DaemonThreadFactory(String name, int priority) {
         SecurityManager s = System.getSecurityManager();
         group = (s != null) ? s.getThreadGroup() : Thread.currentThread().getThreadGroup();
-        namePrefix = "raven-pool-" + POOL_NUMBER.getAndIncrement() + "-thread-";
+        namePrefix = "honeybadger-" + name + "-" + POOL_NUMBER.getAndIncrement() + "-thread-";
         this.priority = priority;
     }
 
@@ -0,0 +1,548 @@
+package com.workable.honeybadger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of marshalled notices that could not be delivered, kept on disk until they are replayed.
+ * <p>
+ * The log is split in segment files named after an increasing sequence number. Each record is the length of the
+ * notice, its CRC32 and the notice itself; a torn or corrupt record ends its segment. Appended notices are buffered in
+ * memory and written by {@link #flush()} with a single write and a single fsync, so that the disk is not synced once
+ * per notice. Notices are replayed oldest first and segments are deleted as soon as they have been fully delivered.
+ * When the log grows over its max size, its oldest segments are evicted, as are the oldest buffered notices when they
+ * alone exceed it.
+ * <p>
+ * Apart from {@link #append(byte[])}, the methods are meant to be called from a single spool thread. A replay reads the
+ * notices under the lock of the spool but hands them to the sink outside of it, so that a flush or close from another
+ * thread does not wait for the sends.
+ */
+final class DiskSpool {
+
+    /**
+     * Receives the spooled notices when they are replayed.
+     */
+    interface Sink {
+
+        /**
+         * @return <code>true</code> if the notice was consumed (delivered or rejected for good), <code>false</code> to
+         * stop the replay and keep the notice for the next one
+         */
+        boolean deliver(byte[] notice);
+    }
+
+    private static final Pattern SEGMENT = Pattern.compile("spool-(\\d{16})\\.log");
+
+    /**
+     * Length and CRC32 preceding every notice
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Max notices read at once during a replay
+     */
+    private static final int REPLAY_BATCH_SIZE = 16;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File directory;
+    private final long maxSize;
+    private final long segmentSize;
+
+    /**
+     * Segments oldest first, the last one being written to
+     */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingSize = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    private FileChannel channel;
+    private long nextId;
+
+    /**
+     * @param directory The directory holding the segments, created if missing
+     * @param maxSize   Max size in bytes of all segments
+     * @throws IOException thrown when the directory can not be created or read
+     */
+    DiskSpool(File directory, long maxSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the spool directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = Math.max(64 * 1024, Math.min(4 * 1024 * 1024, maxSize / 8));
+        recover();
+    }
+
+    /**
+     * Buffers the notice until the next {@link #flush()}, evicting the oldest buffered notices if they no longer fit
+     * in the spool.
+     */
+    void append(byte[] notice) {
+        pending.add(notice);
+        long size = pendingSize.addAndGet(notice.length);
+        while (size > maxSize) {
+            byte[] eldest = pending.poll();
+            if (eldest == null) {
+                break;
+            }
+            size = pendingSize.addAndGet(-eldest.length);
+            evicted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes all buffered notices to the current segment and syncs it to the disk.
+     */
+    synchronized void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<byte[]> notices = new ArrayList<>();
+        byte[] notice;
+        while ((notice = pending.poll()) != null) {
+            pendingSize.addAndGet(-notice.length);
+            notices.add(notice);
+        }
+
+        // Notices are only counted in their segment once written, and put back otherwise
+        int written = 0;
+        try {
+            List<ByteBuffer> buffers = new ArrayList<>();
+            CRC32 crc = new CRC32();
+            long size = 0;
+            for (int i = 0; i < notices.size(); i++) {
+                if (channel == null || segments.getLast().size + size >= segmentSize) {
+                    written = write(buffers, notices, written, i);
+                    size = 0;
+                    roll();
+                }
+                notice = notices.get(i);
+                crc.reset();
+                crc.update(notice, 0, notice.length);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(notice.length).putInt((int) crc.getValue()).flip();
+                buffers.add(header);
+                buffers.add(ByteBuffer.wrap(notice));
+                size += HEADER_SIZE + notice.length;
+            }
+            written = write(buffers, notices, written, notices.size());
+            channel.force(false);
+        } catch (IOException e) {
+            discardTail();
+            requeue(notices.subList(written, notices.size()));
+            throw e;
+        }
+
+        evict();
+    }
+
+    /**
+     * Hands the spooled notices, oldest first, to the sink until it stops accepting them. Fully delivered segments are
+     * deleted.
+     *
+     * @return the number of notices consumed
+     */
+    int replay(Sink sink) throws IOException {
+        int consumed = 0;
+        Batch batch;
+        while ((batch = nextBatch()) != null) {
+            int delivered = 0;
+            while (delivered < batch.notices.size() && sink.deliver(batch.notices.get(delivered))) {
+                delivered++;
+            }
+            consumed += delivered;
+            consume(batch, delivered);
+            if (delivered < batch.notices.size()) {
+                break;
+            }
+        }
+        return consumed;
+    }
+
+    /**
+     * Writes the buffered notices and compacts the oldest segment, dropping its delivered notices.
+     */
+    synchronized void close() throws IOException {
+        flush();
+        closeChannel();
+
+        Segment head = segments.peekFirst();
+        if (head != null && head.offset > 0) {
+            if (head.records == 0) {
+                delete(segments.removeFirst());
+            } else {
+                compact(head);
+            }
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (segment.records > 0) {
+                return false;
+            }
+        }
+        return pending.isEmpty();
+    }
+
+    /**
+     * @return the number of notices waiting to be replayed
+     */
+    synchronized long size() {
+        long size = pending.size();
+        for (Segment segment : segments) {
+            size += segment.records;
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of notices evicted because the spool was full
+     */
+    long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * Loads the segments left by a previous run, dropping their torn or corrupt tails.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list the spool directory " + directory);
+        }
+        Arrays.sort(files);
+
+        for (File file : files) {
+            Matcher matcher = SEGMENT.matcher(file.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            Segment segment = new Segment(Long.parseLong(matcher.group(1)), file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel in = raf.getChannel();
+                byte[] notice;
+                while ((notice = read(in, segment.size)) != null) {
+                    segment.size += HEADER_SIZE + notice.length;
+                    segment.records++;
+                }
+                if (segment.size < in.size()) {
+                    logger.warn("Dropping the corrupt tail of the spool segment {}", file);
+                    in.truncate(segment.size);
+                }
+            } finally {
+                raf.close();
+            }
+
+            nextId = segment.id + 1;
+            if (segment.records == 0) {
+                delete(segment);
+            } else {
+                segments.add(segment);
+            }
+        }
+
+        if (!segments.isEmpty()) {
+            logger.info("Found {} undelivered errors in the spool {}", size(), directory);
+        }
+    }
+
+    /**
+     * Reads the next notices to replay from the oldest segment, deleting the segments left with none.
+     *
+     * @return the notices or <code>null</code> if the spool is empty
+     */
+    private synchronized Batch nextBatch() throws IOException {
+        while (!segments.isEmpty()) {
+            Segment segment = segments.getFirst();
+            if (segment.records > 0) {
+                Batch batch = new Batch(segment);
+                RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+                try {
+                    FileChannel in = file.getChannel();
+                    long position = segment.offset;
+                    int size = (int) Math.min(REPLAY_BATCH_SIZE, segment.records);
+                    byte[] notice;
+                    while (batch.notices.size() < size && (notice = read(in, position)) != null) {
+                        batch.notices.add(notice);
+                        position += HEADER_SIZE + notice.length;
+                    }
+                } finally {
+                    file.close();
+                }
+                if (!batch.notices.isEmpty()) {
+                    return batch;
+                }
+            }
+            // Fully delivered or cut short by a corrupt record
+            delete(segments.removeFirst());
+        }
+        return null;
+    }
+
+    /**
+     * Moves the replay past the delivered notices of the batch, unless their segment was evicted or compacted
+     * meanwhile.
+     */
+    private synchronized void consume(Batch batch, int delivered) throws IOException {
+        Segment segment = batch.segment;
+        if (segments.peekFirst() != segment || segment.offset != batch.offset) {
+            return;
+        }
+        for (int i = 0; i < delivered; i++) {
+            segment.offset += HEADER_SIZE + batch.notices.get(i).length;
+            segment.records--;
+        }
+        if (segment.records == 0) {
+            delete(segments.removeFirst());
+        }
+    }
+
+    /**
+     * Reads the notice at the specified position.
+     *
+     * @return the notice or <code>null</code> at the end of the segment or at a torn or corrupt record
+     */
+    private static byte[] read(FileChannel in, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(in, header, position)) {
+            return null;
+        }
+        int length = header.getInt(0);
+        int checksum = header.getInt(4);
+        if (length < 0 || length > in.size() - position - HEADER_SIZE) {
+            return null;
+        }
+
+        byte[] notice = new byte[length];
+        if (!readFully(in, ByteBuffer.wrap(notice), position + HEADER_SIZE)) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(notice, 0, length);
+        return (int) crc.getValue() == checksum ? notice : null;
+    }
+
+    private static boolean readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the buffers to the current segment and counts their notices in it.
+     *
+     * @return the index of the first notice left to write
+     */
+    private int write(List<ByteBuffer> buffers, List<byte[]> notices, int from, int to) throws IOException {
+        if (buffers.isEmpty()) {
+            return from;
+        }
+        ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+        ByteBuffer last = array[array.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(array);
+        }
+        buffers.clear();
+
+        Segment segment = segments.getLast();
+        for (int i = from; i < to; i++) {
+            segment.size += HEADER_SIZE + notices.get(i).length;
+            segment.records++;
+        }
+        return to;
+    }
+
+    /**
+     * Drops what a failed write left past the last record of the current segment, or stops writing to the segment if
+     * that fails too, so that the next records are not appended after a torn one.
+     */
+    private void discardTail() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.truncate(segments.getLast().size);
+        } catch (IOException e) {
+            try {
+                closeChannel();
+            } catch (IOException closeFailure) {
+                // Reopened by the next flush anyway
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Puts the notices that could not be written back in front of those appended meanwhile.
+     */
+    private void requeue(List<byte[]> notices) {
+        List<byte[]> appended = new ArrayList<>();
+        byte[] notice;
+        while ((notice = pending.poll()) != null) {
+            appended.add(notice);
+        }
+        for (byte[] unwritten : notices) {
+            pending.add(unwritten);
+            pendingSize.addAndGet(unwritten.length);
+        }
+        pending.addAll(appended);
+    }
+
+    /**
+     * Starts a new segment, syncing the current one.
+     */
+    private void roll() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            closeChannel();
+        }
+        long id = nextId++;
+        Segment segment = new Segment(id, new File(directory, String.format("spool-%016d.log", id)));
+        channel = new RandomAccessFile(segment.file, "rw").getChannel();
+        segments.addLast(segment);
+        segment.writing = true;
+    }
+
+    /**
+     * Evicts the oldest segments until the spool fits in its max size.
+     */
+    private void evict() throws IOException {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size - segment.offset;
+        }
+        while (size > maxSize && segments.size() > 1) {
+            Segment eldest = segments.removeFirst();
+            size -= eldest.size - eldest.offset;
+            evicted.addAndGet(eldest.records);
+            logger.warn("The spool is full, evicting {} undelivered errors", eldest.records);
+            delete(eldest);
+        }
+    }
+
+    /**
+     * Rewrites the segment without its delivered notices.
+     */
+    private void compact(Segment segment) throws IOException {
+        File compacted = new File(directory, segment.file.getName() + ".tmp");
+        RandomAccessFile in = new RandomAccessFile(segment.file, "r");
+        try {
+            RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+            try {
+                FileChannel channel = out.getChannel();
+                long remaining = segment.size - segment.offset;
+                long position = segment.offset;
+                while (remaining > 0) {
+                    long transferred = in.getChannel().transferTo(position, remaining, channel);
+                    position += transferred;
+                    remaining -= transferred;
+                }
+                channel.force(false);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        if (!compacted.renameTo(segment.file)) {
+            logger.warn("Could not compact the spool segment {}", segment.file);
+            delete(new Segment(-1, compacted));
+            return;
+        }
+        segment.size -= segment.offset;
+        segment.offset = 0;
+    }
+
+    private void delete(Segment segment) throws IOException {
+        if (segment.writing) {
+            closeChannel();
+        }
+        if (!segment.file.delete() && segment.file.exists()) {
+            logger.warn("Could not delete the spool segment {}", segment.file);
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            for (Segment segment : segments) {
+                segment.writing = false;
+            }
+        }
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final File file;
+
+        /**
+         * Size in bytes of the valid records
+         */
+        private long size;
+
+        /**
+         * Position of the next notice to replay
+         */
+        private long offset;
+
+        /**
+         * Number of notices left to replay
+         */
+        private long records;
+
+        /**
+         * Whether the segment is open for writing
+         */
+        private boolean writing;
+
+        private Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Notices read from a segment, starting at the offset it had when they were read.
+     */
+    private static final class Batch {
+
+        private final Segment segment;
+        private final long offset;
+        private final List<byte[]> notices = new ArrayList<>();
+
+        private Batch(Segment segment) {
+            this.segment = segment;
+            this.offset = segment.offset;
+        }
+    }
+}
@@ -7,12 +7,18 @@ public class Error {
 
     private String message;
 
+    private MessageRenderer messageRenderer;
+
     private String reporter;
 
     private Throwable error;
 
     private Object context;
 
+    private int occurrences = 1;
+
+    private double sampleRate = 1;
+
     public Error(Throwable error) {
         this.error = error;
     }
@@ -22,12 +28,35 @@ public class Error {
         this.error = error;
     }
 
+    /**
+     * @return the message, rendered by the {@link MessageRenderer} if one is set and it was not rendered yet
+     */
     public String getMessage() {
+        if (messageRenderer != null) {
+            message = messageRenderer.render();
+            messageRenderer = null;
+        }
         return message;
     }
 
     public void setMessage(String message) {
         this.message = message;
+        this.messageRenderer = null;
+    }
+
+    /**
+     * Sets a renderer of the message, called when the message is first needed so that asynchronously dispatched errors
+     * are rendered on the dispatcher thread.
+     */
+    public void setMessageRenderer(MessageRenderer messageRenderer) {
+        this.messageRenderer = messageRenderer;
+    }
+
+    /**
+     * @return the renderer of the message if it was not rendered yet, <code>null</code> otherwise
+     */
+    MessageRenderer getMessageRenderer() {
+        return messageRenderer;
     }
 
     public String getReporter() {
@@ -54,13 +83,46 @@ public class Error {
         this.context = context;
     }
 
+    /**
+     * @return the number of occurrences this error stands for, greater than one when repeats have been aggregated
+     */
+    public int getOccurrences() {
+        return occurrences;
+    }
+
+    public void setOccurrences(int occurrences) {
+        this.occurrences = occurrences;
+    }
+
+    /**
+     * @return the probability this error was kept with by the sampling, each reported error standing for
+     * <code>1 / sampleRate</code> occurrences
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
     @Override
     public String toString() {
         return "Error{" +
-               "message='" + message + '\'' +
+               "message='" + getMessage() + '\'' +
                ", reporter='" + reporter + '\'' +
                ", error=" + error +
                ", context=" + context +
+               ", occurrences=" + occurrences +
+               ", sampleRate=" + sampleRate +
                '}';
     }
+
+    /**
+     * Renders the message of an error, e.g. with the layout of an appender.
+     */
+    public interface MessageRenderer {
+
+        String render();
+    }
 }
@@ -0,0 +1,261 @@
+package com.workable.honeybadger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Folds repeated occurrences of the same error into periodic summaries.
+ * <p>
+ * Errors are identified by a fingerprint of their class, the top frames of their stack trace and their reporter. The
+ * first occurrence of a fingerprint is let through, while the repeats within the following window are only counted.
+ * At the end of each window a single summary is dispatched for every fingerprint that repeated, carrying the number of
+ * occurrences it stands for. Fingerprints that have not been seen for a whole window are forgotten.
+ * <p>
+ * The number of tracked fingerprints is bounded; when full, the least recently seen of a few fingerprints sampled from
+ * a random position is evicted (and its pending summary dispatched).
+ */
+class ErrorAggregator {
+
+    /**
+     * Number of fingerprints sampled to pick one for eviction
+     */
+    private static final int EVICTION_SAMPLES = 8;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final HoneybadgerClient client;
+    private final long window;
+    private final int frames;
+    private final int maxFingerprints;
+    private final ConcurrentMap<Long, Occurrences> fingerprints;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Whether the scheduler was created by the aggregator, and is shut down along with it
+     */
+    private final boolean ownsScheduler;
+
+    private final Future<?> flushTask;
+
+    /**
+     * @param client          The client to dispatch the summaries to
+     * @param window          The aggregation window in milliseconds
+     * @param frames          Number of top stack frames included in the fingerprint
+     * @param maxFingerprints Max number of fingerprints tracked
+     * @param priority        The thread priority of the summary dispatcher
+     */
+    ErrorAggregator(HoneybadgerClient client, long window, int frames, int maxFingerprints, int priority) {
+        this(client, window, frames, maxFingerprints, newScheduler(priority), true);
+    }
+
+    /**
+     * @param scheduler     The scheduler running the periodic flush
+     * @param ownsScheduler Whether the scheduler is shut down on {@link #close()}, otherwise only the flush is
+     *                      cancelled
+     */
+    ErrorAggregator(HoneybadgerClient client, long window, int frames, int maxFingerprints,
+                    ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        this.client = client;
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.frames = frames;
+        this.maxFingerprints = maxFingerprints;
+        this.fingerprints = new ConcurrentHashMap<>(Math.min(maxFingerprints, 1024));
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+
+        this.flushTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception e) {
+                    logger.error("An exception occurred while summarizing errors", new HoneybadgerException(e));
+                }
+            }
+        }, window, window, TimeUnit.MILLISECONDS);
+    }
+
+    private static ScheduledExecutorService newScheduler(int priority) {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+            1, new DaemonThreadFactory("aggregator", priority));
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return scheduler;
+    }
+
+    /**
+     * Records an occurrence of the error.
+     *
+     * @return <code>true</code> if the error should be dispatched right away, <code>false</code> if it was folded into
+     * the next summary
+     */
+    boolean accept(Error error) {
+        return accept(error, null);
+    }
+
+    /**
+     * @param context The MDC context of the error, or <code>null</code> for the MDC of the current thread
+     * @see #accept(Error)
+     */
+    boolean accept(Error error, Map<String, String> context) {
+        Long fingerprint = Fingerprint.of(error, frames);
+
+        Occurrences occurrences = fingerprints.get(fingerprint);
+        if (occurrences == null) {
+            if (fingerprints.size() >= maxFingerprints) {
+                evict();
+            }
+            occurrences = fingerprints.putIfAbsent(fingerprint, new Occurrences());
+            if (occurrences == null) {
+                return true;
+            }
+        }
+
+        occurrences.record(error, context);
+        return false;
+    }
+
+    /**
+     * Dispatches the summaries of all fingerprints that repeated since the last flush and forgets the idle ones.
+     */
+    void flush() {
+        long now = System.nanoTime();
+        for (Map.Entry<Long, Occurrences> entry : fingerprints.entrySet()) {
+            Occurrences occurrences = entry.getValue();
+            if (!summarize(occurrences) && now - occurrences.lastSeen >= window
+                && fingerprints.remove(entry.getKey(), occurrences)) {
+                // A repeat recorded since the summary was swapped out would be lost along with the entry
+                summarize(occurrences);
+            }
+        }
+    }
+
+    /**
+     * Dispatches all pending summaries and stops the periodic flush.
+     */
+    void close() {
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        } else {
+            flushTask.cancel(false);
+        }
+        flush();
+    }
+
+    int size() {
+        return fingerprints.size();
+    }
+
+    /**
+     * @return <code>true</code> if the fingerprint repeated since the previous summary
+     */
+    private boolean summarize(Occurrences occurrences) {
+        Repeats repeats = occurrences.repeats.getAndSet(Repeats.NONE);
+        if (repeats.count == 0) {
+            return false;
+        }
+
+        Summary summary = repeats.summary;
+        Error error = new Error(summary.error.getMessage(), summary.error.getError());
+        error.setReporter(summary.error.getReporter());
+        error.setContext(summary.error.getContext());
+        error.setOccurrences(repeats.count);
+        client.dispatch(error, summary.context);
+        return true;
+    }
+
+    /**
+     * Evicts the least recently seen of a few fingerprints, dispatching its pending summary. The sample starts at a
+     * random position, so that the fingerprints iterated first are not the only ones ever evicted.
+     */
+    private void evict() {
+        int size = fingerprints.size();
+        int skip = size > EVICTION_SAMPLES ? ThreadLocalRandom.current().nextInt(size - EVICTION_SAMPLES + 1) : 0;
+
+        Map.Entry<Long, Occurrences> eldest = null;
+        int sampled = 0;
+        for (Map.Entry<Long, Occurrences> entry : fingerprints.entrySet()) {
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            if (eldest == null || entry.getValue().lastSeen < eldest.getValue().lastSeen) {
+                eldest = entry;
+            }
+            if (++sampled == EVICTION_SAMPLES) {
+                break;
+            }
+        }
+        if (eldest != null && fingerprints.remove(eldest.getKey(), eldest.getValue())) {
+            summarize(eldest.getValue());
+        }
+    }
+
+    /**
+     * Occurrences of a fingerprint since the last summary.
+     */
+    private static final class Occurrences {
+
+        /**
+         * The repeats since the last summary, swapped as a whole so that a summary never misses its count
+         */
+        private final AtomicReference<Repeats> repeats = new AtomicReference<>(Repeats.NONE);
+
+        private volatile long lastSeen = System.nanoTime();
+
+        private void record(Error error, Map<String, String> context) {
+            Summary summary = null;
+            while (true) {
+                Repeats current = repeats.get();
+                if (current.summary == null && summary == null) {
+                    // Only the first repeat of a window pays for the MDC copy, and for rendering its message while
+                    // the event logged is still valid
+                    error.getMessage();
+                    summary = new Summary(error, context == null ? MDC.getCopyOfContextMap() : context);
+                }
+                Repeats next = new Repeats(current.count + 1, current.summary != null ? current.summary : summary);
+                if (repeats.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+            lastSeen = System.nanoTime();
+        }
+    }
+
+    /**
+     * Immutable count of repeats along with the first of them, dispatched as the summary.
+     */
+    private static final class Repeats {
+
+        private static final Repeats NONE = new Repeats(0, null);
+
+        private final int count;
+        private final Summary summary;
+
+        private Repeats(int count, Summary summary) {
+            this.count = count;
+            this.summary = summary;
+        }
+    }
+
+    private static final class Summary {
+
+        private final Error error;
+        private final Map<String, String> context;
+
+        private Summary(Error error, Map<String, String> context) {
+            this.error = error;
+            this.context = context;
+        }
+    }
+}
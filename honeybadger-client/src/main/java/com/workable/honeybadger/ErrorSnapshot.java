@@ -0,0 +1,318 @@
+package com.workable.honeybadger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable copy of everything a notice is marshalled from, captured when the error is reported.
+ * <p>
+ * Queued errors would otherwise keep their exception alive, along with its whole cause graph and anything referenced
+ * from custom exception fields, and the servlet request of their context. A snapshot only holds strings and flat
+ * arrays: the class and message of the exception, the frames of its stack trace and of those of its causes and
+ * suppressed exceptions, the request information and the MDC. Its approximate size is known, so that the memory held
+ * by queued errors can be measured.
+ * <p>
+ * The stack trace is not printed, the "source" of the notice being rendered from the frames, and the messages are
+ * clipped to the max field size as they are captured: a huge message is never copied in full nor held by the queue.
+ * <p>
+ * The only exception is a message left to a {@link Error.MessageRenderer}, which is rendered by the first call to
+ * {@link #message()}, on the dispatcher thread.
+ */
+final class ErrorSnapshot {
+
+    final String className;
+    private final int maxFieldSize;
+    private String message;
+    private Error.MessageRenderer messageRenderer;
+
+    /**
+     * Frames of the exception followed by those of its causes and suppressed exceptions in the order they are
+     * printed, as flat arrays. As in {@link Throwable#printStackTrace()}, the frames an exception has in common with
+     * the exception enclosing it are left out.
+     */
+    final String[] frameClasses;
+    final String[] frameMethods;
+    final String[] frameFiles;
+    final int[] frameLines;
+
+    /**
+     * Blocks of the printed stack trace, one per exception: its header line, the indentation of its frames, its
+     * number of frames and its number of frames in common with the exception enclosing it
+     */
+    final String[] headers;
+    final String[] indents;
+    final int[] blockFrames;
+    final int[] commonFrames;
+
+    /**
+     * Number of frames of the exception itself
+     */
+    final int frames;
+
+    /**
+     * "Caused by" line of the backtrace, or <code>null</code> without a cause
+     */
+    final String cause;
+
+    /**
+     * Block of the cause, or -1 without a cause
+     */
+    final int causeBlock;
+
+    /**
+     * Total frames of the cause
+     */
+    final int causeFrames;
+
+    final JsonObject request;
+    final Map<String, String> context;
+    final String reporter;
+    final int occurrences;
+    final double sampleRate;
+
+    /**
+     * Approximate size in bytes of the snapshot
+     */
+    final int size;
+
+    /**
+     * The {@link System#nanoTime()} at which the error was captured, that is queued
+     */
+    final long queuedAt = System.nanoTime();
+
+    private ErrorSnapshot(Error error, Map<String, String> context, int maxFieldSize) {
+        Throwable throwable = error.getError();
+        this.className = throwable.getClass().getName();
+        this.maxFieldSize = maxFieldSize;
+        this.messageRenderer = error.getMessageRenderer();
+        this.message = JsonMarshaller.clip(messageRenderer != null || error.getMessage() == null
+                                           ? throwable.getMessage() : error.getMessage(), maxFieldSize);
+
+        Trace trace = new Trace(throwable, maxFieldSize);
+        int count = trace.frames.size();
+        this.frameClasses = new String[count];
+        this.frameMethods = new String[count];
+        this.frameFiles = new String[count];
+        this.frameLines = new int[count];
+        for (int i = 0; i < count; i++) {
+            StackTraceElement frame = trace.frames.get(i);
+            frameClasses[i] = frame.getClassName();
+            frameMethods[i] = frame.getMethodName();
+            frameFiles[i] = frame.getFileName();
+            frameLines[i] = frame.getLineNumber();
+        }
+        int blocks = trace.headers.size();
+        this.headers = trace.headers.toArray(new String[blocks]);
+        this.indents = trace.indents.toArray(new String[blocks]);
+        this.blockFrames = new int[blocks];
+        this.commonFrames = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            blockFrames[i] = trace.blockFrames.get(i);
+            commonFrames[i] = trace.commonFrames.get(i);
+        }
+        this.frames = blockFrames[0];
+
+        Throwable cause = throwable.getCause();
+        this.cause = cause == null ? null : "Caused by: " + cause.getClass().getName() + ": "
+                                            + JsonMarshaller.clip(cause.getMessage(), maxFieldSize);
+        this.causeBlock = trace.causeBlock;
+        this.causeFrames = cause == null ? 0 : blockFrames[causeBlock] + commonFrames[causeBlock];
+
+        this.request = request(error.getContext());
+        this.context = context;
+        this.reporter = error.getReporter();
+        this.occurrences = error.getOccurrences();
+        this.sampleRate = error.getSampleRate();
+        this.size = estimateSize();
+    }
+
+    /**
+     * Captures the error along with the specified MDC context, with unbounded messages.
+     */
+    static ErrorSnapshot capture(Error error, Map<String, String> context) {
+        return capture(error, context, 0);
+    }
+
+    /**
+     * Captures the error along with the specified MDC context.
+     *
+     * @param maxFieldSize Max size in UTF-8 bytes of the messages, or 0 for unbounded messages
+     */
+    static ErrorSnapshot capture(Error error, Map<String, String> context, int maxFieldSize) {
+        return new ErrorSnapshot(error, context, maxFieldSize);
+    }
+
+    /**
+     * @return the message of the error, or of the exception if it has none
+     */
+    String message() {
+        if (messageRenderer != null) {
+            String rendered = messageRenderer.render();
+            if (rendered != null) {
+                message = JsonMarshaller.clip(rendered, maxFieldSize);
+            }
+            messageRenderer = null;
+        }
+        return message;
+    }
+
+    /**
+     * @return the method at the top of the stack, or <code>null</code>
+     */
+    String action() {
+        return frames == 0 ? null : frameMethods[0];
+    }
+
+    /**
+     * @param index Index of a frame in the stack trace of the cause
+     * @return the index of the frame in the flat arrays, the frames in common with the exception being those of the
+     * exception
+     */
+    int causeFrame(int index) {
+        int unique = blockFrames[causeBlock];
+        if (index >= unique) {
+            return frames - commonFrames[causeBlock] + index - unique;
+        }
+        int start = 0;
+        for (int i = 0; i < causeBlock; i++) {
+            start += blockFrames[i];
+        }
+        return start + index;
+    }
+
+    private static JsonObject request(Object context) {
+        try {
+            return RequestInfoGenerators.generate(context);
+        } catch (HoneybadgerException e) {
+            // Not a request after all, leave it out rather than lose the error
+            return null;
+        }
+    }
+
+    private int estimateSize() {
+        // Object header and fields
+        int size = 96 + sizeOf(className) + sizeOf(message) + sizeOf(cause) + sizeOf(reporter);
+
+        // Frame and block arrays, the class and file names being mostly shared with the loaded classes
+        size += 4 * (16 + 4 * frameLines.length) + 4 * (16 + 4 * headers.length);
+        for (String method : frameMethods) {
+            size += sizeOf(method);
+        }
+        for (String header : headers) {
+            size += sizeOf(header);
+        }
+
+        if (request != null) {
+            size += sizeOf(request);
+        }
+        if (context != null) {
+            for (Map.Entry<String, String> entry : context.entrySet()) {
+                size += 32 + sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+            }
+        }
+        return size;
+    }
+
+    private static int sizeOf(String value) {
+        return value == null ? 0 : 40 + 2 * value.length();
+    }
+
+    private static int sizeOf(JsonElement element) {
+        if (element.isJsonObject()) {
+            int size = 48;
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                size += 40 + sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+            }
+            return size;
+        }
+        if (element.isJsonArray()) {
+            int size = 32;
+            for (JsonElement item : element.getAsJsonArray()) {
+                size += sizeOf(item);
+            }
+            return size;
+        }
+        if (element.isJsonPrimitive()) {
+            return 16 + sizeOf(element.getAsString());
+        }
+        return 0;
+    }
+
+    /**
+     * Walks the exception, its suppressed exceptions and its causes in the order {@link Throwable#printStackTrace()}
+     * prints them, collecting their headers and the frames they do not have in common with their enclosing exception.
+     * Headers are built as {@link Throwable#toString()} does, from the message clipped to the max field size.
+     */
+    private static final class Trace {
+
+        private final List<StackTraceElement> frames = new ArrayList<>();
+        private final List<String> headers = new ArrayList<>();
+        private final List<String> indents = new ArrayList<>();
+        private final List<Integer> blockFrames = new ArrayList<>();
+        private final List<Integer> commonFrames = new ArrayList<>();
+        private final Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+        private final int maxFieldSize;
+        private int causeBlock = -1;
+
+        private Trace(Throwable throwable, int maxFieldSize) {
+            this.maxFieldSize = maxFieldSize;
+            seen.add(throwable);
+            StackTraceElement[] trace = throwable.getStackTrace();
+            block(header(throwable), "", trace, 0);
+            for (Throwable suppressed : throwable.getSuppressed()) {
+                walk(suppressed, trace, "Suppressed: ", "\t");
+            }
+            Throwable cause = throwable.getCause();
+            if (cause != null) {
+                causeBlock = headers.size();
+                walk(cause, trace, "Caused by: ", "");
+            }
+        }
+
+        private void walk(Throwable throwable, StackTraceElement[] enclosing, String caption, String indent) {
+            if (!seen.add(throwable)) {
+                block(indent + caption + "[CIRCULAR REFERENCE: " + header(throwable) + "]", indent,
+                      new StackTraceElement[0], 0);
+                return;
+            }
+            StackTraceElement[] trace = throwable.getStackTrace();
+            int m = trace.length - 1;
+            int n = enclosing.length - 1;
+            while (m >= 0 && n >= 0 && trace[m].equals(enclosing[n])) {
+                m--;
+                n--;
+            }
+            block(indent + caption + header(throwable), indent, trace, trace.length - 1 - m);
+            for (Throwable suppressed : throwable.getSuppressed()) {
+                walk(suppressed, trace, "Suppressed: ", indent + "\t");
+            }
+            Throwable cause = throwable.getCause();
+            if (cause != null) {
+                walk(cause, trace, "Caused by: ", indent);
+            }
+        }
+
+        private String header(Throwable throwable) {
+            String message = throwable.getLocalizedMessage();
+            String className = throwable.getClass().getName();
+            return message == null ? className : className + ": " + JsonMarshaller.clip(message, maxFieldSize);
+        }
+
+        private void block(String header, String indent, StackTraceElement[] trace, int common) {
+            headers.add(header);
+            indents.add(indent);
+            blockFrames.add(trace.length - common);
+            commonFrames.add(common);
+            for (int i = 0; i < trace.length - common; i++) {
+                frames.add(trace[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.workable.honeybadger;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Decides whether errors are excluded from reporting, by the class of the exception or by the class that threw it.
+ * <p>
+ * The excluded prefixes are compiled into prefix tries, so that a class name is matched against all of them in a
+ * single pass over its characters. The verdict for each exception class is cached through a {@link ClassValue},
+ * which makes the check of a class seen before a lookup. Optionally, an exception is also excluded if one of its
+ * superclasses is (e.g. excluding <code>java.io.IOException</code> excludes
+ * <code>java.io.FileNotFoundException</code>), or if any exception of its cause chain is.
+ */
+final class ExclusionFilter {
+
+    /**
+     * Max depth of the cause chain walked, guarding against cyclic causes
+     */
+    private static final int MAX_CAUSES = 16;
+
+    private final PrefixTrie classes;
+    private final PrefixTrie causes;
+    private final boolean subclasses;
+    private final boolean causeChain;
+
+    private final ClassValue<Boolean> verdicts = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            if (classes.matches(type.getName())) {
+                return Boolean.TRUE;
+            }
+            Class<?> superclass = type.getSuperclass();
+            return subclasses && superclass != null && superclass != Object.class && get(superclass);
+        }
+    };
+
+    /**
+     * @param classes    Excluded exception class name prefixes
+     * @param causes     Excluded prefixes of the class names throwing the exceptions
+     * @param subclasses Whether subclasses of excluded exception classes are excluded as well
+     * @param causeChain Whether an exception is excluded when any exception of its cause chain is
+     */
+    ExclusionFilter(Collection<String> classes, Collection<String> causes, boolean subclasses, boolean causeChain) {
+        this.classes = new PrefixTrie(classes);
+        this.causes = new PrefixTrie(causes);
+        this.subclasses = subclasses;
+        this.causeChain = causeChain;
+    }
+
+    boolean excludes(Throwable error) {
+        for (int depth = 0; error != null && depth < MAX_CAUSES; depth++) {
+            if (excludesOne(error)) {
+                return true;
+            }
+            if (!causeChain || error.getCause() == error) {
+                return false;
+            }
+            error = error.getCause();
+        }
+        return false;
+    }
+
+    private boolean excludesOne(Throwable error) {
+        if (verdicts.get(error.getClass())) {
+            return true;
+        }
+        if (causes.isEmpty()) {
+            return false;
+        }
+        StackTraceElement[] stackTrace = error.getStackTrace();
+        return stackTrace != null && stackTrace.length > 0 && causes.matches(stackTrace[0].getClassName());
+    }
+
+    /**
+     * Trie of prefixes, matching the strings starting with any of them.
+     */
+    static final class PrefixTrie {
+
+        private final Node root = new Node();
+        private final boolean empty;
+
+        PrefixTrie(Collection<String> prefixes) {
+            for (String prefix : prefixes) {
+                Node node = root;
+                for (int i = 0; i < prefix.length() && !node.terminal; i++) {
+                    node = node.add(prefix.charAt(i));
+                }
+                // Longer prefixes are redundant
+                node.terminal = true;
+                node.keys = new char[0];
+                node.children = new Node[0];
+            }
+            this.empty = prefixes.isEmpty();
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        /**
+         * @return <code>true</code> if the value starts with any of the prefixes
+         */
+        boolean matches(String value) {
+            Node node = root;
+            for (int i = 0; !node.terminal; i++) {
+                if (i == value.length()) {
+                    return false;
+                }
+                node = node.child(value.charAt(i));
+                if (node == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static final class Node {
+
+            /**
+             * Sorted characters of the children
+             */
+            private char[] keys = new char[0];
+            private Node[] children = new Node[0];
+            private boolean terminal;
+
+            private Node child(char key) {
+                int index = Arrays.binarySearch(keys, key);
+                return index < 0 ? null : children[index];
+            }
+
+            private Node add(char key) {
+                int index = Arrays.binarySearch(keys, key);
+                if (index >= 0) {
+                    return children[index];
+                }
+                index = -index - 1;
+
+                char[] keys = new char[this.keys.length + 1];
+                Node[] children = new Node[keys.length];
+                System.arraycopy(this.keys, 0, keys, 0, index);
+                System.arraycopy(this.children, 0, children, 0, index);
+                System.arraycopy(this.keys, index, keys, index + 1, this.keys.length - index);
+                System.arraycopy(this.children, index, children, index + 1, this.children.length - index);
+                keys[index] = key;
+                children[index] = new Node();
+                this.keys = keys;
+                this.children = children;
+                return children[index];
+            }
+        }
+    }
+}
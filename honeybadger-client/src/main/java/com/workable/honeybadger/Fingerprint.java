@@ -0,0 +1,47 @@
+package com.workable.honeybadger;
+
+/**
+ * Cheap 64-bit fingerprint identifying occurrences of the same error.
+ */
+final class Fingerprint {
+
+    private Fingerprint() {
+    }
+
+    /**
+     * Hashes the class, the top stack frames and the reporter of the error.
+     *
+     * @param error  The error to fingerprint
+     * @param frames Number of top stack frames included in the fingerprint
+     */
+    static long of(Error error, int frames) {
+        return of(error.getError(), error.getReporter(), frames);
+    }
+
+    /**
+     * @param throwable The exception of the error
+     * @param reporter  The reporter of the error
+     * @see #of(Error, int)
+     */
+    static long of(Throwable throwable, String reporter, int frames) {
+        long hash = 17;
+        if (throwable != null) {
+            hash = mix(hash, throwable.getClass().getName().hashCode());
+
+            StackTraceElement[] stackTrace = throwable.getStackTrace();
+            for (int i = 0; i < stackTrace.length && i < frames; i++) {
+                StackTraceElement frame = stackTrace[i];
+                hash = mix(hash, frame.getClassName().hashCode());
+                hash = mix(hash, frame.getMethodName().hashCode());
+                hash = mix(hash, frame.getLineNumber());
+            }
+        }
+        hash = mix(hash, reporter == null ? 0 : reporter.hashCode());
+        return hash;
+    }
+
+    private static long mix(long hash, int value) {
+        hash = (hash ^ value) * 0x100000001B3L;
+        return hash ^ (hash >>> 29);
+    }
+}
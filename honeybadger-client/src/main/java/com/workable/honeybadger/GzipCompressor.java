@@ -0,0 +1,110 @@
+package com.workable.honeybadger;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compressor reusing its deflater and output buffer across payloads.
+ * <p>
+ * {@link java.util.zip.GZIPOutputStream} allocates a new native deflater, its buffers and a stream per payload; this
+ * compressor resets a pooled deflater instead and writes the gzip header and trailer itself, so compressing a payload
+ * allocates nothing once the buffer has grown to the usual payload size. The compressors are kept in a bounded
+ * {@link Pool} rather than per thread, so that sending from a new virtual thread per notice does not leave a native
+ * deflater behind each of them.
+ */
+final class GzipCompressor {
+
+    /**
+     * Output buffers larger than this are not kept after use
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+
+    private static final Pool<GzipCompressor> COMPRESSORS = new Pool<>(Pool.DEFAULT_SIZE);
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer = new byte[8192];
+
+    private GzipCompressor() {
+    }
+
+    /**
+     * @return a pooled compressor, to be given back with {@link #release()}
+     */
+    static GzipCompressor get() {
+        GzipCompressor compressor = COMPRESSORS.poll();
+        return compressor != null ? compressor : new GzipCompressor();
+    }
+
+    /**
+     * Compresses the payload to the buffer of the compressor, which remains valid until it is released.
+     *
+     * @return the size of the compressed payload
+     */
+    int compress(byte[] payload) {
+        deflater.reset();
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+
+        // Magic number, deflate, no flags, no modification time, no extra flags, unknown OS
+        byte[] buffer = this.buffer;
+        buffer[0] = (byte) 0x1f;
+        buffer[1] = (byte) 0x8b;
+        buffer[2] = Deflater.DEFLATED;
+        for (int i = 3; i < HEADER_SIZE - 1; i++) {
+            buffer[i] = 0;
+        }
+        buffer[HEADER_SIZE - 1] = (byte) 0xff;
+        int size = HEADER_SIZE;
+
+        deflater.setInput(payload, 0, payload.length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (size == buffer.length) {
+                buffer = grow(size);
+            }
+            size += deflater.deflate(buffer, size, buffer.length - size);
+        }
+
+        if (size + TRAILER_SIZE > buffer.length) {
+            buffer = grow(size + TRAILER_SIZE);
+        }
+        size = writeInt(buffer, size, (int) crc.getValue());
+        size = writeInt(buffer, size, payload.length);
+        return size;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Gives the compressor back to the pool, or frees its deflater if its buffer grew too large or the pool is full.
+     */
+    void release() {
+        if (buffer.length > MAX_POOLED_BUFFER_SIZE || !COMPRESSORS.offer(this)) {
+            deflater.end();
+        }
+    }
+
+    private byte[] grow(int minCapacity) {
+        byte[] grown = new byte[Math.max(minCapacity, buffer.length * 2)];
+        System.arraycopy(buffer, 0, grown, 0, buffer.length);
+        buffer = grown;
+        return grown;
+    }
+
+    /**
+     * Writes the value in little-endian order, as gzip expects.
+     */
+    private static int writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+        buffer[offset + 2] = (byte) (value >>> 16);
+        buffer[offset + 3] = (byte) (value >>> 24);
+        return offset + 4;
+    }
+}
@@ -1,27 +1,43 @@
 package com.workable.honeybadger;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.Consts;
+import org.apache.http.entity.ContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * Facade giving a simple interface for sending error to the Honeybadger API
@@ -64,221 +80,1693 @@ public class HoneybadgerClient {
     public static final String DEFAULT_API_URI =
         "https://api.honeybadger.io/v1/notices";
 
-    /**
-     * If <code>true</code> errors are dispatched asynchronously (Default true)
-     */
-    private boolean async = true;
+    /**
+     * If <code>true</code> errors are dispatched asynchronously (Default true)
+     */
+    private boolean async = true;
+
+    /**
+     * Max threads for asynchronous error dispatching. (Default: one)
+     */
+    private int maxThreads = 1;
+
+    /**
+     * The thread priority of the asynchronous thread dispatchers. (Default Thread.MIN)
+     */
+    private int priority = Thread.MIN_PRIORITY;
+
+    /**
+     * The queue size of the asynchronous dispatching mechanism (Default: Integer.MAX)
+     */
+    private int queueSize = Integer.MAX_VALUE;
+
+    /**
+     * If <code>true</code> errors are queued in a preallocated lock-free ring buffer of {@link #queueSize} slots (8192
+     * when not set), so that reporting threads never take a lock. (Default: false)
+     */
+    private boolean ringBuffer;
+
+    /**
+     * Size of the ring buffer when no queue size is set
+     */
+    private static final int DEFAULT_RING_BUFFER_SIZE = 8192;
+
+    /**
+     * Max size of the ring buffer, as its slots are preallocated
+     */
+    private static final int MAX_RING_BUFFER_SIZE = 1 << 24;
+
+    /**
+     * What to do with an error when the queue is full. (Default: DROP_OLDEST)
+     */
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    /**
+     * Max time in milliseconds a reporting thread waits for room in the queue with {@link OverflowPolicy#BLOCK}, or
+     * to connect and for the response with {@link OverflowPolicy#CALLER_RUNS}. (Default: 100)
+     */
+    private int overflowTimeout = 100;
+
+    /**
+     * Max time in nanoseconds a thread blocked on a full queue parks before trying again
+     */
+    private static final long OVERFLOW_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Rejects tasks when the queue of the executor is full, preallocated as it is thrown on every overflow
+     */
+    private static final RejectedExecutionException QUEUE_FULL = new RejectedExecutionException("Queue full");
+
+    /**
+     * If <code>true</code> errors are dispatched on virtual threads when the JVM supports them (Java 21+), on platform
+     * threads otherwise. (Default: false)
+     */
+    private boolean virtualThreads;
+
+    /**
+     * If <code>true</code> errors are sent with a non-blocking HTTP client, the dispatchers not waiting for the
+     * responses. Requires <code>org.apache.httpcomponents:httpasyncclient</code>. (Default: false)
+     */
+    private boolean nioTransport;
+
+    /**
+     * Max errors sent at the same time on virtual threads or over the non-blocking transport. (Default: 64)
+     */
+    private int maxInFlight = 64;
+
+    /**
+     * Executor dispatching the errors instead of one created by the client, which does not shut it down
+     */
+    private ExecutorService externalExecutorService;
+
+    /**
+     * Scheduler running the retries, the spool and the aggregation instead of the ones created by the client, which
+     * does not shut it down
+     */
+    private ScheduledExecutorService externalScheduler;
+
+    /**
+     * Max pooled HTTP connections to the Honeybadger API. (Default: one per dispatcher thread, or per error in flight)
+     */
+    private int maxConnections;
+
+    /**
+     * HTTP connect timeout in milliseconds. (Default: 5 seconds)
+     */
+    private int connectTimeout = (int) TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * HTTP socket timeout in milliseconds. (Default: 10 seconds)
+     */
+    private int socketTimeout = (int) TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Max time in milliseconds an idle HTTP connection is kept alive. (Default: 1 minute)
+     */
+    private long keepAlive = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Max errors shipped together by an asynchronous dispatcher. Batching is enabled when greater than one.
+     * (Default: one)
+     */
+    private int batchSize = 1;
+
+    /**
+     * Max time in milliseconds a dispatcher waits for a batch to fill up before shipping it. (Default: 1 second)
+     */
+    private long batchLinger = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * Max size in bytes of the errors shipped in a single batch. (Default: 1 MB)
+     */
+    private int batchMaxBytes = 1024 * 1024;
+
+    /**
+     * Endpoint accepting newline delimited JSON batches of errors. When not set, the errors of a batch are posted one
+     * by one over the same pooled connection.
+     */
+    private URI batchUrl;
+
+    /**
+     * Window in milliseconds within which repeats of an error are folded into a single summary. Aggregation is enabled
+     * when greater than zero. (Default: zero)
+     */
+    private long aggregationWindow;
+
+    /**
+     * Number of top stack frames identifying an error for aggregation. (Default: 5)
+     */
+    private int aggregationFrames = 5;
+
+    /**
+     * Max number of distinct errors tracked for aggregation. (Default: 1000)
+     */
+    private int aggregationMaxFingerprints = 1000;
+
+    /**
+     * Max errors per second reported overall. Unlimited when zero. (Default: zero)
+     */
+    private double rateLimit;
+
+    /**
+     * Max errors per second reported for the same error. Unlimited when zero. (Default: zero)
+     */
+    private double errorRateLimit;
+
+    /**
+     * If <code>true</code> the per error rate limit applies per fingerprint (class, top stack frames and reporter)
+     * instead of per exception class. (Default: false)
+     */
+    private boolean errorRateLimitByFingerprint;
+
+    /**
+     * Probability an error is reported with, the others being dropped. (Default: 1)
+     */
+    private double sampleRate = 1;
+
+    /**
+     * Errors per second above which repeats of an exception class are sampled with a decreasing probability. Never
+     * when zero. (Default: zero)
+     */
+    private double adaptiveSamplingThreshold;
+
+    /**
+     * Depth of the queue above which repeats of an exception class are sampled with a decreasing probability. Never
+     * when zero. (Default: zero)
+     */
+    private int adaptiveSamplingQueueDepth;
+
+    /**
+     * Whether subclasses of the excluded exception classes are excluded as well. (Default: false)
+     */
+    private boolean excludeSubclasses;
+
+    /**
+     * Whether an error is excluded when any exception of its cause chain is. (Default: false)
+     */
+    private boolean excludeCauseChain;
+
+    /**
+     * Whether request bodies are sent gzip compressed. (Default: false)
+     */
+    private boolean compression;
+
+    /**
+     * Min size in bytes of a request body to be compressed, smaller ones are sent as is. (Default: 1 KB)
+     */
+    private int compressionThreshold = 1024;
+
+    /**
+     * Max retries of an error after its first attempt. (Default: 3)
+     */
+    private int maxRetries = 3;
+
+    /**
+     * Delay in milliseconds before the first retry, doubled on every retry. (Default: 1 second)
+     */
+    private long retryBackoff = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * Max delay in milliseconds between retries. (Default: 1 minute)
+     */
+    private long maxRetryBackoff = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Max errors waiting to be retried. (Default: 1000)
+     */
+    private int maxPendingRetries = 1000;
+
+    /**
+     * Consecutive failures after which sending is paused. (Default: 5)
+     */
+    private int circuitBreakerThreshold = 5;
+
+    /**
+     * Time in milliseconds sending is paused for before probing Honeybadger again. (Default: 30 seconds)
+     */
+    private long circuitBreakerTimeout = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Directory undeliverable errors are spooled to and replayed from, disabled if <code>null</code>. (Default: null)
+     */
+    private File spoolDir;
+
+    /**
+     * Max size in bytes of the spool, the oldest errors are evicted when full. (Default: 64 MB)
+     */
+    private long spoolMaxSize = 64 * 1024 * 1024;
+
+    static final ContentType NDJSON = ContentType.create("application/x-ndjson", Consts.UTF_8);
+
+    /**
+     * Time in milliseconds the shutdown hook waits for the queued errors to be sent
+     */
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Interval in milliseconds between two checks of {@link #flush(long)}
+     */
+    private static final long FLUSH_POLL_INTERVAL = 10;
+
+    /**
+     * Domain of the metrics MBeans
+     */
+    public static final String MBEAN_DOMAIN = "com.workable.honeybadger";
+
+    /**
+     * Metrics registered under each MBean name by the clients of this class loader, guarded by the class lock, so that
+     * a client only unregisters its own MBean and not the one of the client that replaced it
+     */
+    private static final Map<ObjectName, HoneybadgerMetrics> MBEAN_OWNERS = new HashMap<>();
+
+    /**
+     * End-to-end time reported before the first send
+     */
+    private static final LatencyHistogram EMPTY_HISTOGRAM = new LatencyHistogram();
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final String apiKey;
+
+    private final Set<String> excludedExceptionClasses;
+    private final Set<String> excludedExceptionCauses;
+
+    private final JsonMarshaller marshaller;
+
+    /**
+     * Compiled from the excluded classes and causes, rebuilt when the matching options change
+     */
+    private volatile ExclusionFilter exclusionFilter;
+
+    /**
+     * Executor service in charge of sending errors asynchronously
+     */
+    private volatile ExecutorService executorService;
+
+    /**
+     * Closes the client when the JVM shuts down, removed by {@link #close(long)}
+     */
+    private Thread shutdownHook;
+
+    /**
+     * Set once the client is closed, errors reported afterwards being dropped
+     */
+    private volatile boolean closed;
+
+    /**
+     * Number of errors queued and not yet done with, either sent, handed over to the retries or dropped
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * Bounds the errors sent at the same time when dispatching on virtual threads, <code>null</code> otherwise
+     */
+    private volatile Semaphore inFlight;
+
+    /**
+     * Number of virtual threads waiting for an {@link #inFlight} permit
+     */
+    private final AtomicInteger waitingDispatches = new AtomicInteger();
+
+    /**
+     * Queue drained by the {@link BatchDispatcher}s when batching is enabled
+     */
+    private volatile BlockingQueue<EventDispatcher> batchQueue;
+
+    /**
+     * Ring drained by the {@link BatchDispatcher}s when enabled
+     */
+    private volatile RingBuffer errorRing;
+
+    /**
+     * Number of errors reported, excluded and queued
+     */
+    private final AtomicLong reported = new AtomicLong();
+    private final AtomicLong excluded = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+
+    /**
+     * Number of errors dropped because the queue was full
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Number of errors dropped on overflow, per {@link OverflowPolicy#ordinal()}
+     */
+    private final AtomicLongArray overflowDropped = new AtomicLongArray(OverflowPolicy.values().length);
+
+    /**
+     * Total size in bytes of the marshalled notices
+     */
+    private final AtomicLong marshalledBytes = new AtomicLong();
+
+    /**
+     * Time to marshall a notice
+     */
+    private final LatencyHistogram marshalTime = new LatencyHistogram();
+
+    /**
+     * Metrics of the client, registered as an MBean by {@link #registerMBean(String)}
+     */
+    private final HoneybadgerMetrics metrics = new HoneybadgerMetrics(this);
+
+    /**
+     * Name the {@link #metrics} are registered under, if any
+     */
+    private volatile ObjectName mbeanName;
+
+    /**
+     * Approximate size in bytes of the error snapshots waiting in the queue
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * Pooled HTTP transport shared by all dispatchers
+     */
+    private volatile HttpTransport transport;
+
+    /**
+     * Non-blocking HTTP transport, when enabled
+     */
+    private volatile AsyncHttpTransport asyncTransport;
+
+    /**
+     * Sends over the {@link #transport}, retrying failed attempts
+     */
+    private volatile RetryingSender sender;
+
+    /**
+     * Folds repeated errors into summaries, when aggregation is enabled
+     */
+    private volatile ErrorAggregator aggregator;
+
+    /**
+     * Sheds errors above the rate limits, when enabled
+     */
+    private volatile RateLimiter rateLimiter;
+
+    /**
+     * Samples errors, when enabled
+     */
+    private volatile Sampler sampler;
+
+    /**
+     * Default Constructor. <p>Options can be set via System properties</p>
+     */
+    public HoneybadgerClient() {
+        this(System.getProperty(HONEYBADGER_API_KEY_SYS_PROP_KEY));
+    }
+
+    /**
+     * Constructs a Client with the specified apiKey
+     *
+     * @param apiKey The Honeybadger API Key
+     */
+    public HoneybadgerClient(String apiKey) {
+        this(apiKey, System.getProperty(HONEYBADGER_EXCLUDED_PROPS_SYS_PROP_KEY),
+             System.getProperty(HONEYBADGER_EXCLUDED_CLASSES_SYS_PROP_KEY),
+                System.getProperty(HONEYBADGER_EXCLUDED_CAUSES_SYS_PROP_KEY));
+    }
+
+    /**
+     * Constructs a Client with specific options
+     *
+     * @param apiKey                   The Honeybadger API Key
+     * @param excludedSysProps         Comma delimited list of System properties that should be excluded from errors
+     *                                 dispatched
+     * @param excludedExceptionClasses Comma delimited list of Exceptions that should be ignored
+     */
+    public HoneybadgerClient(String apiKey, String excludedSysProps, String excludedExceptionClasses) {
+        this(apiKey, excludedSysProps, excludedExceptionClasses, null);
+    }
+
+    /**
+     * Constructs a Client with specific options
+     *
+     * @param apiKey                   The Honeybadger API Key
+     * @param excludedSysProps         Comma delimited list of System properties that should be excluded from errors
+     *                                 dispatched
+     * @param excludedExceptionClasses Comma delimited list of Exceptions that should be ignored
+     * @param excludedExceptionCauses  Comma delimited list of packages or classes that throw exceptions to ignore
+     */
+    public HoneybadgerClient(String apiKey, String excludedSysProps, String excludedExceptionClasses, String excludedExceptionCauses) {
+        this.apiKey = apiKey;
+        this.excludedExceptionClasses = buildExcludedClasses(excludedExceptionClasses);
+        this.excludedExceptionCauses = buildExcludedCauses(excludedExceptionCauses);
+        this.exclusionFilter = buildExclusionFilter();
+
+        this.marshaller = new JsonMarshaller(buildExcludedSysProps(excludedSysProps));
+    }
+
+    /**
+     * Reports the specific error to the Honebadger
+     */
+    public void reportError(Error error) {
+        reported.incrementAndGet();
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        // On the caller thread, so that excluded errors take no room in the queue
+        if (shouldExclude(error.getError())) {
+            excluded.incrementAndGet();
+            return;
+        }
+        report(error, aggregator(), false, null, false);
+    }
+
+    /**
+     * Reports an exception logged by the specified reporter, checking whether it is excluded or, unless aggregated or
+     * sampled first, rate limited before building the error. Meant for the hot path of logging appenders.
+     *
+     * @param throwable The exception to report
+     * @param reporter  The reporter of the error, e.g. the logger name
+     * @param message   Renders the message when first needed, on the dispatcher thread when dispatched asynchronously,
+     *                  or <code>null</code> to use the message of the exception
+     */
+    public void reportError(Throwable throwable, String reporter, Error.MessageRenderer message) {
+        reportError(throwable, reporter, message, null, true);
+    }
+
+    /**
+     * Same as {@link #reportError(Throwable, String, Error.MessageRenderer)} with an explicit MDC context, for
+     * appenders whose events do not outlive the call, e.g. events reused once appended or whose arguments may change
+     * once logged. The message is rendered on the calling thread, once the error is known not to be dropped.
+     *
+     * @param context The context of the error, kept as is until the error is dispatched, or <code>null</code> if none
+     */
+    public void reportError(Throwable throwable, String reporter, Error.MessageRenderer message,
+                            Map<String, String> context) {
+        reportError(throwable, reporter, message, context, false);
+    }
+
+    /**
+     * @param mdc <code>true</code> to take the context from the MDC of the current thread and defer the rendering of
+     *            the message, <code>false</code> to render it on the calling thread
+     */
+    private void reportError(Throwable throwable, String reporter, Error.MessageRenderer message,
+                             Map<String, String> context, boolean mdc) {
+        reported.incrementAndGet();
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (shouldExclude(throwable)) {
+            excluded.incrementAndGet();
+            return;
+        }
+
+        ErrorAggregator aggregator = aggregator();
+        boolean rateLimited = aggregator == null && sampler() == null;
+        if (rateLimited) {
+            RateLimiter rateLimiter = rateLimiter();
+            if (rateLimiter != null && !rateLimiter.tryAcquire(throwable, reporter)) {
+                return;
+            }
+        }
+
+        Error error = new Error(throwable);
+        error.setReporter(reporter);
+        error.setMessageRenderer(message);
+        report(error, aggregator, rateLimited,
+               mdc ? null : context == null ? Collections.<String, String>emptyMap() : context, !mdc);
+    }
+
+    /**
+     * Aggregates, samples and rate limits an error that is not excluded, then dispatches it.
+     *
+     * @param rateLimited <code>true</code> if the rate limits were already checked
+     * @param context     The MDC context of the error, or <code>null</code> for the MDC of the current thread
+     * @param render      <code>true</code> to render the message before returning if the error is not dropped
+     */
+    private void report(Error error, ErrorAggregator aggregator, boolean rateLimited, Map<String, String> context,
+                        boolean render) {
+        if (aggregator != null && !aggregator.accept(error, context)) {
+            return;
+        }
+
+        Sampler sampler = sampler();
+        if (sampler != null && !sampler.sample(error)) {
+            return;
+        }
+
+        RateLimiter rateLimiter = rateLimited ? null : rateLimiter();
+        if (rateLimiter != null && !rateLimiter.tryAcquire(error)) {
+            return;
+        }
+
+        if (render) {
+            error.getMessage();
+        }
+        if (async) {
+            enqueue(error, context == null ? MDC.getCopyOfContextMap() : context);
+        } else if (context == null) {
+            doDispatchError(error);
+        } else {
+            dispatchInContext(error, context);
+        }
+    }
+
+    /**
+     * Dispatches an error within the specified MDC context, bypassing aggregation and the per error rate limit.
+     */
+    void dispatch(Error error, Map<String, String> context) {
+        RateLimiter rateLimiter = rateLimiter();
+        if (rateLimiter != null && !rateLimiter.tryAcquire()) {
+            return;
+        }
+
+        if (async) {
+            enqueue(error, context);
+        } else {
+            dispatchInContext(error, context);
+        }
+    }
+
+    /**
+     * Queues a snapshot of the error, so that the queue does not keep the error nor its context alive.
+     */
+    private void enqueue(Error error, Map<String, String> context) {
+        if (executorService == null) {
+            synchronized (this) {
+                if (closed) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (executorService == null) {
+                    initExecutorService();
+                }
+            }
+        }
+
+        ErrorSnapshot snapshot;
+        try {
+            snapshot = ErrorSnapshot.capture(error, context, marshaller.getMaxFieldSize());
+        } catch (Exception e) {
+            logger.error("An exception occurred while capturing the error", new HoneybadgerException(e));
+            return;
+        }
+
+        EventDispatcher dispatcher = new EventDispatcher(snapshot);
+        outstanding.incrementAndGet();
+        queuedBytes.addAndGet(snapshot.size);
+        if (offer(dispatcher) || overflow(dispatcher)) {
+            queued.incrementAndGet();
+        }
+    }
+
+    /**
+     * Queues the dispatcher if there is room for it.
+     *
+     * @return <code>false</code> if the queue is full
+     */
+    private boolean offer(EventDispatcher dispatcher) {
+        RingBuffer errorRing = this.errorRing;
+        if (errorRing != null) {
+            return errorRing.offer(dispatcher.snapshot);
+        }
+        BlockingQueue<EventDispatcher> batchQueue = this.batchQueue;
+        if (batchQueue != null) {
+            return batchQueue.offer(dispatcher);
+        }
+
+        Semaphore inFlight = this.inFlight;
+        try {
+            if (inFlight == null) {
+                executorService.execute(dispatcher);
+                return true;
+            }
+            // A virtual thread per error, those waiting for a permit being the queue
+            if (waitingDispatches.incrementAndGet() > queueSize) {
+                waitingDispatches.decrementAndGet();
+                return false;
+            }
+            try {
+                executorService.execute(new InFlightDispatcher(dispatcher, inFlight));
+            } catch (RejectedExecutionException e) {
+                waitingDispatches.decrementAndGet();
+                throw e;
+            }
+            return true;
+        } catch (RejectedExecutionException e) {
+            // Full, or shut down which the overflow tells apart
+            return false;
+        }
+    }
+
+    /**
+     * Queues the dispatcher, waiting at most the specified time for room.
+     *
+     * @return <code>false</code> if the queue was still full after the timeout
+     */
+    private boolean offer(EventDispatcher dispatcher, long timeout) {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        BlockingQueue<EventDispatcher> batchQueue = this.batchQueue;
+        try {
+            if (batchQueue != null) {
+                return batchQueue.offer(dispatcher, nanos, TimeUnit.NANOSECONDS);
+            }
+            // The other queues do not signal room, poll them
+            long deadline = System.nanoTime() + nanos;
+            while (!offer(dispatcher)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || closed || Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                LockSupport.parkNanos(Math.min(remaining, OVERFLOW_PARK));
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Removes the oldest queued dispatcher.
+     *
+     * @return <code>null</code> if the queue is empty or its errors cannot be removed
+     */
+    private EventDispatcher pollOldest() {
+        RingBuffer errorRing = this.errorRing;
+        if (errorRing != null) {
+            RingBuffer.Entry entry = new RingBuffer.Entry();
+            return errorRing.poll(entry) ? new EventDispatcher(entry.snapshot) : null;
+        }
+        BlockingQueue<EventDispatcher> batchQueue = this.batchQueue;
+        if (batchQueue != null) {
+            return batchQueue.poll();
+        }
+        // Virtual threads waiting for a permit and injected executors, whose queue may hold other tasks, are not
+        // ours to remove
+        if (inFlight == null && executorService != externalExecutorService) {
+            return (EventDispatcher) ((ThreadPoolExecutor) executorService).getQueue().poll();
+        }
+        return null;
+    }
+
+    /**
+     * Handles an error the queue has no room for according to the {@link #overflowPolicy}.
+     *
+     * @return <code>true</code> if the error was queued after all
+     */
+    private boolean overflow(EventDispatcher dispatcher) {
+        if (closed || executorService.isShutdown()) {
+            discard(dispatcher);
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        OverflowPolicy policy = overflowPolicy;
+        switch (policy) {
+            case DROP_OLDEST:
+                EventDispatcher oldest;
+                while ((oldest = pollOldest()) != null) {
+                    discard(oldest);
+                    dropped(policy);
+                    if (offer(dispatcher)) {
+                        return true;
+                    }
+                }
+                // Nothing to make room with, drop the new error instead
+                break;
+            case BLOCK:
+                if (offer(dispatcher, overflowTimeout)) {
+                    return true;
+                }
+                break;
+            case CALLER_RUNS:
+                runOnCaller(dispatcher);
+                return false;
+            case SPILL:
+                spill(dispatcher);
+                return false;
+            default:
+                break;
+        }
+        discard(dispatcher);
+        dropped(policy);
+        return false;
+    }
+
+    /**
+     * Sends the error on the current thread with a single attempt bounded by the {@link #overflowTimeout}.
+     */
+    private void runOnCaller(EventDispatcher dispatcher) {
+        dequeued(dispatcher);
+        try {
+            byte[] json = dispatcher.marshall();
+            if (json == null || !sender().sendOnce(transport().getUri(), json, ContentType.APPLICATION_JSON,
+                                                   dispatcher.snapshot.queuedAt, overflowTimeout)) {
+                dropped(OverflowPolicy.CALLER_RUNS);
+            }
+        } catch (Exception e) {
+            logger.error("An exception occurred while dispatching the error", new HoneybadgerException(e));
+            dropped(OverflowPolicy.CALLER_RUNS);
+        } finally {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes the error to the spool on the current thread, dropping it if there is no spool.
+     */
+    private void spill(EventDispatcher dispatcher) {
+        dequeued(dispatcher);
+        try {
+            byte[] json = dispatcher.marshall();
+            if (json == null || !sender().spool(json)) {
+                dropped(OverflowPolicy.SPILL);
+            }
+        } finally {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Accounts for a dispatcher dropped from or before the queue.
+     */
+    private void discard(EventDispatcher dispatcher) {
+        dequeued(dispatcher);
+        outstanding.decrementAndGet();
+    }
+
+    private void dropped(OverflowPolicy policy) {
+        dropped.incrementAndGet();
+        overflowDropped.incrementAndGet(policy.ordinal());
+    }
+
+    /**
+     * Accounts for a dispatcher leaving the queue.
+     *
+     * @return <code>false</code> if the task was not a dispatcher
+     */
+    private boolean dequeued(Runnable task) {
+        if (task instanceof EventDispatcher) {
+            queuedBytes.addAndGet(-((EventDispatcher) task).snapshot.size);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Dispatches the error on the current thread, within the specified MDC context.
+     */
+    private void dispatchInContext(Error error, Map<String, String> context) {
+        Map<String, String> previous = MDC.getCopyOfContextMap();
+        setMdcContext(context);
+        try {
+            doDispatchError(error);
+        } catch (Exception e) {
+            logger.error("An exception occurred while dispatching the error", new HoneybadgerException(e));
+        } finally {
+            setMdcContext(previous);
+        }
+    }
+
+    private static void setMdcContext(Map<String, String> context) {
+        if (context == null) {
+            MDC.clear();
+        } else {
+            MDC.setContextMap(context);
+        }
+    }
+
+    /**
+     * Discards the cached server information (environment and system properties) sent along with every error. It is
+     * otherwise rebuilt only when the system properties change.
+     */
+    public void refreshServerInfo() {
+        marshaller.refresh();
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public void setQueueSize(int queueSize) {
+        if (queueSize > 0) {
+            this.queueSize = queueSize;
+        }
+    }
+
+    public void setRingBuffer(boolean ringBuffer) {
+        this.ringBuffer = ringBuffer;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy != null) {
+            this.overflowPolicy = overflowPolicy;
+        }
+    }
+
+    public void setOverflowTimeout(int overflowTimeout) {
+        if (overflowTimeout >= 0) {
+            this.overflowTimeout = overflowTimeout;
+        }
+    }
+
+    /**
+     * @return the number of errors reported, including those excluded, aggregated or rate limited
+     */
+    public long getReportedCount() {
+        return reported.get();
+    }
+
+    /**
+     * @return the number of errors ignored as excluded
+     */
+    public long getExcludedCount() {
+        return excluded.get();
+    }
+
+    /**
+     * @return the number of errors queued to be dispatched
+     */
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of errors dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of errors dropped by the specified overflow policy, e.g. those evicted by
+     * {@link OverflowPolicy#DROP_OLDEST} or timed out by {@link OverflowPolicy#BLOCK}
+     */
+    public long getDroppedCount(OverflowPolicy policy) {
+        return overflowDropped.get(policy.ordinal());
+    }
+
+    /**
+     * @return the number of errors waiting to be dispatched
+     */
+    public int getQueueDepth() {
+        if (errorRing != null) {
+            return errorRing.size();
+        }
+        if (batchQueue != null) {
+            return batchQueue.size();
+        }
+        if (inFlight != null) {
+            return waitingDispatches.get();
+        }
+        ExecutorService executorService = this.executorService;
+        return executorService instanceof ThreadPoolExecutor
+               ? ((ThreadPoolExecutor) executorService).getQueue().size()
+               : 0;
+    }
+
+    /**
+     * @return the approximate memory in bytes held by the errors waiting to be dispatched
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return the total size in bytes of the marshalled notices
+     */
+    public long getMarshalledBytes() {
+        return marshalledBytes.get();
+    }
+
+    /**
+     * @return the time taken to marshall the notices
+     */
+    public LatencyHistogram getMarshalTime() {
+        return marshalTime;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        if (maxThreads > 0) {
+            this.maxThreads = maxThreads;
+        }
+    }
+
+    public void setPriority(int priority) {
+        if (priority > 0) {
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Dispatches errors on virtual threads when the JVM supports them (Java 21+), at most {@link #setMaxInFlight(int)}
+     * at a time, so that blocking sends do not need a tuned number of threads. Falls back to platform threads on older
+     * JVMs.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sends errors with a non-blocking HTTP client: a dispatcher hands a notice over to the I/O thread and moves on to
+     * the next one, at most {@link #setMaxInFlight(int)} notices awaiting their response over the pooled connections.
+     * Requires <code>org.apache.httpcomponents:httpasyncclient</code> on the classpath.
+     */
+    public void setNioTransport(boolean nioTransport) {
+        this.nioTransport = nioTransport;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight > 0) {
+            this.maxInFlight = maxInFlight;
+        }
+    }
+
+    /**
+     * Dispatches errors on the specified executor instead of a pool created by the client. The client does not shut
+     * it down: errors it still holds at shutdown are neither sent nor spooled.
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.externalExecutorService = executorService;
+    }
+
+    /**
+     * Runs the retries, the spool tasks and the aggregation on the specified scheduler instead of threads created by
+     * the client. The client cancels its tasks on shutdown but does not shut it down.
+     */
+    public void setScheduledExecutorService(ScheduledExecutorService scheduledExecutorService) {
+        this.externalScheduler = scheduledExecutorService;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections > 0) {
+            this.maxConnections = maxConnections;
+        }
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        if (connectTimeout > 0) {
+            this.connectTimeout = connectTimeout;
+        }
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        if (socketTimeout > 0) {
+            this.socketTimeout = socketTimeout;
+        }
+    }
+
+    public void setKeepAlive(long keepAlive) {
+        if (keepAlive > 0) {
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize > 0) {
+            this.batchSize = batchSize;
+        }
+    }
+
+    public void setBatchLinger(long batchLinger) {
+        if (batchLinger > 0) {
+            this.batchLinger = batchLinger;
+        }
+    }
+
+    public void setBatchMaxBytes(int batchMaxBytes) {
+        if (batchMaxBytes > 0) {
+            this.batchMaxBytes = batchMaxBytes;
+        }
+    }
+
+    public void setAggregationWindow(long aggregationWindow) {
+        if (aggregationWindow >= 0) {
+            this.aggregationWindow = aggregationWindow;
+        }
+    }
+
+    public void setAggregationFrames(int aggregationFrames) {
+        if (aggregationFrames > 0) {
+            this.aggregationFrames = aggregationFrames;
+        }
+    }
+
+    public void setAggregationMaxFingerprints(int aggregationMaxFingerprints) {
+        if (aggregationMaxFingerprints > 0) {
+            this.aggregationMaxFingerprints = aggregationMaxFingerprints;
+        }
+    }
+
+    public void setRateLimit(double rateLimit) {
+        if (rateLimit >= 0) {
+            this.rateLimit = rateLimit;
+        }
+    }
+
+    public void setErrorRateLimit(double errorRateLimit) {
+        if (errorRateLimit >= 0) {
+            this.errorRateLimit = errorRateLimit;
+        }
+    }
+
+    public void setErrorRateLimitByFingerprint(boolean errorRateLimitByFingerprint) {
+        this.errorRateLimitByFingerprint = errorRateLimitByFingerprint;
+    }
+
+    public void setSampleRate(double sampleRate) {
+        if (sampleRate >= 0 && sampleRate <= 1) {
+            this.sampleRate = sampleRate;
+        }
+    }
+
+    /**
+     * Turns sampling adaptive for a second whenever more errors than the threshold were reported during the previous
+     * one: the first occurrence of every exception class is then kept and its repeats are kept with a probability
+     * halving every time they double. The sample rate of a reported error is recorded in its context.
+     */
+    public void setAdaptiveSamplingThreshold(double adaptiveSamplingThreshold) {
+        if (adaptiveSamplingThreshold >= 0) {
+            this.adaptiveSamplingThreshold = adaptiveSamplingThreshold;
+        }
+    }
+
+    /**
+     * Turns sampling adaptive whenever more errors than the specified depth are waiting in the queue, see
+     * {@link #setAdaptiveSamplingThreshold(double)}.
+     */
+    public void setAdaptiveSamplingQueueDepth(int adaptiveSamplingQueueDepth) {
+        if (adaptiveSamplingQueueDepth >= 0) {
+            this.adaptiveSamplingQueueDepth = adaptiveSamplingQueueDepth;
+        }
+    }
+
+    /**
+     * @return the number of errors dropped by the sampling
+     */
+    public long getSampledCount() {
+        Sampler sampler = this.sampler;
+        return sampler == null ? 0 : sampler.getSampled();
+    }
+
+    /**
+     * @return the number of errors shed by the overall rate limit
+     */
+    public long getRateLimitedCount() {
+        RateLimiter rateLimiter = this.rateLimiter;
+        return rateLimiter == null ? 0 : rateLimiter.getGloballyShed();
+    }
+
+    /**
+     * @return the number of errors shed by the per error rate limit
+     */
+    public long getErrorRateLimitedCount() {
+        RateLimiter rateLimiter = this.rateLimiter;
+        return rateLimiter == null ? 0 : rateLimiter.getErrorShed();
+    }
+
+    public void setExcludeSubclasses(boolean excludeSubclasses) {
+        this.excludeSubclasses = excludeSubclasses;
+        this.exclusionFilter = buildExclusionFilter();
+    }
+
+    public void setExcludeCauseChain(boolean excludeCauseChain) {
+        this.excludeCauseChain = excludeCauseChain;
+        this.exclusionFilter = buildExclusionFilter();
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold >= 0) {
+            this.compressionThreshold = compressionThreshold;
+        }
+    }
+
+    /**
+     * Sets the number of distinct stack traces whose rendered backtraces are cached, so that repeats of an error are
+     * not rendered again. (Default: 256, disabled when zero)
+     */
+    public void setBacktraceCacheSize(int backtraceCacheSize) {
+        if (backtraceCacheSize >= 0) {
+            marshaller.setBacktraceCacheSize(backtraceCacheSize);
+        }
+    }
+
+    /**
+     * Sets the max size in bytes of a notice. Above it, backtraces are elided from the middle and the system
+     * properties, request data, source and context are dropped in this order until it fits. (Default: 1 MB,
+     * unbounded when zero)
+     */
+    public void setMaxNoticeSize(int maxNoticeSize) {
+        if (maxNoticeSize >= 0) {
+            marshaller.setMaxNoticeSize(maxNoticeSize);
+        }
+    }
+
+    /**
+     * Sets the max size in bytes of a string of a notice, such as the message, a source line, a header or a context
+     * value, above which it is truncated. (Default: 64 KB, unbounded when zero)
+     */
+    public void setMaxFieldSize(int maxFieldSize) {
+        if (maxFieldSize >= 0) {
+            marshaller.setMaxFieldSize(maxFieldSize);
+        }
+    }
+
+    /**
+     * @return the number of errors whose rendered backtrace was found in the cache
+     */
+    public long getBacktraceCacheHits() {
+        return marshaller.getBacktraceCacheHits();
+    }
+
+    /**
+     * @return the number of errors whose backtrace had to be rendered
+     */
+    public long getBacktraceCacheMisses() {
+        return marshaller.getBacktraceCacheMisses();
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries >= 0) {
+            this.maxRetries = maxRetries;
+        }
+    }
+
+    public void setRetryBackoff(long retryBackoff) {
+        if (retryBackoff > 0) {
+            this.retryBackoff = retryBackoff;
+        }
+    }
+
+    public void setMaxRetryBackoff(long maxRetryBackoff) {
+        if (maxRetryBackoff > 0) {
+            this.maxRetryBackoff = maxRetryBackoff;
+        }
+    }
+
+    public void setMaxPendingRetries(int maxPendingRetries) {
+        if (maxPendingRetries >= 0) {
+            this.maxPendingRetries = maxPendingRetries;
+        }
+    }
+
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        if (circuitBreakerThreshold > 0) {
+            this.circuitBreakerThreshold = circuitBreakerThreshold;
+        }
+    }
+
+    public void setCircuitBreakerTimeout(long circuitBreakerTimeout) {
+        if (circuitBreakerTimeout > 0) {
+            this.circuitBreakerTimeout = circuitBreakerTimeout;
+        }
+    }
+
+    /**
+     * @return the number of retries scheduled for errors that failed to be sent
+     */
+    public long getRetriedCount() {
+        RetryingSender sender = this.sender;
+        return sender == null ? 0 : sender.getRetried();
+    }
+
+    /**
+     * @return the number of errors delivered to Honeybadger, not counting those replayed from the spool
+     */
+    public long getSentCount() {
+        RetryingSender sender = this.sender;
+        return sender == null ? 0 : sender.getSent();
+    }
+
+    /**
+     * @return the time from the queueing of the errors to their delivery to Honeybadger, retries included
+     */
+    public LatencyHistogram getEndToEndTime() {
+        RetryingSender sender = this.sender;
+        return sender == null ? EMPTY_HISTOGRAM : sender.getEndToEndTime();
+    }
+
+    /**
+     * @return the number of errors that could not be sent to Honeybadger
+     */
+    public long getFailedCount() {
+        RetryingSender sender = this.sender;
+        return sender == null ? 0 : sender.getFailed();
+    }
+
+    public void setSpoolDir(String spoolDir) {
+        this.spoolDir = isNullOrEmpty(spoolDir) ? null : new File(spoolDir.trim());
+    }
+
+    public void setSpoolMaxSize(long spoolMaxSize) {
+        if (spoolMaxSize > 0) {
+            this.spoolMaxSize = spoolMaxSize;
+        }
+    }
+
+    /**
+     * Starts replaying in the background the errors spooled by a previous run. Does nothing unless a spool directory
+     * is set.
+     */
+    public void replaySpool() {
+        if (spoolDir != null) {
+            sender();
+        }
+    }
+
+    /**
+     * @return the number of errors written to the spool
+     */
+    public long getSpooledCount() {
+        RetryingSender sender = this.sender;
+        return sender == null ? 0 : sender.getSpooled();
+    }
+
+    /**
+     * @return the number of spooled errors delivered to Honeybadger
+     */
+    public long getReplayedCount() {
+        RetryingSender sender = this.sender;
+        return sender == null ? 0 : sender.getReplayed();
+    }
+
+    /**
+     * Waits for the errors reported so far to be sent, including those awaiting their response or a retry. Pending
+     * aggregation summaries are dispatched right away.
+     *
+     * @param timeout Max time to wait in milliseconds
+     * @return <code>false</code> if errors were still pending after the timeout
+     */
+    public boolean flush(long timeout) {
+        ErrorAggregator aggregator = this.aggregator;
+        if (aggregator != null) {
+            aggregator.flush();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (!isIdle()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(FLUSH_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isIdle() {
+        RetryingSender sender = this.sender;
+        return outstanding.get() == 0 && (sender == null || (sender.getInFlight() == 0 && sender.getPending() == 0));
+    }
+
+    /**
+     * Stops the client, releasing its threads and connections: pending aggregation summaries are dispatched, then the
+     * queued errors are sent within the timeout, along with those awaiting their response. Errors left afterwards,
+     * including pending retries, are spooled if there is a spool and dropped otherwise, as are errors reported
+     * after the close. Injected executors are not shut down.
+     * <p>
+     * Called on JVM shutdown unless called before.
+     *
+     * @param timeout Max time to wait for the queued errors to be sent, in milliseconds
+     * @return <code>false</code> if errors were left when the timeout expired
+     */
+    public boolean close(long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        ExecutorService executorService;
+        synchronized (this) {
+            if (closed) {
+                return true;
+            }
+            // Summaries are dispatched before the executor stops accepting errors
+            ErrorAggregator aggregator = this.aggregator;
+            if (aggregator != null) {
+                aggregator.close();
+            }
+            closed = true;
+            executorService = this.executorService;
+            removeShutdownHook();
+        }
+
+        boolean drained = true;
+        if (executorService != null && executorService != externalExecutorService) {
+            drained = shutdown(executorService, remaining(deadline));
+        } else if (executorService != null) {
+            drained = flush(remaining(deadline));
+        }
+
+        RetryingSender sender = this.sender;
+        if (sender != null && sender.close(remaining(deadline)) > 0) {
+            drained = false;
+        }
+
+        HttpTransport transport = this.transport;
+        if (transport != null) {
+            transport.close();
+        }
+
+        AsyncHttpTransport asyncTransport = this.asyncTransport;
+        if (asyncTransport != null) {
+            asyncTransport.close();
+        }
+
+        unregisterMBean();
+        return drained;
+    }
+
+    private void removeShutdownHook() {
+        if (shutdownHook == null || Thread.currentThread() == shutdownHook) {
+            return;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down
+        }
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
 
     /**
-     * Max threads for asynchronous error dispatching. (Default: one)
+     * @return the metrics of the client
      */
-    private int maxThreads = 1;
+    public HoneybadgerMetrics getMetrics() {
+        return metrics;
+    }
 
     /**
-     * The thread priority of the asynchronous thread dispatchers. (Default Thread.MIN)
+     * Registers the {@link #getMetrics() metrics} of the client in the platform MBean server, as
+     * <code>com.workable.honeybadger:type=HoneybadgerClient,name=[name]</code>. A client previously registered under the
+     * same name, e.g. before a reconfiguration, is replaced.
      */
-    private int priority = Thread.MIN_PRIORITY;
+    public void registerMBean(String name) {
+        try {
+            ObjectName mbeanName = new ObjectName(MBEAN_DOMAIN + ":type=HoneybadgerClient,name="
+                                                  + ObjectName.quote(name == null ? "default" : name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            synchronized (HoneybadgerClient.class) {
+                if (server.isRegistered(mbeanName)) {
+                    server.unregisterMBean(mbeanName);
+                }
+                server.registerMBean(metrics, mbeanName);
+                MBEAN_OWNERS.put(mbeanName, metrics);
+            }
+            this.mbeanName = mbeanName;
+        } catch (JMException e) {
+            logger.error("Could not register the Honeybadger metrics MBean", new HoneybadgerException(e));
+        }
+    }
 
     /**
-     * The queue size of the asynchronous dispatching mechanism (Default: Integer.MAX)
+     * Unregisters the metrics of the client from the platform MBean server, unless another client replaced them since.
      */
-    private int queueSize = Integer.MAX_VALUE;
+    public void unregisterMBean() {
+        ObjectName mbeanName = this.mbeanName;
+        if (mbeanName == null) {
+            return;
+        }
+        this.mbeanName = null;
+        try {
+            synchronized (HoneybadgerClient.class) {
+                if (MBEAN_OWNERS.get(mbeanName) != metrics) {
+                    // Replaced by another client
+                    return;
+                }
+                MBEAN_OWNERS.remove(mbeanName);
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            }
+        } catch (InstanceNotFoundException e) {
+            // Unregistered by someone else
+        } catch (JMException e) {
+            logger.error("Could not unregister the Honeybadger metrics MBean", new HoneybadgerException(e));
+        }
+    }
+
+    public void setBatchUrl(String batchUrl) {
+        if (isNullOrEmpty(batchUrl)) {
+            this.batchUrl = null;
+            return;
+        }
+        try {
+            this.batchUrl = URI.create(batchUrl.trim());
+        } catch (IllegalArgumentException e) {
+            throw new HoneybadgerException("Honeybadger batch URL was not correctly formed: " + batchUrl, e);
+        }
+    }
 
 
     /**
-     * Timeout of the {@link #executorService}.
+     * Marshals and dispatched the specified error to the Honeybadger
      */
-    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
-    private final Logger logger = LoggerFactory.getLogger(getClass());
-    private final String apiKey;
-
-    private final Set<String> excludedExceptionClasses;
-    private final Set<String> excludedExceptionCauses;
-
-    private final JsonMarshaller marshaller;
+    protected void doDispatchError(Error error) {
+        long start = System.nanoTime();
+        byte[] json = marshaller.marshallBytes(error);
+        marshalled(start, json);
+        if (post(transport().getUri(), json, ContentType.APPLICATION_JSON, start) && logger.isTraceEnabled()) {
+            logger.trace("Honeybadger logged error correctly: {}", new String(json, Consts.UTF_8));
+        }
+    }
 
     /**
-     * Executor service in charge of sending errors asynchronously
+     * Dispatches a batch of marshalled errors, either as a single newline delimited request to the {@link #batchUrl}
+     * or one by one over the same pooled connection.
      */
-    private volatile ExecutorService executorService;
+    protected void doDispatchBatch(List<byte[]> batch) {
+        doDispatchBatch(batch, System.nanoTime());
+    }
 
     /**
-     * Default Constructor. <p>Options can be set via System properties</p>
+     * @param queuedAt The {@link System#nanoTime()} at which the oldest error of the batch was queued
      */
-    public HoneybadgerClient() {
-        this(System.getProperty(HONEYBADGER_API_KEY_SYS_PROP_KEY));
+    protected void doDispatchBatch(List<byte[]> batch, long queuedAt) {
+        if (batchUrl == null) {
+            URI uri = transport().getUri();
+            for (byte[] json : batch) {
+                post(uri, json, ContentType.APPLICATION_JSON, queuedAt);
+            }
+            return;
+        }
+
+        int size = 0;
+        for (byte[] json : batch) {
+            size += json.length + 1;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(size);
+        for (byte[] json : batch) {
+            body.write(json, 0, json.length);
+            body.write('\n');
+        }
+        if (post(batchUrl, body.toByteArray(), NDJSON, queuedAt)) {
+            logger.trace("Honeybadger logged a batch of {} errors correctly", batch.size());
+        }
     }
 
     /**
-     * Constructs a Client with the specified apiKey
+     * Posts the body to Honeybadger, scheduling retries if it fails.
      *
-     * @param apiKey The Honeybadger API Key
+     * @param queuedAt The {@link System#nanoTime()} at which the errors of the body were queued
+     * @return <code>true</code> if Honeybadger accepted the body at the first attempt
      */
-    public HoneybadgerClient(String apiKey) {
-        this(apiKey, System.getProperty(HONEYBADGER_EXCLUDED_PROPS_SYS_PROP_KEY),
-             System.getProperty(HONEYBADGER_EXCLUDED_CLASSES_SYS_PROP_KEY),
-                System.getProperty(HONEYBADGER_EXCLUDED_CAUSES_SYS_PROP_KEY));
+    private boolean post(URI uri, byte[] body, ContentType contentType, long queuedAt) {
+        return sender().send(uri, body, contentType, queuedAt);
     }
 
     /**
-     * Constructs a Client with specific options
-     *
-     * @param apiKey                   The Honeybadger API Key
-     * @param excludedSysProps         Comma delimited list of System properties that should be excluded from errors
-     *                                 dispatched
-     * @param excludedExceptionClasses Comma delimited list of Exceptions that should be ignored
+     * Accounts for a notice marshalled since the specified {@link System#nanoTime()}.
      */
-    public HoneybadgerClient(String apiKey, String excludedSysProps, String excludedExceptionClasses) {
-        this(apiKey, excludedSysProps, excludedExceptionClasses, null);
+    private void marshalled(long start, byte[] json) {
+        marshalTime.record(System.nanoTime() - start);
+        marshalledBytes.addAndGet(json.length);
     }
 
     /**
-     * Constructs a Client with specific options
-     *
-     * @param apiKey                   The Honeybadger API Key
-     * @param excludedSysProps         Comma delimited list of System properties that should be excluded from errors
-     *                                 dispatched
-     * @param excludedExceptionClasses Comma delimited list of Exceptions that should be ignored
-     * @param excludedExceptionCauses  Comma delimited list of packages or classes that throw exceptions to ignore
+     * Checks if the Exception should be excluded or not, e.g. before paying for the context of an error
+     * @param error
+     * @return
      */
-    public HoneybadgerClient(String apiKey, String excludedSysProps, String excludedExceptionClasses, String excludedExceptionCauses) {
-        this.apiKey = apiKey;
-        this.excludedExceptionClasses = buildExcludedClasses(excludedExceptionClasses);
-        this.excludedExceptionCauses = buildExcludedCauses(excludedExceptionCauses);
-
-        this.marshaller = new JsonMarshaller(buildExcludedSysProps(excludedSysProps));
+    public boolean shouldExclude(Throwable error){
+        return error != null && exclusionFilter.excludes(error);
     }
 
     /**
-     * Reports the specific error to the Honebadger
+     * Returns the shared HTTP transport, creating it on first use so that all options have been set.
      */
-    public void reportError(Error error) {
-        if (async) {
-            if (executorService == null) {
-                synchronized (this) {
-                    if (executorService == null) {
-                        initExecutorService();
-                    }
+    private HttpTransport transport() {
+        if (transport == null) {
+            synchronized (this) {
+                if (transport == null) {
+                    int dispatchers = virtualThreads && VirtualThreads.isSupported() ? maxInFlight : maxThreads;
+                    transport = new HttpTransport(honeybadgerUrl(), apiKey, Math.max(maxConnections, dispatchers),
+                                                  connectTimeout, socketTimeout, keepAlive,
+                                                  compression ? compressionThreshold : -1);
                 }
             }
-
-            executorService.submit(new EventDispatcher(error));
-        } else {
-            doDispatchError(error);
         }
+        return transport;
     }
 
-    public void setAsync(boolean async) {
-        this.async = async;
-    }
-
-    public void setQueueSize(int queueSize) {
-        if (queueSize > 0) {
-            this.queueSize = queueSize;
+    /**
+     * Returns the retrying sender, creating it on first use.
+     */
+    private RetryingSender sender() {
+        if (sender == null) {
+            HttpTransport transport = transport();
+            synchronized (this) {
+                if (sender == null) {
+                    CircuitBreaker circuitBreaker = new CircuitBreaker(circuitBreakerThreshold, circuitBreakerTimeout);
+                    sender = new RetryingSender(transport, asyncTransport(), circuitBreaker, maxRetries,
+                                                retryBackoff, maxRetryBackoff, maxPendingRetries, spool(),
+                                                externalScheduler == null
+                                                ? RetryingSender.newScheduler(priority)
+                                                : externalScheduler,
+                                                externalScheduler == null);
+                }
+            }
         }
+        return sender;
     }
 
-    public void setMaxThreads(int maxThreads) {
-        if (maxThreads > 0) {
-            this.maxThreads = maxThreads;
+    /**
+     * Returns the non-blocking transport, creating it on first use, or <code>null</code> if it is not enabled or the
+     * async HTTP client is missing.
+     */
+    private AsyncHttpTransport asyncTransport() {
+        if (!nioTransport) {
+            return null;
+        }
+        if (asyncTransport == null) {
+            synchronized (this) {
+                if (asyncTransport == null) {
+                    if (!AsyncHttpTransport.isAvailable()) {
+                        logger.warn("httpasyncclient is not on the classpath, sending errors with blocking requests.");
+                        nioTransport = false;
+                        return null;
+                    }
+                    // Without multiplexing, a connection carries one request at a time
+                    asyncTransport = new AsyncHttpTransport(honeybadgerUrl(), apiKey,
+                                                            maxConnections > 0 ? maxConnections : maxInFlight,
+                                                            maxInFlight, connectTimeout, socketTimeout, keepAlive,
+                                                            compression ? compressionThreshold : -1, priority);
+                }
+            }
         }
+        return asyncTransport;
     }
 
-    public void setPriority(int priority) {
-        if (priority > 0) {
-            this.priority = priority;
+    /**
+     * Opens the spool, if enabled.
+     */
+    private DiskSpool spool() {
+        if (spoolDir == null) {
+            return null;
+        }
+        try {
+            return new DiskSpool(spoolDir, spoolMaxSize);
+        } catch (IOException e) {
+            logger.error("Could not open the spool, undeliverable errors will be dropped", new HoneybadgerException(e));
+            return null;
         }
     }
 
-
     /**
-     * Marshals and dispatched the specified error to the Honeybadger
+     * Marshals and spools the errors that were never dispatched because of the shutdown.
      */
-    protected void doDispatchError(Error error) {
-        if (shouldExclude(error.getError())) {
+    private void spoolUndispatched(List<Runnable> tasks) {
+        RetryingSender sender = this.sender;
+        if (sender == null || spoolDir == null) {
             return;
         }
 
-        for (int retries = 0; retries < 3; retries++) {
-            try {
-                String json = marshaller.marshall(error);
-                HttpResponse response = sendToHoneybadger(json);
-
-                int responseCode = response.getStatusLine().getStatusCode();
-
-                if (responseCode != 201) {
-                    logger.error("Honeybadger did not respond with the " +
-                                 "correct code. Response was [{}]. Retries={}",
-                                 responseCode, retries);
-                } else {
-                    logger.trace("Honeybadger logged error correctly: {}",
-                            json);
-                    return;
-                }
-            } catch (IOException e) {
-                String msg = String.format("There was an error when trying " +
-                                           "to send the error to " +
-                                           "Honeybadger. Retries=%d", retries);
-                logger.error(msg, new HoneybadgerException(e));
+        List<EventDispatcher> dispatchers = new ArrayList<>();
+        for (Runnable task : tasks) {
+            if (task instanceof EventDispatcher) {
+                dispatchers.add((EventDispatcher) task);
+            }
+        }
+        BlockingQueue<EventDispatcher> batchQueue = this.batchQueue;
+        if (batchQueue != null) {
+            batchQueue.drainTo(dispatchers);
+        }
+        RingBuffer errorRing = this.errorRing;
+        if (errorRing != null) {
+            RingBuffer.Entry entry = new RingBuffer.Entry();
+            while (errorRing.poll(entry)) {
+                dispatchers.add(new EventDispatcher(entry.snapshot));
+            }
+        }
 
+        for (EventDispatcher dispatcher : dispatchers) {
+            dequeued(dispatcher);
+            byte[] json = dispatcher.marshall();
+            if (json != null) {
+                sender.spool(json);
             }
         }
+        if (!dispatchers.isEmpty()) {
+            logger.info("Spooled {} errors that were not sent before the shutdown.", dispatchers.size());
+        }
     }
 
     /**
-     * Checks if the Exception should be excluded or not
-     * @param error
-     * @return
+     * Returns the error aggregator, creating it on first use, or <code>null</code> if aggregation is disabled.
      */
-    protected boolean shouldExclude(Throwable error){
-
-        if (error == null){
-            return false;
+    private ErrorAggregator aggregator() {
+        if (aggregationWindow <= 0) {
+            return null;
         }
-
-        String errorClassName = error.getClass().getName();
-        if (!isNullOrEmpty(errorClassName)){
-            for (String className : excludedExceptionClasses){
-                if (errorClassName.startsWith(className)){
-                    return true;
+        if (aggregator == null) {
+            synchronized (this) {
+                if (aggregator == null) {
+                    aggregator = externalScheduler == null
+                                 ? new ErrorAggregator(this, aggregationWindow, aggregationFrames,
+                                                       aggregationMaxFingerprints, priority)
+                                 : new ErrorAggregator(this, aggregationWindow, aggregationFrames,
+                                                       aggregationMaxFingerprints, externalScheduler, false);
                 }
             }
         }
+        return aggregator;
+    }
 
-        if (!excludedExceptionCauses.isEmpty()) {
-            StackTraceElement[] stackTraceElements = error.getStackTrace();
-            if (stackTraceElements != null && stackTraceElements.length > 0) {
-                for (String className : excludedExceptionCauses) {
-                    if (stackTraceElements[0].getClassName().startsWith(className)) {
-                        return true;
-                    }
+    /**
+     * Returns the sampler, creating it on first use, or <code>null</code> if errors are neither sampled at a fixed rate
+     * nor adaptively.
+     */
+    private Sampler sampler() {
+        if (sampleRate >= 1 && adaptiveSamplingThreshold <= 0 && adaptiveSamplingQueueDepth <= 0) {
+            return null;
+        }
+        if (sampler == null) {
+            synchronized (this) {
+                if (sampler == null) {
+                    sampler = new Sampler(this, sampleRate, adaptiveSamplingThreshold, adaptiveSamplingQueueDepth);
                 }
             }
         }
-
-        return false;
+        return sampler;
     }
 
-
     /**
-     * Send an error encoded in JSON to the Honeybadger API.
-     *
-     * @param jsonError Error JSON payload
-     * @return Status code from the Honeybadger API
-     * @throws IOException thrown when a network was encountered
+     * Returns the rate limiter, creating it on first use, or <code>null</code> if no rate limit is set.
      */
-    private HttpResponse sendToHoneybadger(String jsonError) throws IOException {
-
-        HttpClient client = new DefaultHttpClient();
-        HttpPost post = new HttpPost(honeybadgerUrl());
-        StringEntity entity = new StringEntity(jsonError);
-        entity.setContentType(new BasicHeader("Content-Type", "application/json"));
-        post.setEntity(entity);
-        post.setHeader("X-API-Key", apiKey);
-        return client.execute(post, new BasicHttpContext());
+    private RateLimiter rateLimiter() {
+        if (rateLimit <= 0 && errorRateLimit <= 0) {
+            return null;
+        }
+        if (rateLimiter == null) {
+            synchronized (this) {
+                if (rateLimiter == null) {
+                    rateLimiter = new RateLimiter(rateLimit, errorRateLimit, errorRateLimitByFingerprint,
+                                                  aggregationFrames);
+                }
+            }
+        }
+        return rateLimiter;
     }
 
-
     /**
      * Finds the Honeybadger endpoint to send erros to.
      *
@@ -312,34 +1800,100 @@ public class HoneybadgerClient {
      */
     private void initExecutorService() {
 
-        BlockingDeque<Runnable> queue = new LinkedBlockingDeque<>(queueSize);
+        ExecutorService virtualExecutor = null;
+        if (virtualThreads && externalExecutorService == null) {
+            virtualExecutor = VirtualThreads.newThreadPerTaskExecutor("honeybadger-dispatcher-");
+            if (virtualExecutor == null) {
+                logger.info("Virtual threads are not supported by this JVM, dispatching on platform threads.");
+            }
+        }
+
+        final ExecutorService executorService;
+        if (batchSize > 1 || ringBuffer) {
+            // Dispatchers run for the lifetime of the executor and drain the queue themselves
+            if (externalExecutorService != null) {
+                executorService = externalExecutorService;
+            } else if (virtualExecutor != null) {
+                executorService = virtualExecutor;
+            } else {
+                executorService = new ThreadPoolExecutor(
+                    maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new DaemonThreadFactory(priority));
+            }
+            if (ringBuffer) {
+                this.errorRing = new RingBuffer(queueSize == Integer.MAX_VALUE
+                                                ? DEFAULT_RING_BUFFER_SIZE
+                                                : Math.min(queueSize, MAX_RING_BUFFER_SIZE));
+            } else {
+                this.batchQueue = new LinkedBlockingQueue<>(queueSize);
+            }
+            for (int i = 0; i < maxThreads; i++) {
+                executorService.execute(new BatchDispatcher(executorService));
+            }
+        } else if (externalExecutorService != null) {
+            executorService = externalExecutorService;
+        } else if (virtualExecutor != null) {
+            executorService = virtualExecutor;
+            this.inFlight = new Semaphore(maxInFlight);
+        } else {
+            BlockingDeque<Runnable> queue = new LinkedBlockingDeque<>(queueSize);
 
-        final ExecutorService executorService = new ThreadPoolExecutor(
-            maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS, queue,
-            new DaemonThreadFactory(priority), new ThreadPoolExecutor.DiscardOldestPolicy());
+            executorService = new ThreadPoolExecutor(
+                maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS, queue,
+                new DaemonThreadFactory(priority), new QueueFullPolicy());
+        }
 
         this.executorService = executorService;
 
-        Runtime.getRuntime().addShutdownHook(new Thread() {
+        shutdownHook = new Thread() {
 
             public void run() {
-                executorService.shutdown();
+                close(SHUTDOWN_TIMEOUT);
+            }
 
-                try {
-                    if (!executorService.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
-                        logger.warn("Graceful shutdown took too much time, forcing the shutdown.");
-                        List<Runnable> tasks = executorService.shutdownNow();
-                        logger.info("{} tasks failed to execute before the shutdown.", tasks.size());
-                    }
-                } catch (InterruptedException e) {
-                    logger.error("Graceful shutdown interrupted, forcing the shutdown.");
-                    List<Runnable> tasks = executorService.shutdownNow();
-                    logger.info("{} tasks failed to execute before the shutdown.", tasks.size());
-                }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Waits for the executor to dispatch the queued errors, spooling those left when it takes too long.
+     *
+     * @return <code>false</code> if errors were left
+     */
+    private boolean shutdown(ExecutorService executorService, long timeout) {
+        executorService.shutdown();
 
+        boolean drained = true;
+        try {
+            if (!executorService.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                logger.warn("Graceful shutdown took too much time, forcing the shutdown.");
+                List<Runnable> tasks = executorService.shutdownNow();
+                logger.info("{} tasks failed to execute before the shutdown.", tasks.size());
+                spoolUndispatched(tasks);
+                drained = false;
+            }
+        } catch (InterruptedException e) {
+            logger.error("Graceful shutdown interrupted, forcing the shutdown.");
+            List<Runnable> tasks = executorService.shutdownNow();
+            logger.info("{} tasks failed to execute before the shutdown.", tasks.size());
+            spoolUndispatched(tasks);
+            drained = false;
+        }
+
+        if (!drained && inFlight != null) {
+            // Give the interrupted virtual threads the time to spool their errors
+            try {
+                executorService.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }
+        return drained;
+    }
 
-        });
+    private ExclusionFilter buildExclusionFilter() {
+        return new ExclusionFilter(excludedExceptionClasses, excludedExceptionCauses, excludeSubclasses,
+                                   excludeCauseChain);
     }
 
     private Set<String> buildExcludedSysProps(String excluded) {
@@ -381,33 +1935,206 @@ public class HoneybadgerClient {
      */
     private final class EventDispatcher implements Runnable {
 
-        private final Error error;
-        private final Map<String, String> context;
+        private final ErrorSnapshot snapshot;
+
+        public EventDispatcher(ErrorSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
 
-        public EventDispatcher(Error error) {
-            this.error = error;
-            this.context = MDC.getCopyOfContextMap();;
+        /**
+         * @return the JSON of the error or <code>null</code> if the error could not be marshalled
+         */
+        public byte[] marshall() {
+            try {
+                long start = System.nanoTime();
+                byte[] json = marshaller.marshallBytes(snapshot);
+                marshalled(start, json);
+                return json;
+            } catch (Exception e) {
+                logger.error("An exception occurred while marshalling the error", new HoneybadgerException(e));
+                return null;
+            }
         }
 
         @Override
         public void run() {
-            Map<String, String> previous = MDC.getCopyOfContextMap();
-            setMdcContext(context);
+            dequeued(this);
             try {
-                doDispatchError(error);
+                byte[] json = marshall();
+                if (json != null && post(transport().getUri(), json, ContentType.APPLICATION_JSON, snapshot.queuedAt)
+                    && logger.isTraceEnabled()) {
+                    logger.trace("Honeybadger logged error correctly: {}", new String(json, Consts.UTF_8));
+                }
             } catch (Exception e) {
                 logger.error("An exception occurred while dispatching the error", new HoneybadgerException(e));
             } finally {
-                setMdcContext(previous);
+                outstanding.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Runs a dispatcher on its own virtual thread once an {@link #inFlight} permit is available.
+     */
+    private final class InFlightDispatcher implements Runnable {
+
+        private final EventDispatcher dispatcher;
+        private final Semaphore inFlight;
+
+        public InFlightDispatcher(EventDispatcher dispatcher, Semaphore inFlight) {
+            this.dispatcher = dispatcher;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public void run() {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                // Forced shutdown
+                waitingDispatches.decrementAndGet();
+                outstanding.decrementAndGet();
+                spoolUndispatched(Collections.<Runnable>singletonList(dispatcher));
+                return;
+            }
+            waitingDispatches.decrementAndGet();
+            try {
+                dispatcher.run();
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Long running dispatcher draining the {@link #batchQueue} or the {@link #errorRing} in batches of up to
+     * {@link #batchSize} errors, waiting at most {@link #batchLinger} milliseconds for a batch to fill up.
+     */
+    private final class BatchDispatcher implements Runnable {
+
+        private final ExecutorService executorService;
+
+        private final RingBuffer.Entry entry = new RingBuffer.Entry();
+
+        /**
+         * Error that did not fit in the previous batch due to {@link #batchMaxBytes}
+         */
+        private byte[] overflow;
+        private long overflowQueuedAt;
+
+        /**
+         * The {@link System#nanoTime()} at which the oldest error of the batch was queued
+         */
+        private long queuedAt;
+
+        public BatchDispatcher(ExecutorService executorService) {
+            this.executorService = executorService;
+        }
+
+        @Override
+        public void run() {
+            List<byte[]> batch = new ArrayList<>(Math.min(batchSize, 1024));
+
+            // Keep draining after a close or a shutdown until the queue is empty, an injected executor outliving the
+            // client
+            while (overflow != null || !(closed || executorService.isShutdown()) || !isQueueEmpty()) {
+                boolean interrupted = false;
+                try {
+                    fill(batch);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+
+                try {
+                    if (!batch.isEmpty()) {
+                        doDispatchBatch(batch, queuedAt);
+                    }
+                } catch (Exception e) {
+                    logger.error("An exception occurred while dispatching a batch of errors",
+                                 new HoneybadgerException(e));
+                } finally {
+                    outstanding.addAndGet(-batch.size());
+                    batch.clear();
+                }
+
+                if (interrupted) {
+                    return;
+                }
+            }
+        }
+
+        private void fill(List<byte[]> batch) throws InterruptedException {
+            int bytes = 0;
+            if (overflow != null) {
+                batch.add(overflow);
+                bytes = overflow.length;
+                queuedAt = overflowQueuedAt;
+                overflow = null;
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchLinger);
+            while (batch.size() < batchSize) {
+                EventDispatcher next = batch.isEmpty()
+                                       ? poll(TimeUnit.MILLISECONDS.toNanos(batchLinger))
+                                       : poll(deadline - System.nanoTime());
+                if (next == null) {
+                    return;
+                }
+                if (batch.isEmpty()) {
+                    // Linger from the first error of the batch onwards
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchLinger);
+                }
+
+                byte[] json = next.marshall();
+                if (json == null) {
+                    outstanding.decrementAndGet();
+                    continue;
+                }
+
+                if (!batch.isEmpty() && bytes + json.length > batchMaxBytes) {
+                    overflow = json;
+                    overflowQueuedAt = next.snapshot.queuedAt;
+                    return;
+                }
+                if (batch.isEmpty()) {
+                    queuedAt = next.snapshot.queuedAt;
+                }
+                batch.add(json);
+                bytes += json.length;
             }
         }
 
-        private void setMdcContext(Map<String, String> context) {
-            if (context == null) {
-                MDC.clear();
+        private EventDispatcher poll(long timeout) throws InterruptedException {
+            EventDispatcher dispatcher;
+            if (errorRing == null) {
+                dispatcher = batchQueue.poll(timeout, TimeUnit.NANOSECONDS);
+                if (dispatcher == null) {
+                    return null;
+                }
             } else {
-                MDC.setContextMap(context);
+                if (!errorRing.poll(entry, timeout, TimeUnit.NANOSECONDS)) {
+                    return null;
+                }
+                dispatcher = new EventDispatcher(entry.snapshot);
+                entry.snapshot = null;
             }
+            dequeued(dispatcher);
+            return dispatcher;
+        }
+
+        private boolean isQueueEmpty() {
+            return errorRing == null ? batchQueue.isEmpty() : errorRing.isEmpty();
+        }
+    }
+
+    /**
+     * Rejects the tasks the queue has no room for, leaving them to the {@link #overflowPolicy}.
+     */
+    private static final class QueueFullPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            throw QUEUE_FULL;
         }
     }
 
@@ -0,0 +1,162 @@
+package com.workable.honeybadger;
+
+/**
+ * Live metrics of a {@link HoneybadgerClient}, to monitor whether the reporting of errors keeps up: the errors
+ * reported, queued and dropped, the depth of the queue, the outcome of the sends and the time taken to marshall the
+ * notices and to deliver them from their queueing on.
+ * <p>
+ * Registered in the platform MBean server by {@link HoneybadgerClient#registerMBean(String)}.
+ */
+public class HoneybadgerMetrics implements HoneybadgerMetricsMBean {
+
+    private final HoneybadgerClient client;
+
+    HoneybadgerMetrics(HoneybadgerClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public long getReportedCount() {
+        return client.getReportedCount();
+    }
+
+    @Override
+    public long getExcludedCount() {
+        return client.getExcludedCount();
+    }
+
+    @Override
+    public long getRateLimitedCount() {
+        return client.getRateLimitedCount();
+    }
+
+    @Override
+    public long getErrorRateLimitedCount() {
+        return client.getErrorRateLimitedCount();
+    }
+
+    @Override
+    public long getSampledCount() {
+        return client.getSampledCount();
+    }
+
+    @Override
+    public long getQueuedCount() {
+        return client.getQueuedCount();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return client.getDroppedCount();
+    }
+
+    @Override
+    public long getDroppedNewestCount() {
+        return client.getDroppedCount(OverflowPolicy.DROP_NEWEST);
+    }
+
+    @Override
+    public long getDroppedOldestCount() {
+        return client.getDroppedCount(OverflowPolicy.DROP_OLDEST);
+    }
+
+    @Override
+    public long getBlockDroppedCount() {
+        return client.getDroppedCount(OverflowPolicy.BLOCK);
+    }
+
+    @Override
+    public long getCallerRunsDroppedCount() {
+        return client.getDroppedCount(OverflowPolicy.CALLER_RUNS);
+    }
+
+    @Override
+    public long getSpillDroppedCount() {
+        return client.getDroppedCount(OverflowPolicy.SPILL);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return client.getQueueDepth();
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return client.getQueuedBytes();
+    }
+
+    @Override
+    public long getMarshalledBytes() {
+        return client.getMarshalledBytes();
+    }
+
+    @Override
+    public long getSentCount() {
+        return client.getSentCount();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return client.getFailedCount();
+    }
+
+    @Override
+    public long getRetriedCount() {
+        return client.getRetriedCount();
+    }
+
+    @Override
+    public long getSpooledCount() {
+        return client.getSpooledCount();
+    }
+
+    @Override
+    public long getReplayedCount() {
+        return client.getReplayedCount();
+    }
+
+    @Override
+    public long getBacktraceCacheHits() {
+        return client.getBacktraceCacheHits();
+    }
+
+    @Override
+    public long getBacktraceCacheMisses() {
+        return client.getBacktraceCacheMisses();
+    }
+
+    @Override
+    public double getMarshalTimeMean() {
+        return client.getMarshalTime().getMean();
+    }
+
+    @Override
+    public double getMarshalTime99thPercentile() {
+        return client.getMarshalTime().getPercentile(99);
+    }
+
+    @Override
+    public double getMarshalTimeMax() {
+        return client.getMarshalTime().getMax();
+    }
+
+    @Override
+    public double getEndToEndTimeMean() {
+        return client.getEndToEndTime().getMean();
+    }
+
+    @Override
+    public double getEndToEndTime50thPercentile() {
+        return client.getEndToEndTime().getPercentile(50);
+    }
+
+    @Override
+    public double getEndToEndTime99thPercentile() {
+        return client.getEndToEndTime().getPercentile(99);
+    }
+
+    @Override
+    public double getEndToEndTimeMax() {
+        return client.getEndToEndTime().getMax();
+    }
+}
@@ -0,0 +1,65 @@
+package com.workable.honeybadger;
+
+/**
+ * Management interface of the {@link HoneybadgerMetrics}. Times are in milliseconds.
+ */
+public interface HoneybadgerMetricsMBean {
+
+    long getReportedCount();
+
+    long getExcludedCount();
+
+    long getRateLimitedCount();
+
+    long getErrorRateLimitedCount();
+
+    long getSampledCount();
+
+    long getQueuedCount();
+
+    long getDroppedCount();
+
+    long getDroppedNewestCount();
+
+    long getDroppedOldestCount();
+
+    long getBlockDroppedCount();
+
+    long getCallerRunsDroppedCount();
+
+    long getSpillDroppedCount();
+
+    int getQueueDepth();
+
+    long getQueuedBytes();
+
+    long getMarshalledBytes();
+
+    long getSentCount();
+
+    long getFailedCount();
+
+    long getRetriedCount();
+
+    long getSpooledCount();
+
+    long getReplayedCount();
+
+    long getBacktraceCacheHits();
+
+    long getBacktraceCacheMisses();
+
+    double getMarshalTimeMean();
+
+    double getMarshalTime99thPercentile();
+
+    double getMarshalTimeMax();
+
+    double getEndToEndTimeMean();
+
+    double getEndToEndTime50thPercentile();
+
+    double getEndToEndTime99thPercentile();
+
+    double getEndToEndTimeMax();
+}
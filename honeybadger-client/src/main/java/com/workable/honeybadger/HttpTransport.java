@@ -0,0 +1,254 @@
+package com.workable.honeybadger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared HTTP transport posting JSON payloads to the Honeybadger API.
+ * <p>
+ * Connections are pooled and kept alive between notices, so that consecutive errors reuse the same TCP connection
+ * (and TLS session) instead of opening a new one per request.
+ */
+public class HttpTransport {
+
+    private final URI uri;
+    private final String apiKey;
+    private final int compressionThreshold;
+    private final RequestConfig requestConfig;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * @param uri            The Honeybadger endpoint to post notices to
+     * @param apiKey         The Honeybadger API Key
+     * @param maxConnections Max pooled connections to the endpoint
+     * @param connectTimeout Connect timeout in milliseconds
+     * @param socketTimeout  Socket (read) timeout in milliseconds
+     * @param keepAlive      Max time in milliseconds an idle connection is kept alive
+     */
+    public HttpTransport(URI uri, String apiKey, int maxConnections, int connectTimeout, int socketTimeout,
+                         long keepAlive) {
+        this(uri, apiKey, maxConnections, connectTimeout, socketTimeout, keepAlive, -1);
+    }
+
+    /**
+     * @param uri                  The Honeybadger endpoint to post notices to
+     * @param apiKey               The Honeybadger API Key
+     * @param maxConnections       Max pooled connections to the endpoint
+     * @param connectTimeout       Connect timeout in milliseconds
+     * @param socketTimeout        Socket (read) timeout in milliseconds
+     * @param keepAlive            Max time in milliseconds an idle connection is kept alive
+     * @param compressionThreshold Min size in bytes of a body to be gzip compressed, or -1 to never compress
+     */
+    public HttpTransport(URI uri, String apiKey, int maxConnections, int connectTimeout, int socketTimeout,
+                         long keepAlive, int compressionThreshold) {
+        this.uri = uri;
+        this.apiKey = apiKey;
+        this.compressionThreshold = compressionThreshold;
+
+        this.connectionManager = new PoolingHttpClientConnectionManager(keepAlive, TimeUnit.MILLISECONDS);
+        this.connectionManager.setMaxTotal(maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute(maxConnections);
+        this.connectionManager.setValidateAfterInactivity(1000);
+
+        this.requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setConnectionRequestTimeout(connectTimeout)
+            .setSocketTimeout(socketTimeout)
+            .build();
+
+        this.httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(new BoundedKeepAliveStrategy(keepAlive))
+            .evictExpiredConnections()
+            .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+            .disableCookieManagement()
+            .build();
+    }
+
+    /**
+     * Posts the specified UTF-8 encoded JSON payload to Honeybadger.
+     *
+     * @param json Error JSON payload
+     * @return Response from the Honeybadger API
+     * @throws IOException thrown when a network error was encountered
+     */
+    public Response send(byte[] json) throws IOException {
+        return send(uri, json, ContentType.APPLICATION_JSON);
+    }
+
+    /**
+     * Posts the specified body to an arbitrary Honeybadger compatible endpoint over the pooled connections. Bodies over
+     * the compression threshold are sent gzip compressed, unless compression does not make them smaller.
+     *
+     * @param uri         The endpoint to post to
+     * @param body        The request body
+     * @param contentType The content type of the body
+     * @return Response from the endpoint
+     * @throws IOException thrown when a network error was encountered
+     */
+    public Response send(URI uri, byte[] body, ContentType contentType) throws IOException {
+        return send(uri, body, contentType, null);
+    }
+
+    /**
+     * Posts the specified body, waiting no longer than the specified timeout for a pooled connection, to connect and
+     * for the response when shorter than the configured ones.
+     *
+     * @param timeout Timeout in milliseconds
+     * @see #send(URI, byte[], ContentType)
+     */
+    Response send(URI uri, byte[] body, ContentType contentType, int timeout) throws IOException {
+        return send(uri, body, contentType, RequestConfig.copy(requestConfig)
+            .setConnectTimeout(Math.min(timeout, requestConfig.getConnectTimeout()))
+            .setConnectionRequestTimeout(Math.min(timeout, requestConfig.getConnectionRequestTimeout()))
+            .setSocketTimeout(Math.min(timeout, requestConfig.getSocketTimeout()))
+            .build());
+    }
+
+    private Response send(URI uri, byte[] body, ContentType contentType, RequestConfig config) throws IOException {
+        HttpPost post = new HttpPost(uri);
+        post.setHeader("X-API-Key", apiKey);
+        if (config != null) {
+            post.setConfig(config);
+        }
+
+        GzipCompressor compressor = null;
+        if (compressionThreshold >= 0 && body.length >= compressionThreshold) {
+            compressor = GzipCompressor.get();
+            int size = compressor.compress(body);
+            if (size < body.length) {
+                ByteArrayEntity entity = new ByteArrayEntity(compressor.buffer(), 0, size, contentType);
+                entity.setContentEncoding("gzip");
+                post.setEntity(entity);
+            }
+        }
+        if (post.getEntity() == null) {
+            post.setEntity(new ByteArrayEntity(body, contentType));
+        }
+
+        try {
+            CloseableHttpResponse response = httpClient.execute(post);
+            try {
+                return new Response(response.getStatusLine().getStatusCode(),
+                                    retryAfter(response.getFirstHeader(HttpHeaders.RETRY_AFTER)));
+            } finally {
+                // Fully read the body so the connection can be returned to the pool
+                EntityUtils.consumeQuietly(response.getEntity());
+                response.close();
+            }
+        } finally {
+            // The compressed body is only valid until the compressor is released
+            if (compressor != null) {
+                compressor.release();
+            }
+        }
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * Closes the transport along with all its pooled connections.
+     */
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            connectionManager.shutdown();
+        }
+    }
+
+    /**
+     * Parses a Retry-After header, either in seconds or as an HTTP date.
+     *
+     * @return the delay in milliseconds or -1 if absent or invalid
+     */
+    static long retryAfter(Header header) {
+        if (header == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Status and retry directive of a response.
+     */
+    public static final class Response {
+
+        private final int statusCode;
+        private final long retryAfter;
+
+        public Response(int statusCode, long retryAfter) {
+            this.statusCode = statusCode;
+            this.retryAfter = retryAfter;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * @return the delay in milliseconds requested by the server before retrying, or -1
+         */
+        public long getRetryAfter() {
+            return retryAfter;
+        }
+
+        public boolean isSuccessful() {
+            return statusCode / 100 == 2;
+        }
+
+        /**
+         * @return <code>true</code> if the request may succeed later (throttled, timed out or server error)
+         */
+        public boolean isRetryable() {
+            return statusCode == 408 || statusCode == 429 || statusCode / 100 == 5;
+        }
+    }
+
+    /**
+     * Honors the Keep-Alive header of the server but never keeps a connection longer than the configured value.
+     */
+    static final class BoundedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        private final long keepAlive;
+
+        BoundedKeepAliveStrategy(long keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+        }
+    }
+}
@@ -1,10 +1,9 @@
 package com.workable.honeybadger;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-
-import com.workable.honeybadger.servlet .HttpServletRequestInfoGenerator;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,25 +11,112 @@ import org.slf4j.MDC;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Utility class responsible to serialize to json compatible with the Honeybadger API.
+ * <p>
+ * The JSON is streamed as UTF-8 straight into a pooled buffer, without building an intermediate tree. The
+ * "notifier" and "server" blocks are serialized once and spliced into every notice; the latter is rebuilt when
+ * properties are added or removed, when their values change (checked at most once a second) or on {@link #refresh()}.
+ * <p>
+ * Notices are bounded as they are written: long strings are truncated, backtraces are elided from the middle and, as
+ * a last resort, whole sections are dropped by priority; see {@link #setMaxNoticeSize(int)}.
  */
 public class JsonMarshaller {
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Buffers above this size are not kept for reuse, so that a single huge error does not stay in memory
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+
+    private static final Pool<Utf8Buffer> BUFFERS = new Pool<>(Pool.DEFAULT_SIZE);
+
+    private static final byte[] NOTIFIER = fragment("{\"notifier\":"
+                                                    + "{\"name\":\"workable-honeybadger-java\",\"version\":\"1.3.0\"}");
+
+    private static final byte[] ERROR = fragment(",\"error\":");
+
+    private static final byte[] REQUEST = fragment(",\"request\":");
+
+    private static final byte[] SERVER = fragment(",\"server\":");
+
+    /**
+     * Default number of stack traces whose rendered blocks are cached
+     */
+    static final int DEFAULT_BACKTRACE_CACHE_SIZE = 256;
+
+    static final int DEFAULT_MAX_NOTICE_SIZE = 1024 * 1024;
+
+    static final int DEFAULT_MAX_FIELD_SIZE = 64 * 1024;
+
+    /*
+      Sections of a notice that are dropped, in this order, when it exceeds its max size
+    */
+    private static final int SYSTEM_PROPERTIES = 0;
+    private static final int REQUEST_DATA = 1;
+    private static final int SOURCE = 2;
+    private static final int CONTEXT = 3;
+    private static final int SECTIONS = 4;
+
+    /**
+     * Estimated size of the JSON syntax around a backtrace frame and a source line
+     */
+    private static final int FRAME_OVERHEAD = 40;
+    private static final int LINE_OVERHEAD = 10;
+
+    /**
+     * Frames of the cause written to the backtrace
+     */
+    private static final int CAUSE_FRAMES = 2;
+
+    /**
+     * Min interval between comparing the hash codes of the system properties, which walks all of them
+     */
+    private static final long PROPERTIES_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final String hostname;
     private final String runtimeRoot;
     private final Set<String> excludedSysProps;
 
+    private volatile ServerFragment server;
+
+    /**
+     * Time after which the values of the system properties are compared again, see {@link System#nanoTime()}
+     */
+    private volatile long nextPropertiesCheck;
+
+    /**
+     * Rendered backtraces of recent stack traces, disabled if <code>null</code>
+     */
+    private volatile BacktraceCache backtraceCache = new BacktraceCache(DEFAULT_BACKTRACE_CACHE_SIZE);
+
+    private volatile int backtraceCacheSize = DEFAULT_BACKTRACE_CACHE_SIZE;
+
+    /**
+     * Max size in bytes of a notice, unbounded if 0
+     */
+    private volatile int maxNoticeSize = DEFAULT_MAX_NOTICE_SIZE;
+
+    /**
+     * Max size in bytes of a string value, unbounded if 0
+     */
+    private volatile int maxFieldSize = DEFAULT_MAX_FIELD_SIZE;
+
     /**
      *
      * @param excludedSysProps
@@ -42,179 +128,560 @@ public class JsonMarshaller {
     }
 
     public String marshall(Error error) {
+        return new String(marshallBytes(error), UTF_8);
+    }
 
-        Gson myGson = new Gson();
-        JsonObject jsonError = new JsonObject();
-        jsonError.add("notifier", makeNotifier());
-        jsonError.add("error", makeError(error));
-        jsonError.add("request", makeRequest(error));
+    /**
+     * Serializes the error to UTF-8 encoded JSON, within the MDC context of the current thread.
+     */
+    public byte[] marshallBytes(Error error) {
+        return marshallBytes(ErrorSnapshot.capture(error, MDC.getCopyOfContextMap(), maxFieldSize));
+    }
+
+    /**
+     * Serializes the snapshot of an error to UTF-8 encoded JSON.
+     */
+    byte[] marshallBytes(ErrorSnapshot error) {
+        Utf8Buffer buffer = BUFFERS.poll();
+        if (buffer == null) {
+            buffer = new Utf8Buffer();
+        }
+        try {
+            write(error, buffer);
+            return buffer.toByteArray();
+        } catch (IOException e) {
+            // The buffer never throws
+            throw new HoneybadgerException(e);
+        } finally {
+            if (buffer.capacity() <= MAX_POOLED_BUFFER_SIZE) {
+                buffer.reset();
+                BUFFERS.offer(buffer);
+            }
+        }
+    }
 
-        jsonError.add("server", makeServer());
+    /**
+     * Discards the cached "server" block, so that it is rebuilt for the next error.
+     */
+    public void refresh() {
+        server = null;
+    }
 
-        return myGson.toJson(jsonError);
+    /**
+     * Sets the number of stack traces whose rendered backtraces are cached, discarding the current cache.
+     *
+     * @param size the max number of cached stack traces, or 0 to disable the cache
+     */
+    public void setBacktraceCacheSize(int size) {
+        backtraceCacheSize = size;
+        backtraceCache = size > 0 ? new BacktraceCache(size) : null;
     }
 
-    private JsonObject makeRequest(Error error) {
+    /**
+     * Sets the max size of a notice. Above it, the system properties, the request data, the source and the context
+     * are dropped in this order until the notice fits; backtraces and sources are elided from the middle to fit in a
+     * quarter of it each.
+     *
+     * @param maxNoticeSize the max size in bytes, or 0 for unbounded notices
+     */
+    public void setMaxNoticeSize(int maxNoticeSize) {
+        this.maxNoticeSize = maxNoticeSize;
+        setBacktraceCacheSize(backtraceCacheSize);
+    }
 
-        JsonObject request = new JsonObject();
+    /**
+     * Sets the max size of the string values of a notice (messages, source lines, request data and context), above
+     * which they are truncated.
+     *
+     * @param maxFieldSize the max size in UTF-8 bytes, or 0 for unbounded values
+     */
+    public void setMaxFieldSize(int maxFieldSize) {
+        this.maxFieldSize = maxFieldSize;
+        setBacktraceCacheSize(backtraceCacheSize);
+    }
 
-        try {
-            Class.forName("javax.servlet.http.HttpServletRequest");
-            RequestInfoGenerator<?> generator =
-                new HttpServletRequestInfoGenerator();
-            request = generator.routeRequest(error.getContext());
-        } catch (ClassNotFoundException e) {
-            // silent catch
-        }
+    /**
+     * @return the max size of the string values of a notice, which the messages of the errors are clipped to when
+     * captured
+     */
+    int getMaxFieldSize() {
+        return maxFieldSize;
+    }
 
-        request.add("context", context());
-        request.addProperty("component", error.getReporter());
-        request.addProperty("action", methodName(error.getError()));
+    /**
+     * @return the number of errors whose backtrace was found in the cache
+     */
+    public long getBacktraceCacheHits() {
+        BacktraceCache cache = backtraceCache;
+        return cache == null ? 0 : cache.getHits();
+    }
 
-        return request;
+    /**
+     * @return the number of errors whose backtrace had to be rendered
+     */
+    public long getBacktraceCacheMisses() {
+        BacktraceCache cache = backtraceCache;
+        return cache == null ? 0 : cache.getMisses();
     }
 
-    /*
-      Format the throwable into a json object
-    */
-    private JsonObject makeError(Error error) {
+    private void write(ErrorSnapshot error, Utf8Buffer buffer) throws IOException {
+        ServerFragment server = serverFragment();
+        int maxFieldSize = this.maxFieldSize;
+
+        // Start and end of the contents of the sections that can be dropped
+        int[] sections = new int[SECTIONS * 2];
+        Arrays.fill(sections, -1);
+
+        buffer.write(NOTIFIER);
+
+        // Each block is written as a standalone value, so that they can be spliced between the cached fragments
+        buffer.write(ERROR);
+        JsonWriter writer = newJsonWriter(buffer);
+        writer.beginObject();
+        writer.name("class").value(error.className);
+        // Clipped when captured
+        writer.name("message").value(error.message());
+        writer.endObject();
+        writer.flush();
+        buffer.set(buffer.size() - 1, (byte) ',');
+        Backtrace backtrace = backtrace(error);
+        mark(sections, SOURCE, buffer.size() + backtrace.sourceStart, buffer.size() + backtrace.sourceEnd);
+        buffer.write(backtrace.bytes);
+
+        buffer.write(REQUEST);
+        writer = newJsonWriter(buffer);
+        writeRequest(error, writer, buffer, sections, maxFieldSize);
+        writer.flush();
+
+        buffer.write(SERVER);
+        mark(sections, SYSTEM_PROPERTIES, buffer.size() + server.propertiesStart,
+             buffer.size() + server.propertiesEnd);
+        buffer.write(server.bytes);
+        buffer.write('}');
+
+        int maxNoticeSize = this.maxNoticeSize;
+        if (maxNoticeSize > 0 && buffer.size() > maxNoticeSize) {
+            drop(buffer, sections, maxNoticeSize);
+        }
+    }
 
-        Throwable throwable = error.getError();
+    private static void mark(int[] sections, int section, int start, int end) {
+        sections[section * 2] = start;
+        sections[section * 2 + 1] = end;
+    }
 
-        JsonObject jsonError = new JsonObject();
-        jsonError.addProperty("class", throwable.getClass().getName());
-        jsonError.addProperty("message", error.getMessage() == null ? throwable.getMessage() : error.getMessage());
+    /**
+     * Drops the contents of the sections in priority order until the notice fits in its max size, leaving a marker
+     * with the number of bytes dropped.
+     */
+    private static void drop(Utf8Buffer buffer, int[] sections, int maxNoticeSize) {
+        for (int section = 0; section < SECTIONS; section++) {
+            int start = sections[section * 2];
+            int end = sections[section * 2 + 1];
+            if (buffer.size() <= maxNoticeSize) {
+                return;
+            }
+            if (start < 0 || start == end) {
+                continue;
+            }
 
-        JsonArray backTrace = new JsonArray();
-        populateTraceElements(throwable, backTrace, false);
+            // The request data has no enclosing object of its own, so it goes without a marker
+            byte[] marker = section == REQUEST_DATA
+                            ? new byte[0] : fragment("\"truncated\":\"" + (end - start) + " bytes\"");
+            buffer.replace(start, end, marker);
+            int shift = marker.length - (end - start);
+            for (int i = 0; i < sections.length; i++) {
+                if (sections[i] >= end) {
+                    sections[i] += shift;
+                }
+            }
+            mark(sections, section, -1, -1);
+        }
+    }
 
-        if (throwable.getCause() != null){
-            JsonObject causedByElement = traceElement(0, "Caused by: " + throwable.getCause().getClass().getName() + ": " + throwable.getCause().getMessage(), ".");
-            backTrace.add(causedByElement);
-            populateTraceElements(throwable.getCause(), backTrace, true);
+    /**
+     * Returns the "backtrace" and "source" members of the error block, up to the end of the block, rendering them
+     * unless they are cached.
+     */
+    private Backtrace backtrace(ErrorSnapshot error) throws IOException {
+        BacktraceCache cache = backtraceCache;
+        Backtrace backtrace = cache == null ? null : cache.get(error);
+        if (backtrace != null) {
+            return backtrace;
         }
 
-        jsonError.add("backtrace", backTrace);
+        int allowance = maxNoticeSize / 4;
+
+        Utf8Buffer buffer = new Utf8Buffer();
+        JsonWriter writer = newJsonWriter(buffer);
+        writer.beginObject();
+        writeBacktrace(error, writer, allowance);
+
+        writer.name("source");
+        writer.beginObject();
+        writer.flush();
+        int sourceStart = buffer.size();
+        writeStacktrace(error, writer, allowance);
+        writer.flush();
+        int sourceEnd = buffer.size();
+        writer.endObject();
+
+        writer.endObject();
+        writer.flush();
+
+        // Without the opening brace
+        backtrace = new Backtrace(Arrays.copyOfRange(buffer.toByteArray(), 1, buffer.size()), sourceStart - 1,
+                                  sourceEnd - 1);
+        if (cache != null) {
+            cache.put(error, backtrace);
+        }
+        return backtrace;
+    }
 
-        JsonObject sourceElement = new JsonObject();
+    /**
+     * Returns the cached "server" block, rebuilding it if the system properties have changed since.
+     * <p>
+     * Added and removed properties are noticed on the next error, changed values within
+     * {@link #PROPERTIES_CHECK_INTERVAL}, so that hashing all the properties does not add to every notice.
+     */
+    private ServerFragment serverFragment() {
+        Properties properties = System.getProperties();
+        int size = properties.size();
+
+        ServerFragment server = this.server;
+        long now = System.nanoTime();
+        if (server != null && server.properties == properties && server.size == size
+            && now - nextPropertiesCheck < 0) {
+            return server;
+        }
+        nextPropertiesCheck = now + PROPERTIES_CHECK_INTERVAL;
 
-        appendStacktraceToJsonElement(throwable, sourceElement);
+        int hashCode = properties.hashCode();
+        if (server == null || !server.isFor(properties, size, hashCode)) {
+            server = buildServerFragment(properties, size, hashCode);
+            this.server = server;
+        }
+        return server;
+    }
 
-        jsonError.add("source", sourceElement);
+    private ServerFragment buildServerFragment(Properties properties, int size, int hashCode) {
+        Utf8Buffer buffer = new Utf8Buffer();
+        try {
+            JsonWriter writer = newJsonWriter(buffer);
+            writer.beginObject();
+            writer.name("environment_name").value(environment());
+            writer.name("hostname").value(hostname);
+            writer.name("runtime_root").value(runtimeRoot);
+            writer.name("system_properties");
+            writer.beginObject();
+            writer.flush();
+            int propertiesStart = buffer.size();
+            writeSystemProperties(writer);
+            writer.flush();
+            int propertiesEnd = buffer.size();
+            writer.endObject();
+            writer.endObject();
+            writer.flush();
+            return new ServerFragment(properties, size, hashCode, buffer.toByteArray(), propertiesStart,
+                                      propertiesEnd);
+        } catch (IOException e) {
+            // The buffer never throws
+            throw new HoneybadgerException(e);
+        }
+    }
 
-        return jsonError;
+    private static JsonWriter newJsonWriter(Writer out) {
+        JsonWriter writer = new JsonWriter(out);
+        // Same settings as Gson's defaults
+        writer.setLenient(true);
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+        return writer;
     }
 
-    private void populateTraceElements(Throwable throwable, JsonArray backTrace, boolean cause){
+    private static byte[] fragment(String json) {
+        return json.getBytes(UTF_8);
+    }
 
-        int count = 0;
-        for (StackTraceElement trace : throwable.getStackTrace()) {
+    private void writeRequest(ErrorSnapshot error, JsonWriter writer, Utf8Buffer buffer, int[] sections,
+                              int maxFieldSize) throws IOException {
+        writer.beginObject();
+        writer.flush();
+        int dataStart = buffer.size();
+        if (error.request != null) {
+            for (Map.Entry<String, JsonElement> entry : error.request.entrySet()) {
+                writer.name(entry.getKey());
+                writeJson(entry.getValue(), writer, maxFieldSize);
+            }
+        }
+        writer.flush();
+        int dataEnd = buffer.size();
+        // Along with the comma preceding the context
+        mark(sections, REQUEST_DATA, dataStart, dataEnd > dataStart ? dataEnd + 1 : dataEnd);
+
+        writer.name("context");
+        writer.beginObject();
+        writer.flush();
+        int contextStart = buffer.size();
+        writeContext(error, writer, maxFieldSize);
+        writer.flush();
+        mark(sections, CONTEXT, contextStart, buffer.size());
+        writer.endObject();
+
+        writer.name("component").value(error.reporter);
+        writer.name("action").value(error.action());
+        writer.endObject();
+    }
 
-            String fileName = (cause ? "  " : "") + trace.getFileName();
-            JsonObject jsonTraceElement = traceElement(trace.getLineNumber(),
-                                                       fileName,
-                                                       String.format("%s.%s",trace.getClassName(), trace.getMethodName()));
-            if (cause && ++count == 3){
-                backTrace.add(traceElement(0, String.format("... %d more", throwable.getStackTrace().length - count), "." ));
-                break;
+    /**
+     * Writes a JSON tree as Gson does, clipping its strings.
+     */
+    private static void writeJson(JsonElement element, JsonWriter writer, int maxFieldSize) throws IOException {
+        if (element == null || element.isJsonNull()) {
+            writer.nullValue();
+        } else if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isNumber()) {
+                writer.value(primitive.getAsNumber());
+            } else if (primitive.isBoolean()) {
+                writer.value(primitive.getAsBoolean());
+            } else {
+                writer.value(clip(primitive.getAsString(), maxFieldSize));
+            }
+        } else if (element.isJsonArray()) {
+            writer.beginArray();
+            for (JsonElement item : element.getAsJsonArray()) {
+                writeJson(item, writer, maxFieldSize);
+            }
+            writer.endArray();
+        } else {
+            writer.beginObject();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                writer.name(entry.getKey());
+                writeJson(entry.getValue(), writer, maxFieldSize);
             }
-            backTrace.add(jsonTraceElement);
+            writer.endObject();
         }
     }
 
-    private String methodName(Throwable throwable){
-        if (throwable == null || throwable.getStackTrace() == null || throwable.getStackTrace().length == 0){
-            return null;
+    private void writeBacktrace(ErrorSnapshot error, JsonWriter writer, int allowance) throws IOException {
+        int[] sizes = new int[error.frames];
+        for (int i = 0; i < error.frames; i++) {
+            sizes[i] = length(error.frameClasses[i]) + length(error.frameMethods[i]) + length(error.frameFiles[i])
+                       + FRAME_OVERHEAD;
+        }
+        long kept = elide(sizes, allowance);
+        int head = (int) (kept >>> 32);
+        int tail = (int) kept;
+
+        writer.name("backtrace");
+        writer.beginArray();
+        for (int i = 0; i < error.frames; i++) {
+            if (i == head && tail > head) {
+                writeTraceElement(writer, 0, "... " + (tail - head) + " frames elided", ".");
+                i = tail - 1;
+                continue;
+            }
+            writeTraceElement(writer, error.frameLines[i], error.frameFiles[i],
+                              error.frameClasses[i] + "." + error.frameMethods[i]);
+        }
+
+        if (error.cause != null) {
+            writeTraceElement(writer, 0, error.cause, ".");
+            for (int j = 0; j < Math.min(CAUSE_FRAMES, error.causeFrames); j++) {
+                int i = error.causeFrame(j);
+                writeTraceElement(writer, error.frameLines[i], "  " + error.frameFiles[i],
+                                  error.frameClasses[i] + "." + error.frameMethods[i]);
+            }
+            if (error.causeFrames > CAUSE_FRAMES) {
+                writeTraceElement(writer, 0, "... " + (error.causeFrames - 3) + " more", ".");
+            }
         }
-        return throwable.getStackTrace()[0].getMethodName();
+        writer.endArray();
     }
 
-    private JsonObject traceElement(int line, String file, String method){
-        JsonObject jsonTraceElement = new JsonObject();
+    private void writeTraceElement(JsonWriter writer, int line, String file, String method) throws IOException {
+        writer.beginObject();
         if (line > 0){
-            jsonTraceElement.addProperty("number", line);
+            writer.name("number").value(line);
         }
         if (file != null){
-            jsonTraceElement.addProperty("file", file);
+            writer.name("file").value(file);
         }
         if (method != null){
-            jsonTraceElement.addProperty("method", method);
+            writer.name("method").value(method);
         }
-        return jsonTraceElement;
+        writer.endObject();
     }
 
-    /*
-      Identify the notifier
-    */
-    private JsonObject makeNotifier() {
-        JsonObject notifier = new JsonObject();
-        notifier.addProperty("name", "workable-honeybadger-java");
-        notifier.addProperty("version", "1.3.0");
-        return notifier;
-    }
+    /**
+     * Writes the members of a Honeybadger source blob compatible full stacktrace, one property per line, rendered from
+     * the frames of the snapshot as {@link Throwable#printStackTrace()} prints them. Lines are elided from the middle
+     * when they do not fit in the allowance, keeping their numbers.
+     */
+    private void writeStacktrace(ErrorSnapshot error, JsonWriter writer, int allowance) throws IOException {
+        List<String> lines = new ArrayList<>(error.frameLines.length + error.headers.length * 2);
+        int frame = 0;
+        for (int block = 0; block < error.headers.length; block++) {
+            addLines(error.headers[block], lines);
+            String indent = error.indents[block];
+            for (int i = 0; i < error.blockFrames[block]; i++, frame++) {
+                lines.add(frameLine(error, indent, frame));
+            }
+            if (error.commonFrames[block] > 0) {
+                lines.add(indent + "\t... " + error.commonFrames[block] + " more");
+            }
+        }
 
+        int[] sizes = new int[lines.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = lines.get(i).length() + LINE_OVERHEAD;
+        }
+        long kept = elide(sizes, allowance);
+        int head = (int) (kept >>> 32);
+        int tail = (int) kept;
+
+        for (int i = 0; i < sizes.length; i++) {
+            if (i == head && tail > head) {
+                writer.name(String.valueOf(i + 1)).value("\t... " + (tail - head) + " lines elided");
+                i = tail - 1;
+                continue;
+            }
+            writer.name(String.valueOf(i + 1)).value(lines.get(i));
+        }
+    }
 
-    private String stacktraceAsString(Throwable error) {
-        final StringWriter sw = new StringWriter();
-        final PrintWriter pw = new PrintWriter(sw, true);
-        error.printStackTrace(pw);
-        return sw.getBuffer().toString();
+    /**
+     * Adds the lines of a header, whose message may span several lines, skipping trailing blank lines.
+     */
+    private static void addLines(String header, List<String> lines) {
+        int end = header.length();
+        while (end > 0 && Character.isWhitespace(header.charAt(end - 1))) {
+            end--;
+        }
+        int start = 0;
+        do {
+            int eol = start;
+            while (eol < end && !isLineSeparator(header.charAt(eol))) {
+                eol++;
+            }
+            lines.add(header.substring(start, eol));
+            start = eol + 1 < end && header.charAt(eol) == '\r' && header.charAt(eol + 1) == '\n' ? eol + 2 : eol + 1;
+        } while (start < end);
     }
 
     /**
-     * Created a Honeybadger source blob compatible full stacktrace.
+     * Renders a frame as {@link StackTraceElement#toString()} does, without the module and class loader.
      */
-    private void appendStacktraceToJsonElement(Throwable error,
-                                               JsonObject json) {
-        String stack = stacktraceAsString(error);
-        Scanner scanner = new Scanner(stack);
+    private static String frameLine(ErrorSnapshot error, String indent, int i) {
+        StringBuilder line = new StringBuilder(indent).append("\tat ").append(error.frameClasses[i]).append('.')
+            .append(error.frameMethods[i]).append('(');
+        String file = error.frameFiles[i];
+        int number = error.frameLines[i];
+        if (number == -2) {
+            line.append("Native Method");
+        } else if (file == null) {
+            line.append("Unknown Source");
+        } else {
+            line.append(file);
+            if (number >= 0) {
+                line.append(':').append(number);
+            }
+        }
+        return line.append(')').toString();
+    }
 
-        int lineNo = 0;
+    /**
+     * Picks the items kept when the middle of a sequence is elided to fit in the allowance: the leading items that
+     * fit in half of it, at least one, then the trailing items that fit in the rest.
+     *
+     * @return the number of leading items kept in the high half and the index of the first trailing item kept in the
+     * low half, both the size of the sequence if nothing is elided
+     */
+    private static long elide(int[] sizes, int allowance) {
+        int count = sizes.length;
+        long total = 0;
+        for (int size : sizes) {
+            total += size;
+        }
+        if (allowance <= 0 || total <= allowance) {
+            return ((long) count << 32) | count;
+        }
 
-        while (scanner.hasNext()) {
-            json.addProperty(String.valueOf(++lineNo), scanner.nextLine());
+        long used = sizes[0];
+        int head = 1;
+        while (head < count && used + sizes[head] <= allowance / 2) {
+            used += sizes[head++];
         }
+        int tail = count;
+        while (tail > head && used + sizes[tail - 1] <= allowance) {
+            used += sizes[--tail];
+        }
+        return ((long) head << 32) | tail;
     }
 
-    private JsonObject makeServer() {
-        JsonObject jsonServer = new JsonObject();
-        jsonServer.addProperty("environment_name", environment());
-        jsonServer.addProperty("hostname", hostname);
-        jsonServer.addProperty("runtime_root", runtimeRoot);
-        jsonServer.add("system_properties", systemProperties());
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
 
-        return jsonServer;
+    /**
+     * Truncates the value to about the specified number of UTF-8 bytes, appending a marker.
+     */
+    static String clip(String value, int maxBytes) {
+        return value == null ? null : clip(value, 0, value.length(), maxBytes);
     }
 
-    private JsonObject context() {
-        JsonObject context = new JsonObject();
+    /**
+     * Returns the specified part of the value, truncated to about the specified number of UTF-8 bytes with a marker
+     * appended. Only the part kept is copied.
+     */
+    static String clip(String value, int start, int end, int maxBytes) {
+        if (maxBytes <= 0 || end - start <= maxBytes / 3) {
+            return value.substring(start, end);
+        }
 
-        @SuppressWarnings("unchecked")
-        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            // Surrogate pairs take four bytes, two per char
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+            if (bytes > maxBytes) {
+                int cut = i > start && Character.isHighSurrogate(value.charAt(i - 1)) ? i - 1 : i;
+                return value.substring(start, cut) + "... [truncated " + (end - cut) + " chars]";
+            }
+        }
+        return value.substring(start, end);
+    }
+
+    private static boolean isLineSeparator(char c) {
+        return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085';
+    }
 
+    private void writeContext(ErrorSnapshot error, JsonWriter writer, int maxFieldSize) throws IOException {
+        Map<String, String> mdc = error.context;
         if (mdc != null) {
             for (Map.Entry<String, String> entry : mdc.entrySet()) {
-                context.addProperty(entry.getKey(), entry.getValue());
+                writer.name(entry.getKey()).value(clip(entry.getValue(), maxFieldSize));
             }
         }
 
-        return context;
+        if (error.occurrences > 1) {
+            writer.name("occurrences").value(error.occurrences);
+        }
+        if (error.sampleRate < 1) {
+            writer.name("sample_rate").value(error.sampleRate);
+        }
     }
 
-    private JsonObject systemProperties() {
-        JsonObject jsonSysProps = new JsonObject();
-
+    private void writeSystemProperties(JsonWriter writer) throws IOException {
         for (Map.Entry<Object, Object> entry : System.getProperties().entrySet()) {
             // We skip all excluded properties
             if (excludedSysProps.contains(entry.getKey().toString())) {
                 continue;
             }
 
-            jsonSysProps.addProperty(entry.getKey().toString(),
-                                     entry.getValue().toString());
+            writer.name(entry.getKey().toString()).value(entry.getValue().toString());
         }
-
-        return jsonSysProps;
     }
 
     /**
@@ -270,5 +737,188 @@ public class JsonMarshaller {
         }
     }
 
+    /**
+     * Immutable, serialized "server" block along with the system properties it was built from.
+     */
+    private static final class ServerFragment {
+
+        private final Properties properties;
+        private final int size;
+        private final int hashCode;
+        private final byte[] bytes;
+
+        /**
+         * Bounds of the contents of the "system_properties" object
+         */
+        private final int propertiesStart;
+        private final int propertiesEnd;
+
+        private ServerFragment(Properties properties, int size, int hashCode, byte[] bytes, int propertiesStart,
+                               int propertiesEnd) {
+            this.properties = properties;
+            this.size = size;
+            this.hashCode = hashCode;
+            this.bytes = bytes;
+            this.propertiesStart = propertiesStart;
+            this.propertiesEnd = propertiesEnd;
+        }
+
+        private boolean isFor(Properties properties, int size, int hashCode) {
+            return this.properties == properties && this.size == size && this.hashCode == hashCode;
+        }
+    }
+
+    /**
+     * Rendered "backtrace" and "source" members of an error block, up to the end of the block.
+     */
+    static final class Backtrace {
+
+        final byte[] bytes;
+
+        /**
+         * Bounds of the contents of the "source" object
+         */
+        final int sourceStart;
+        final int sourceEnd;
+
+        Backtrace(byte[] bytes, int sourceStart, int sourceEnd) {
+            this.bytes = bytes;
+            this.sourceStart = sourceStart;
+            this.sourceEnd = sourceEnd;
+        }
+    }
+
+    /**
+     * Growable byte buffer encoding the characters written to it as UTF-8.
+     */
+    static final class Utf8Buffer extends Writer {
+
+        private byte[] bytes = new byte[8192];
+        private int count;
+
+        /**
+         * High surrogate waiting for its low surrogate
+         */
+        private char highSurrogate;
+
+        @Override
+        public void write(int c) {
+            encode((char) c);
+        }
+
+        @Override
+        public void write(char[] chars, int off, int len) {
+            ensureCapacity(len * 3);
+            for (int i = off; i < off + len; i++) {
+                encode(chars[i]);
+            }
+        }
+
+        @Override
+        public void write(String string, int off, int len) {
+            ensureCapacity(len * 3);
+            for (int i = off; i < off + len; i++) {
+                encode(string.charAt(i));
+            }
+        }
+
+        private void encode(char c) {
+            ensureCapacity(4);
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    bytes[count++] = (byte) (0xF0 | (codePoint >> 18));
+                    bytes[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    bytes[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    bytes[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                    return;
+                }
+                // Unpaired surrogate, replaced as the JDK encoder does
+                bytes[count++] = '?';
+                ensureCapacity(4);
+            }
+
+            if (c < 0x80) {
+                bytes[count++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[count++] = (byte) (0xC0 | (c >> 6));
+                bytes[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                bytes[count++] = '?';
+            } else {
+                bytes[count++] = (byte) (0xE0 | (c >> 12));
+                bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (count + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + extra));
+            }
+        }
+
+        void write(byte[] fragment) {
+            flush();
+            ensureCapacity(fragment.length);
+            System.arraycopy(fragment, 0, bytes, count, fragment.length);
+            count += fragment.length;
+        }
+
+        void set(int index, byte b) {
+            bytes[index] = b;
+        }
+
+        /**
+         * Replaces the bytes from start to end with the fragment.
+         */
+        void replace(int start, int end, byte[] fragment) {
+            flush();
+            ensureCapacity(fragment.length - (end - start));
+            System.arraycopy(bytes, end, bytes, start + fragment.length, count - end);
+            System.arraycopy(fragment, 0, bytes, start, fragment.length);
+            count += fragment.length - (end - start);
+        }
+
+        void truncate(int size) {
+            count = size;
+        }
 
+        int size() {
+            flush();
+            return count;
+        }
+
+        int capacity() {
+            return bytes.length;
+        }
+
+        byte[] toByteArray() {
+            flush();
+            return Arrays.copyOf(bytes, count);
+        }
+
+        void reset() {
+            count = 0;
+            highSurrogate = 0;
+        }
+
+        @Override
+        public void flush() {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                ensureCapacity(1);
+                bytes[count++] = '?';
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
 }
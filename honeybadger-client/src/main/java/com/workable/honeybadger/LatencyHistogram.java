@@ -0,0 +1,91 @@
+package com.workable.honeybadger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies, in buckets of powers of two microseconds.
+ * <p>
+ * Recording a latency is a couple of atomic increments, cheap enough for every notice. Percentiles are approximated
+ * by the upper bound of their bucket, so they are at most twice the actual value.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Buckets of latencies below 2^i microseconds, the last one holding anything above 2^37 us (a day and a half)
+     */
+    private static final int BUCKETS = 38;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos The latency in nanoseconds
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // Retry until the max is at least this latency
+        }
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the mean latency in milliseconds, 0 if none was recorded
+     */
+    public double getMean() {
+        long count = this.count.get();
+        return count == 0 ? 0 : total.get() / (count * 1e6);
+    }
+
+    /**
+     * @return the max latency in milliseconds
+     */
+    public double getMax() {
+        return max.get() / 1e6;
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100
+     * @return the upper bound in milliseconds of the bucket of the percentile, 0 if no latency was recorded
+     */
+    public double getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                // Never above the max, which is exact
+                return Math.min((1L << i) / 1e3, getMax());
+            }
+        }
+        return getMax();
+    }
+}
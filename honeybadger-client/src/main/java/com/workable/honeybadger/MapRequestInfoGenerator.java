@@ -0,0 +1,65 @@
+package com.workable.honeybadger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.Map;
+
+/**
+ * Turns a plain map into the request JSON, for contexts that do not come from a servlet container (e.g. Netty or gRPC
+ * services). The map is expected in the Honeybadger request format, e.g. with "url", "cgi_data" and "params" entries;
+ * nested maps and iterables become JSON objects and arrays, other values strings unless they are numbers or booleans.
+ */
+public class MapRequestInfoGenerator implements RequestInfoGenerator<Map<?, ?>> {
+
+    /**
+     * Nesting level past which values are written as strings, guarding against cyclic maps
+     */
+    private static final int MAX_DEPTH = 8;
+
+    @Override
+    public JsonObject generateRequest(Map<?, ?> requestSource) {
+        return toJson(requestSource, 0);
+    }
+
+    @Override
+    public JsonObject routeRequest(Object requestSource) {
+        if (requestSource == null) {
+            return new JsonObject();
+        }
+        if (!(requestSource instanceof Map)) {
+            throw new HoneybadgerException("Request object is not instance of Map");
+        }
+        return generateRequest((Map<?, ?>) requestSource);
+    }
+
+    private static JsonObject toJson(Map<?, ?> map, int depth) {
+        JsonObject json = new JsonObject();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            json.add(String.valueOf(entry.getKey()), toJson(entry.getValue(), depth + 1));
+        }
+        return json;
+    }
+
+    private static JsonElement toJson(Object value, int depth) {
+        if (value == null) {
+            return JsonNull.INSTANCE;
+        } else if (value instanceof Number) {
+            return new JsonPrimitive((Number) value);
+        } else if (value instanceof Boolean) {
+            return new JsonPrimitive((Boolean) value);
+        } else if (depth < MAX_DEPTH && value instanceof Map) {
+            return toJson((Map<?, ?>) value, depth);
+        } else if (depth < MAX_DEPTH && value instanceof Iterable) {
+            JsonArray array = new JsonArray();
+            for (Object item : (Iterable<?>) value) {
+                array.add(toJson(item, depth + 1));
+            }
+            return array;
+        }
+        return new JsonPrimitive(String.valueOf(value));
+    }
+}
@@ -0,0 +1,71 @@
+package com.workable.honeybadger;
+
+import java.util.Locale;
+
+/**
+ * What the reporting thread does with an error when the dispatching queue is full.
+ * <p>
+ * Every policy trades the latency of the reporting threads for the completeness of the reports differently, and
+ * counts the errors it drops, see {@link HoneybadgerClient#getDroppedCount(OverflowPolicy)}.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Drops the new error, keeping the queued ones which are often the root cause of those that follow.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drops the oldest queued error to make room for the new one, which is the most up to date.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Waits for room in the queue up to the overflow timeout, then drops the new error.
+     */
+    BLOCK,
+
+    /**
+     * Sends the error on the reporting thread, connecting and waiting for the response no longer than the overflow
+     * timeout, and drops it if that single attempt fails. Slows the reporting threads down to the pace of Honeybadger.
+     */
+    CALLER_RUNS,
+
+    /**
+     * Writes the error to the spool, to be replayed later, or drops it when there is no spool.
+     */
+    SPILL;
+
+    /**
+     * Parses a policy from its name, case insensitive and with dashes standing for underscores, e.g.
+     * <code>drop-oldest</code>.
+     *
+     * @return the policy or <code>null</code> if the name is not one
+     */
+    public static OverflowPolicy parse(String name) {
+        if (name == null) {
+            return null;
+        }
+        String normalized = name.trim().replace('-', '_');
+        for (OverflowPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(normalized)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the names of the policies as {@link #parse(String)} takes them, e.g. for configuration errors
+     */
+    public static String names() {
+        StringBuilder names = new StringBuilder();
+        for (OverflowPolicy policy : values()) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append(policy.name().toLowerCase(Locale.ROOT).replace('_', '-'));
+        }
+        return names.toString();
+    }
+}
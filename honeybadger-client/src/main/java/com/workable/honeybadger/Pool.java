@@ -0,0 +1,63 @@
+package com.workable.honeybadger;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded pool of reusable objects shared by all threads.
+ * <p>
+ * Unlike a {@link ThreadLocal}, the pool keeps no more objects than its size however many threads come and go, which
+ * matters when every notice is sent from a new virtual thread. Objects are kept in slots taken and returned with
+ * compare-and-set, so the pool never blocks; callers create a new object when the pool is empty and dispose of it when
+ * the pool is full.
+ */
+final class Pool<T> {
+
+    /**
+     * Marshalling and compressing are CPU bound, so no more objects than processors are in use at once for long
+     */
+    static final int DEFAULT_SIZE = Runtime.getRuntime().availableProcessors();
+
+    private final AtomicReferenceArray<T> slots;
+
+    Pool(int size) {
+        slots = new AtomicReferenceArray<>(size);
+    }
+
+    /**
+     * @return a pooled object, or null if the pool is empty
+     */
+    T poll() {
+        int size = slots.length();
+        int start = start(size);
+        for (int i = 0; i < size; i++) {
+            int slot = (start + i) % size;
+            T item = slots.get(slot);
+            if (item != null && slots.compareAndSet(slot, item, null)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the pool is full, in which case the caller keeps the object
+     */
+    boolean offer(T item) {
+        int size = slots.length();
+        int start = start(size);
+        for (int i = 0; i < size; i++) {
+            int slot = (start + i) % size;
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Spreads the threads over the slots, so that they rarely contend for the same one
+     */
+    private static int start(int size) {
+        return (int) ((Thread.currentThread().getId() & Long.MAX_VALUE) % size);
+    }
+}
@@ -0,0 +1,143 @@
+package com.workable.honeybadger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the rate of errors reported to Honeybadger, globally and per error.
+ * <p>
+ * Errors are identified either by their class or by their {@link Fingerprint}. At most {@link #MAX_ERRORS} distinct
+ * errors are tracked; when full, a new error takes the place of an error whose bucket is full again, since it holds no
+ * state. The tracked errors are visited oldest first and the busy ones are moved to the back, so that an eviction
+ * looks at a few buckets only and never resets a busy one. If none of them is idle, the new error shares a single
+ * overflow bucket with the other untracked errors.
+ */
+class RateLimiter {
+
+    static final int MAX_ERRORS = 1000;
+
+    /**
+     * Number of tracked errors visited to find an idle one to evict
+     */
+    private static final int EVICTION_SAMPLES = 8;
+
+    private final TokenBucket global;
+    private final double errorRate;
+    private final boolean byFingerprint;
+    private final int frames;
+    private final ConcurrentMap<Object, TokenBucket> errors = new ConcurrentHashMap<>();
+
+    /**
+     * Keys of the tracked errors, in the order they are visited for eviction
+     */
+    private final Queue<Object> evictionOrder = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Bucket of the errors that could not be tracked, <code>null</code> if unlimited
+     */
+    private final TokenBucket overflow;
+
+    private final AtomicLong globallyShed = new AtomicLong();
+    private final AtomicLong errorShed = new AtomicLong();
+
+    /**
+     * @param rate          Max errors per second overall, unlimited when zero
+     * @param errorRate     Max errors per second of the same error, unlimited when zero
+     * @param byFingerprint <code>true</code> to identify errors by fingerprint rather than class
+     * @param frames        Number of top stack frames included in the fingerprint
+     */
+    RateLimiter(double rate, double errorRate, boolean byFingerprint, int frames) {
+        this.global = rate > 0 ? new TokenBucket(rate, (int) Math.ceil(rate)) : null;
+        this.errorRate = errorRate;
+        this.overflow = errorRate > 0 ? new TokenBucket(errorRate, (int) Math.ceil(errorRate)) : null;
+        this.byFingerprint = byFingerprint;
+        this.frames = frames;
+    }
+
+    /**
+     * @return <code>true</code> if the error can be reported, <code>false</code> if it should be shed
+     */
+    boolean tryAcquire(Error error) {
+        return tryAcquire(error.getError(), error.getReporter());
+    }
+
+    /**
+     * Checks the limits of an error before it is built.
+     *
+     * @param throwable The exception of the error
+     * @param reporter  The reporter of the error
+     */
+    boolean tryAcquire(Throwable throwable, String reporter) {
+        if (errorRate > 0 && !bucket(throwable, reporter).tryAcquire()) {
+            errorShed.incrementAndGet();
+            return false;
+        }
+        return tryAcquire();
+    }
+
+    /**
+     * Checks only the global limit.
+     */
+    boolean tryAcquire() {
+        if (global != null && !global.tryAcquire()) {
+            globallyShed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    long getGloballyShed() {
+        return globallyShed.get();
+    }
+
+    long getErrorShed() {
+        return errorShed.get();
+    }
+
+    private TokenBucket bucket(Throwable throwable, String reporter) {
+        Object key = byFingerprint || throwable == null
+                     ? Fingerprint.of(throwable, reporter, frames)
+                     : throwable.getClass().getName();
+
+        TokenBucket bucket = errors.get(key);
+        if (bucket == null) {
+            if (errors.size() >= MAX_ERRORS && !evict()) {
+                return overflow;
+            }
+            bucket = new TokenBucket(errorRate, (int) Math.ceil(errorRate));
+            TokenBucket existing = errors.putIfAbsent(key, bucket);
+            if (existing != null) {
+                bucket = existing;
+            } else {
+                evictionOrder.offer(key);
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Drops the first idle bucket among the next few in eviction order, moving the busy ones to the back.
+     *
+     * @return <code>false</code> if all the visited buckets were busy
+     */
+    private boolean evict() {
+        for (int i = 0; i < EVICTION_SAMPLES; i++) {
+            Object key = evictionOrder.poll();
+            if (key == null) {
+                return false;
+            }
+            TokenBucket bucket = errors.get(key);
+            if (bucket == null) {
+                continue;
+            }
+            if (bucket.isFull() && errors.remove(key, bucket)) {
+                return true;
+            }
+            evictionOrder.offer(key);
+        }
+        return false;
+    }
+}
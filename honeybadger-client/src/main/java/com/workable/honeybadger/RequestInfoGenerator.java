@@ -4,7 +4,10 @@ import com.google.gson.JsonObject;
 
 /**
  * Interface that parses the properties of an object and turns it into the the response JSON sent to Honeybadger.
-
+ * <p>
+ * Generators for other request types are registered as services, listing their classes in
+ * <code>META-INF/services/com.workable.honeybadger.RequestInfoGenerator</code>. They handle the contexts that are
+ * instances of their type argument, which must therefore be a class.
  */
 public interface RequestInfoGenerator<T> {
 
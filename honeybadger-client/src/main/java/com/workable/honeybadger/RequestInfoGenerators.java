@@ -0,0 +1,166 @@
+package com.workable.honeybadger;
+
+import com.google.gson.JsonObject;
+
+import com.workable.honeybadger.servlet.HttpServletRequestInfoGenerator;
+import com.workable.honeybadger.servlet.JakartaServletRequestInfoGenerator;
+import com.workable.honeybadger.servlet.RequestSnapshot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Registry of the {@link RequestInfoGenerator}s turning the context of an error into its "request" block.
+ * <p>
+ * The generators are discovered once: those declared as services in
+ * <code>META-INF/services/com.workable.honeybadger.RequestInfoGenerator</code> come first, followed by the built-in
+ * ones for servlet (javax and jakarta) requests, {@link RequestSnapshot}s and maps, provided that their classes are
+ * available. The request type of a generator is the type argument of its {@link RequestInfoGenerator} interface, and
+ * the generator of a context is resolved once per context class.
+ */
+final class RequestInfoGenerators {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestInfoGenerators.class);
+
+    private static final List<Registration> REGISTRATIONS = load();
+
+    /**
+     * Index in {@link #REGISTRATIONS} of the generator of every context class, or <code>null</code> for none. Values
+     * of a {@link ClassValue} are strongly reachable from their class, so they must not reference the classes of the
+     * client: a container class, e.g. the request facade of the container, would otherwise pin the class loader of a
+     * webapp embedding the client across redeployments.
+     */
+    private static final ClassValue<Integer> BY_CLASS = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            for (int i = 0; i < REGISTRATIONS.size(); i++) {
+                if (REGISTRATIONS.get(i).type.isAssignableFrom(type)) {
+                    return i;
+                }
+            }
+            return null;
+        }
+    };
+
+    private RequestInfoGenerators() {
+    }
+
+    /**
+     * @return the "request" block of the context, or <code>null</code> if there is no context or no generator for it
+     */
+    static JsonObject generate(Object context) {
+        if (context == null) {
+            return null;
+        }
+        RequestInfoGenerator<?> generator = forClass(context.getClass());
+        return generator == null ? null : generator.routeRequest(context);
+    }
+
+    /**
+     * @return the generator of the contexts of the specified class, or <code>null</code>
+     */
+    static RequestInfoGenerator<?> forClass(Class<?> type) {
+        Integer index = BY_CLASS.get(type);
+        return index == null ? null : REGISTRATIONS.get(index).generator;
+    }
+
+    private static List<Registration> load() {
+        List<Registration> registrations = new ArrayList<>();
+
+        Iterator<RequestInfoGenerator> services = ServiceLoader.load(
+            RequestInfoGenerator.class, RequestInfoGenerators.class.getClassLoader()).iterator();
+        while (true) {
+            try {
+                if (!services.hasNext()) {
+                    break;
+                }
+                register(registrations, services.next());
+            } catch (ServiceConfigurationError e) {
+                LOGGER.error("Could not load a request info generator", e);
+            }
+        }
+
+        register(registrations, new RequestSnapshotInfoGenerator());
+        if (isAvailable("javax.servlet.http.HttpServletRequest")) {
+            register(registrations, new HttpServletRequestInfoGenerator());
+        }
+        if (isAvailable("jakarta.servlet.http.HttpServletRequest")) {
+            register(registrations, new JakartaServletRequestInfoGenerator());
+        }
+        register(registrations, new MapRequestInfoGenerator());
+
+        return Collections.unmodifiableList(registrations);
+    }
+
+    private static void register(List<Registration> registrations, RequestInfoGenerator<?> generator) {
+        Class<?> type = requestType(generator.getClass());
+        if (type == null) {
+            LOGGER.warn("Ignoring the request info generator {}, its request type is unknown",
+                        generator.getClass().getName());
+            return;
+        }
+        registrations.add(new Registration(type, generator));
+    }
+
+    /**
+     * @return the type argument of the {@link RequestInfoGenerator} interface implemented by the class or its
+     * superclasses, or <code>null</code>
+     */
+    static Class<?> requestType(Class<?> generatorClass) {
+        for (Class<?> c = generatorClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Type type : c.getGenericInterfaces()) {
+                if (type instanceof ParameterizedType
+                    && ((ParameterizedType) type).getRawType() == RequestInfoGenerator.class) {
+                    Type argument = ((ParameterizedType) type).getActualTypeArguments()[0];
+                    if (argument instanceof ParameterizedType) {
+                        argument = ((ParameterizedType) argument).getRawType();
+                    }
+                    return argument instanceof Class ? (Class<?>) argument : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAvailable(String className) {
+        try {
+            Class.forName(className, false, RequestInfoGenerators.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static final class Registration {
+
+        private final Class<?> type;
+        private final RequestInfoGenerator<?> generator;
+
+        private Registration(Class<?> type, RequestInfoGenerator<?> generator) {
+            this.type = type;
+            this.generator = generator;
+        }
+    }
+
+    private static final class RequestSnapshotInfoGenerator implements RequestInfoGenerator<RequestSnapshot> {
+
+        @Override
+        public JsonObject generateRequest(RequestSnapshot requestSource) {
+            return requestSource.toJson();
+        }
+
+        @Override
+        public JsonObject routeRequest(Object requestSource) {
+            return generateRequest((RequestSnapshot) requestSource);
+        }
+    }
+}
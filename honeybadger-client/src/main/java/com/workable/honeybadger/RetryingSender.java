@@ -0,0 +1,659 @@
+package com.workable.honeybadger;
+
+import org.apache.http.entity.ContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends marshalled errors to Honeybadger, handing failed attempts over to a delayed retry queue.
+ * <p>
+ * Retries are delayed with an exponential backoff and jitter, or as requested by the Retry-After header of the
+ * response. A {@link CircuitBreaker} stops all attempts after repeated failures, so that the dispatchers don't keep
+ * hammering an unreachable endpoint; payloads arriving while it is open are queued for after it closes. Payloads are
+ * marshalled once and the same bytes are reused across attempts.
+ * <p>
+ * With a {@link DiskSpool}, payloads that run out of retries, that find the circuit open or that are still pending at
+ * shutdown are spooled to the disk instead of being dropped. The spool is written once a second and replayed in the
+ * background whenever Honeybadger is reachable, starting right away so that the notices of a previous run are sent on
+ * startup.
+ */
+class RetryingSender {
+
+    /**
+     * Interval in milliseconds between two writes of the spool
+     */
+    private static final long SPOOL_FLUSH_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * Interval in milliseconds between two replays of the spool
+     */
+    private static final long SPOOL_REPLAY_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Max time in milliseconds to wait on close for the responses of the payloads in flight
+     */
+    private static final long IN_FLIGHT_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final HttpTransport transport;
+
+    /**
+     * Transport of the first attempts and retries when not <code>null</code>, the blocking one then only replaying
+     * the spool
+     */
+    private final AsyncHttpTransport asyncTransport;
+    private final CircuitBreaker circuitBreaker;
+    private final int maxRetries;
+    private final long backoff;
+    private final long maxBackoff;
+    private final int maxPendingRetries;
+    private final DiskSpool spool;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Whether the scheduler was created by the sender, and is shut down along with it
+     */
+    private final boolean ownsScheduler;
+
+    /**
+     * The periodic spool tasks, cancelled on close when the scheduler is shared
+     */
+    private final List<Future<?>> periodicTasks = new ArrayList<>();
+
+    private volatile boolean closed;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * Payloads waiting to be retried, spooled if still waiting at shutdown
+     */
+    private final Set<Delivery> waiting = Collections.newSetFromMap(new ConcurrentHashMap<Delivery, Boolean>());
+
+    /**
+     * Payloads sent over the async transport and awaiting their response, spooled if still waiting at shutdown
+     */
+    private final Set<Delivery> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Delivery, Boolean>());
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+
+    /**
+     * Time from the queueing of the notices to their delivery
+     */
+    private final LatencyHistogram endToEndTime = new LatencyHistogram();
+
+    /**
+     * Whether a replay of the spool is scheduled or running
+     */
+    private final AtomicBoolean replaying = new AtomicBoolean();
+
+    /**
+     * @param transport         The transport to send with
+     * @param circuitBreaker    The circuit breaker guarding the transport
+     * @param maxRetries        Max retries of a payload after its first attempt
+     * @param backoff           Delay in milliseconds before the first retry, doubled on every retry
+     * @param maxBackoff        Max delay in milliseconds between retries
+     * @param maxPendingRetries Max payloads waiting to be retried, further failures are dropped
+     * @param spool             The spool undeliverable payloads are written to, or <code>null</code> to drop them
+     * @param priority          The thread priority of the retry dispatcher
+     */
+    RetryingSender(HttpTransport transport, CircuitBreaker circuitBreaker, int maxRetries, long backoff,
+                   long maxBackoff, int maxPendingRetries, DiskSpool spool, int priority) {
+        this(transport, null, circuitBreaker, maxRetries, backoff, maxBackoff, maxPendingRetries, spool,
+             newScheduler(priority), true);
+    }
+
+    /**
+     * @param asyncTransport The non-blocking transport sending the payloads, or <code>null</code> to send them with
+     *                       the blocking one
+     * @param scheduler      The scheduler running the retries and the spool tasks
+     * @param ownsScheduler  Whether the scheduler is shut down on {@link #close()}, otherwise only the tasks of the
+     *                       sender are cancelled
+     */
+    RetryingSender(HttpTransport transport, AsyncHttpTransport asyncTransport, CircuitBreaker circuitBreaker,
+                   int maxRetries, long backoff, long maxBackoff, int maxPendingRetries, DiskSpool spool,
+                   ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        this.transport = transport;
+        this.asyncTransport = asyncTransport;
+        this.circuitBreaker = circuitBreaker;
+        this.maxRetries = maxRetries;
+        this.backoff = backoff;
+        this.maxBackoff = maxBackoff;
+        this.maxPendingRetries = maxPendingRetries;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        this.spool = spool;
+
+        if (spool != null) {
+            periodicTasks.add(scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flushSpool();
+                }
+            }, SPOOL_FLUSH_INTERVAL, SPOOL_FLUSH_INTERVAL, TimeUnit.MILLISECONDS));
+            periodicTasks.add(scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    replay();
+                }
+            }, 0, SPOOL_REPLAY_INTERVAL, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    static ScheduledExecutorService newScheduler(int priority) {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+            1, new DaemonThreadFactory("sender", priority));
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return scheduler;
+    }
+
+    /**
+     * Attempts to send the payload, scheduling a retry if the attempt fails.
+     *
+     * @return <code>true</code> if the payload was delivered by this attempt, always <code>false</code> over the async
+     * transport
+     */
+    boolean send(URI uri, byte[] body, ContentType contentType) {
+        return send(uri, body, contentType, System.nanoTime());
+    }
+
+    /**
+     * @param queuedAt The {@link System#nanoTime()} at which the notices of the payload were queued
+     */
+    boolean send(URI uri, byte[] body, ContentType contentType, long queuedAt) {
+        return attempt(new Delivery(uri, body, contentType, queuedAt));
+    }
+
+    /**
+     * Makes a single attempt at sending the payload over the blocking transport, with no retry.
+     *
+     * @param timeout Max time in milliseconds to connect and to wait for the response
+     * @return <code>false</code> if the payload was not delivered, including when the circuit is open
+     */
+    boolean sendOnce(URI uri, byte[] body, ContentType contentType, long queuedAt, int timeout) {
+        if (!circuitBreaker.allowRequest()) {
+            return false;
+        }
+        Delivery delivery = new Delivery(uri, body, contentType, queuedAt);
+        try {
+            HttpTransport.Response response = transport.send(uri, body, contentType, timeout);
+            if (response.isSuccessful()) {
+                delivered(delivery);
+                return true;
+            }
+            if (response.getStatusCode() == 429) {
+                circuitBreaker.pause(response.getRetryAfter() >= 0 ? response.getRetryAfter() : backoff);
+            } else if (response.isRetryable()) {
+                onFailure();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+            return false;
+        } catch (IOException e) {
+            logger.error("There was an error when trying to send the error to Honeybadger",
+                         new HoneybadgerException(e));
+            onFailure();
+            return false;
+        }
+    }
+
+    /**
+     * Drops all pending retries, or spools them along with the payloads not yet written if there is a spool.
+     *
+     * @return the number of payloads that were waiting to be retried or for their response
+     */
+    int close() {
+        return close(IN_FLIGHT_TIMEOUT);
+    }
+
+    /**
+     * @param timeout Max time in milliseconds to wait for the responses of the payloads in flight
+     * @see #close()
+     */
+    int close(long timeout) {
+        closed = true;
+        if (asyncTransport != null) {
+            try {
+                if (!asyncTransport.awaitInFlight(timeout)) {
+                    logger.warn("Honeybadger did not respond to {} errors before the shutdown.",
+                                asyncTransport.getInFlight());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(SPOOL_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            // Pending retries find their delivery gone and return
+            for (Future<?> task : periodicTasks) {
+                task.cancel(false);
+            }
+        }
+
+        int dropped = 0;
+        for (Delivery delivery : waiting) {
+            if (waiting.remove(delivery)) {
+                dropped++;
+                if (spool != null) {
+                    spool(delivery);
+                }
+            }
+        }
+        for (Delivery delivery : inFlight) {
+            // Their late responses are ignored
+            if (inFlight.remove(delivery)) {
+                dropped++;
+                if (spool != null) {
+                    spool(delivery);
+                }
+            }
+        }
+
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                logger.error("Could not write the spool", new HoneybadgerException(e));
+            }
+        } else if (dropped > 0) {
+            logger.info("{} errors failed to be retried before the shutdown.", dropped);
+        }
+        return dropped;
+    }
+
+    /**
+     * Spools a notice that was never attempted.
+     *
+     * @return <code>false</code> if there is no spool
+     */
+    boolean spool(byte[] notice) {
+        if (spool == null) {
+            return false;
+        }
+        spool.append(notice);
+        spooled.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return the number of notices delivered, including those of batches
+     */
+    long getSent() {
+        return sent.get();
+    }
+
+    LatencyHistogram getEndToEndTime() {
+        return endToEndTime;
+    }
+
+    long getRetried() {
+        return retried.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    int getPending() {
+        return pending.get();
+    }
+
+    int getInFlight() {
+        return inFlight.size();
+    }
+
+    long getSpooled() {
+        return spooled.get();
+    }
+
+    long getReplayed() {
+        return replayed.get();
+    }
+
+    private boolean attempt(Delivery delivery) {
+        if (!circuitBreaker.allowRequest()) {
+            // Not an attempt, wait for the circuit to close
+            if (spool != null) {
+                spool(delivery);
+            } else {
+                schedule(delivery, Math.max(circuitBreaker.remaining(), backoff));
+            }
+            return false;
+        }
+
+        if (asyncTransport != null) {
+            attemptAsync(delivery);
+            return false;
+        }
+
+        try {
+            return onResponse(delivery, transport.send(delivery.uri, delivery.body, delivery.contentType));
+        } catch (IOException e) {
+            onError(delivery, e);
+            return false;
+        }
+    }
+
+    /**
+     * Hands the payload over to the async transport, its outcome being handled on the I/O thread.
+     */
+    private void attemptAsync(final Delivery delivery) {
+        inFlight.add(delivery);
+        try {
+            asyncTransport.send(delivery.uri, delivery.body, delivery.contentType, new AsyncHttpTransport.Callback() {
+                @Override
+                public void completed(HttpTransport.Response response) {
+                    if (inFlight.remove(delivery)) {
+                        onResponse(delivery, response);
+                    }
+                }
+
+                @Override
+                public void failed(IOException e) {
+                    if (inFlight.remove(delivery)) {
+                        onError(delivery, e);
+                    }
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (inFlight.remove(delivery)) {
+                giveUp(delivery);
+            }
+        } catch (RuntimeException e) {
+            // Closed
+            if (inFlight.remove(delivery)) {
+                giveUp(delivery);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the payload was delivered
+     */
+    private boolean onResponse(Delivery delivery, HttpTransport.Response response) {
+        if (response.isSuccessful()) {
+            delivered(delivery);
+            return true;
+        }
+
+        logger.error("Honeybadger did not respond with the " +
+                     "correct code. Response was [{}]. Retries={}",
+                     response.getStatusCode(), delivery.retries);
+
+        if (response.getStatusCode() == 429) {
+            // Throttled, hold back every dispatcher rather than only this payload
+            circuitBreaker.pause(response.getRetryAfter() >= 0 ? response.getRetryAfter() : delay(delivery));
+            retry(delivery, response.getRetryAfter());
+        } else if (response.isRetryable()) {
+            onFailure();
+            retry(delivery, response.getRetryAfter());
+        } else {
+            // The endpoint is up but will never accept this payload
+            circuitBreaker.onSuccess();
+            failed.incrementAndGet();
+        }
+        return false;
+    }
+
+    private void delivered(Delivery delivery) {
+        circuitBreaker.onSuccess();
+        sent.addAndGet(delivery.notices());
+        endToEndTime.record(System.nanoTime() - delivery.queuedAt);
+        if (spool != null && !spool.isEmpty()) {
+            // Reachable again, no need to wait for the next replay
+            scheduleReplay();
+        }
+    }
+
+    private void onError(Delivery delivery, IOException e) {
+        String msg = String.format("There was an error when trying " +
+                                   "to send the error to " +
+                                   "Honeybadger. Retries=%d", delivery.retries);
+        logger.error(msg, new HoneybadgerException(e));
+        onFailure();
+        retry(delivery, -1);
+    }
+
+    private void onFailure() {
+        circuitBreaker.onFailure();
+        if (circuitBreaker.isOpen()) {
+            logger.warn("Honeybadger is unreachable, pausing for {} ms", circuitBreaker.remaining());
+        }
+    }
+
+    private void retry(Delivery delivery, long retryAfter) {
+        if (delivery.retries >= maxRetries) {
+            giveUp(delivery);
+            return;
+        }
+        long delay = retryAfter >= 0 ? retryAfter : delay(delivery);
+        delivery.retries++;
+        retried.incrementAndGet();
+        schedule(delivery, delay);
+    }
+
+    /**
+     * Exponential backoff with equal jitter.
+     */
+    private long delay(Delivery delivery) {
+        long delay = Math.min(maxBackoff, backoff << Math.min(delivery.retries, 30));
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    private void schedule(final Delivery delivery, long delay) {
+        if (pending.incrementAndGet() > maxPendingRetries) {
+            pending.decrementAndGet();
+            if (spool == null) {
+                logger.warn("Too many errors waiting to be retried, dropping one.");
+            }
+            giveUp(delivery);
+            return;
+        }
+
+        try {
+            waiting.add(delivery);
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    pending.decrementAndGet();
+                    if (!waiting.remove(delivery)) {
+                        // Spooled by the shutdown
+                        return;
+                    }
+                    try {
+                        attempt(delivery);
+                    } catch (Exception e) {
+                        logger.error("An exception occurred while retrying an error", new HoneybadgerException(e));
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            pending.decrementAndGet();
+            if (waiting.remove(delivery)) {
+                giveUp(delivery);
+            }
+        }
+    }
+
+    /**
+     * Spools the payload if there is a spool, otherwise drops it.
+     */
+    private void giveUp(Delivery delivery) {
+        if (spool != null) {
+            spool(delivery);
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Appends the payload to the spool, one notice per line of a batch.
+     */
+    private void spool(Delivery delivery) {
+        if (!HoneybadgerClient.NDJSON.getMimeType().equals(delivery.contentType.getMimeType())) {
+            spool(delivery.body);
+            return;
+        }
+        byte[] body = delivery.body;
+        int start = 0;
+        for (int i = 0; i <= body.length; i++) {
+            if (i == body.length || body[i] == '\n') {
+                if (i > start) {
+                    byte[] notice = new byte[i - start];
+                    System.arraycopy(body, start, notice, 0, notice.length);
+                    spool(notice);
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    private void flushSpool() {
+        try {
+            spool.flush();
+        } catch (Exception e) {
+            logger.error("Could not write the spool", new HoneybadgerException(e));
+        }
+    }
+
+    private void scheduleReplay() {
+        if (!closed && replaying.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        replay();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+                replaying.set(false);
+            }
+        }
+    }
+
+    /**
+     * Sends the spooled notices, oldest first, until Honeybadger fails to accept one.
+     */
+    private void replay() {
+        if (closed) {
+            return;
+        }
+        replaying.set(true);
+        try {
+            flushSpool();
+            int count = spool.replay(new DiskSpool.Sink() {
+                @Override
+                public boolean deliver(byte[] notice) {
+                    return replay(notice);
+                }
+            });
+            if (count > 0) {
+                logger.info("Replayed {} spooled errors", count);
+            }
+        } catch (Exception e) {
+            logger.error("An exception occurred while replaying the spool", new HoneybadgerException(e));
+        } finally {
+            replaying.set(false);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the notice was consumed
+     */
+    private boolean replay(byte[] notice) {
+        if (!circuitBreaker.allowRequest()) {
+            return false;
+        }
+        try {
+            HttpTransport.Response response = transport.send(transport.getUri(), notice,
+                                                             ContentType.APPLICATION_JSON);
+            if (response.isSuccessful()) {
+                circuitBreaker.onSuccess();
+                replayed.incrementAndGet();
+                return true;
+            }
+            if (response.getStatusCode() == 429) {
+                circuitBreaker.pause(response.getRetryAfter() >= 0 ? response.getRetryAfter() : backoff);
+                return false;
+            }
+            if (response.isRetryable()) {
+                onFailure();
+                return false;
+            }
+            // Will never be accepted, drop it
+            circuitBreaker.onSuccess();
+            failed.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            logger.error("There was an error when trying to replay a spooled error to Honeybadger",
+                         new HoneybadgerException(e));
+            onFailure();
+            return false;
+        }
+    }
+
+    /**
+     * A marshalled payload along with its retries so far.
+     */
+    private static final class Delivery {
+
+        private final URI uri;
+        private final byte[] body;
+        private final ContentType contentType;
+        private final long queuedAt;
+        private int retries;
+
+        private Delivery(URI uri, byte[] body, ContentType contentType, long queuedAt) {
+            this.uri = uri;
+            this.body = body;
+            this.contentType = contentType;
+            this.queuedAt = queuedAt;
+        }
+
+        /**
+         * @return the number of notices of the payload, one per line of a batch
+         */
+        private int notices() {
+            if (!HoneybadgerClient.NDJSON.getMimeType().equals(contentType.getMimeType())) {
+                return 1;
+            }
+            int notices = 0;
+            for (int i = 0; i < body.length; i++) {
+                if (body[i] == '\n') {
+                    notices++;
+                }
+            }
+            return notices;
+        }
+    }
+}
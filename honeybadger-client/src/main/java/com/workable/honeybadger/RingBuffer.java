@@ -0,0 +1,186 @@
+package com.workable.honeybadger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue of error snapshots backed by a preallocated ring of slots.
+ * <p>
+ * Producers claim a slot with a single CAS and never block nor allocate: when the ring is full the error is rejected.
+ * Each slot carries a sequence number telling whether it is free to write or ready to read (see Dmitry Vyukov's
+ * bounded MPMC queue), so dispatcher threads can drain it concurrently. Idle consumers back off by parking for longer
+ * and longer, up to their poll timeout, and a producer unparks one of them when it publishes an error, which keeps the
+ * producer side free of any lock and the idle consumers from waking up every millisecond.
+ */
+final class RingBuffer {
+
+    /**
+     * Time in nanoseconds an idle consumer first parks, doubled every time the ring is still empty
+     */
+    private static final long MIN_PARK = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Slot[] slots;
+    private final int mask;
+
+    /**
+     * Next position to write
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Next position to read
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Consumers parked until an error is offered
+     */
+    private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param capacity The number of slots, rounded up to the next power of two
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(i);
+        }
+    }
+
+    /**
+     * Adds the error to the ring if there is a free slot.
+     *
+     * @return <code>false</code> if the ring is full
+     */
+    boolean offer(ErrorSnapshot snapshot) {
+        long position = tail.get();
+        Slot slot;
+        while (true) {
+            slot = slots[(int) position & mask];
+            long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        slot.snapshot = snapshot;
+        // Publishes the slot to the consumers
+        slot.sequence = position + 1;
+
+        Thread waiter = waiters.poll();
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    /**
+     * Moves the next error, if any, to the specified entry.
+     *
+     * @return <code>false</code> if the ring is empty
+     */
+    boolean poll(Entry entry) {
+        long position = head.get();
+        Slot slot;
+        while (true) {
+            slot = slots[(int) position & mask];
+            long difference = slot.sequence - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = head.get();
+            }
+        }
+
+        entry.snapshot = slot.snapshot;
+        slot.snapshot = null;
+        // Frees the slot for the producers of the next lap
+        slot.sequence = position + mask + 1;
+        return true;
+    }
+
+    /**
+     * Moves the next error to the specified entry, waiting up to the specified time for one to be available.
+     *
+     * @return <code>false</code> if the ring remained empty
+     */
+    boolean poll(Entry entry, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int idle = 0;
+        long park = MIN_PARK;
+        Thread current = Thread.currentThread();
+        while (!poll(entry)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            if (++idle < 64) {
+                Thread.yield();
+                continue;
+            }
+
+            waiters.add(current);
+            try {
+                // Checks again once registered, so that an error offered meanwhile does not wait for the park
+                if (poll(entry)) {
+                    return true;
+                }
+                LockSupport.parkNanos(this, Math.min(remaining, park));
+            } finally {
+                waiters.remove(current);
+            }
+            park = Math.min(park * 2, remaining);
+        }
+        return true;
+    }
+
+    boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Holder the consumers move the errors to, so that slots can be reused right away.
+     */
+    static final class Entry {
+
+        ErrorSnapshot snapshot;
+    }
+
+    private static final class Slot {
+
+        private volatile long sequence;
+        private ErrorSnapshot snapshot;
+
+        private Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
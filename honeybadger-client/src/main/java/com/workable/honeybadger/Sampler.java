@@ -0,0 +1,223 @@
+package com.workable.honeybadger;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Samples the reported errors, at a fixed rate normally and adaptively during error storms.
+ * <p>
+ * The sampler switches to adaptive sampling for the next second whenever the errors reported during the last second
+ * or the depth of the queue cross their threshold. It then keeps the first occurrence of every exception class within
+ * the second and the <i>n</i>th repeat with a probability of <code>rate / 2^floor(log2(n))</code>, so that a class
+ * repeating a million times a second is only reported about twenty times. Exception classes never seen before are
+ * always kept. The probability an error was kept with is recorded in its {@link Error#getSampleRate() sample rate},
+ * so that counts can be extrapolated.
+ * <p>
+ * At most {@link #MAX_CLASSES} classes are tracked. When full, the classes not seen during the last window are
+ * forgotten at the next one, and new classes are counted together until there is room again, so that a storm of
+ * distinct classes neither grows the sampler nor makes it keep every error as never seen before.
+ * <p>
+ * Deciding allocates nothing once a class has been seen and does not contend: the input rate is counted over striped
+ * counters and the random draws come from {@link ThreadLocalRandom}.
+ */
+class Sampler {
+
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Max number of exception classes tracked
+     */
+    private static final int MAX_CLASSES = 1000;
+
+    /**
+     * Bits of the packed state of a class holding its count within the window
+     */
+    private static final int COUNT_BITS = 40;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long WINDOW_MASK = (1L << (64 - COUNT_BITS)) - 1;
+
+    private final HoneybadgerClient client;
+    private final double rate;
+    private final double threshold;
+    private final int queueDepth;
+    private final long origin = System.nanoTime();
+
+    /**
+     * Window of the last errors counted in {@link #input}
+     */
+    private final AtomicLong window = new AtomicLong();
+    private final StripedCounter input = new StripedCounter();
+    private final StripedCounter sampled = new StripedCounter();
+    private volatile boolean adaptive;
+
+    /**
+     * Window and count within the window of every exception class, packed in a long
+     */
+    private final ConcurrentMap<String, AtomicLong> classes = new ConcurrentHashMap<>();
+
+    /**
+     * Packed state of the classes that could not be tracked, counted as one
+     */
+    private final AtomicLong untracked = new AtomicLong();
+
+    /**
+     * @param client     The client whose queue depth is monitored
+     * @param rate       The probability an error is kept with, between 0 and 1
+     * @param threshold  Errors per second above which sampling turns adaptive, never when zero
+     * @param queueDepth Depth of the queue above which sampling turns adaptive, never when zero
+     */
+    Sampler(HoneybadgerClient client, double rate, double threshold, int queueDepth) {
+        this.client = client;
+        this.rate = rate;
+        this.threshold = threshold;
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Decides whether the error is kept, setting its sample rate if so.
+     *
+     * @return <code>false</code> if the error should be dropped
+     */
+    boolean sample(Error error) {
+        long window = (System.nanoTime() - origin) / WINDOW;
+        roll(window);
+        input.increment();
+
+        Throwable throwable = error.getError();
+        long count = count(throwable == null ? "" : throwable.getClass().getName(), window);
+
+        double probability;
+        if (count == 0) {
+            // Never seen before
+            probability = 1;
+        } else if (adaptive) {
+            probability = count == 1 ? 1 : rate / Long.highestOneBit(count);
+        } else {
+            probability = rate;
+        }
+
+        if (probability < 1 && ThreadLocalRandom.current().nextDouble() >= probability) {
+            sampled.increment();
+            return false;
+        }
+        error.setSampleRate(error.getSampleRate() * probability);
+        return true;
+    }
+
+    /**
+     * @return the number of errors dropped by the sampling
+     */
+    long getSampled() {
+        return sampled.sum();
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Decides on the sampling mode of a new window from the errors counted in the previous one.
+     */
+    private void roll(long window) {
+        long previous = this.window.get();
+        if (window <= previous || !this.window.compareAndSet(previous, window)) {
+            return;
+        }
+        double perSecond = (double) input.sumThenReset() / (window - previous);
+        adaptive = (threshold > 0 && perSecond > threshold)
+                   || (queueDepth > 0 && client.getQueueDepth() > queueDepth);
+        if (classes.size() >= MAX_CLASSES) {
+            forgetIdle(previous, window);
+        }
+    }
+
+    /**
+     * Forgets the classes seen neither in the previous window nor in the current one.
+     */
+    private void forgetIdle(long previous, long window) {
+        for (Iterator<AtomicLong> it = classes.values().iterator(); it.hasNext(); ) {
+            long seen = it.next().get() >>> COUNT_BITS;
+            if (seen != (previous & WINDOW_MASK) && seen != (window & WINDOW_MASK)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Counts an occurrence of the class within the window.
+     *
+     * @return the number of occurrences of the class within the window, this one included, or 0 if the class was
+     * never seen before
+     */
+    private long count(String className, long window) {
+        AtomicLong state = classes.get(className);
+        if (state == null) {
+            if (classes.size() >= MAX_CLASSES) {
+                state = untracked;
+            } else {
+                state = classes.putIfAbsent(className, new AtomicLong(pack(window, 1)));
+                if (state == null) {
+                    return 0;
+                }
+            }
+        }
+        while (true) {
+            long current = state.get();
+            long next = current >>> COUNT_BITS == (window & WINDOW_MASK) ? current + 1 : pack(window, 1);
+            if (state.compareAndSet(current, next)) {
+                return next & COUNT_MASK;
+            }
+        }
+    }
+
+    private static long pack(long window, long count) {
+        return (window & WINDOW_MASK) << COUNT_BITS | count;
+    }
+
+    /**
+     * Counter striped over padded cells, so that threads counting concurrently rarely share a cache line.
+     */
+    private static final class StripedCounter {
+
+        /**
+         * Longs per cell, a cell spanning a 64 bytes cache line
+         */
+        private static final int PADDING = 8;
+
+        private final int mask;
+        private final AtomicLongArray cells;
+
+        private StripedCounter() {
+            int stripes = Integer.highestOneBit(Math.max(2, Runtime.getRuntime().availableProcessors() * 2) - 1) << 1;
+            this.mask = stripes - 1;
+            this.cells = new AtomicLongArray(stripes * PADDING);
+        }
+
+        private void increment() {
+            long id = Thread.currentThread().getId();
+            int stripe = (int) (id ^ (id >>> 16)) * 0x9E3779B9 >>> 16 & mask;
+            cells.incrementAndGet(stripe * PADDING);
+        }
+
+        private long sum() {
+            long sum = 0;
+            for (int i = 0; i < cells.length(); i += PADDING) {
+                sum += cells.get(i);
+            }
+            return sum;
+        }
+
+        private long sumThenReset() {
+            long sum = 0;
+            for (int i = 0; i < cells.length(); i += PADDING) {
+                sum += cells.getAndSet(i, 0);
+            }
+            return sum;
+        }
+    }
+}
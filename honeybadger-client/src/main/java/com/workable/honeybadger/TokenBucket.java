@@ -0,0 +1,64 @@
+package com.workable.honeybadger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket.
+ * <p>
+ * Instead of counting tokens, the bucket keeps the time at which it will be full again and acquiring a token pushes
+ * that time one interval further, failing when it would get more than a burst ahead of now.
+ */
+final class TokenBucket {
+
+    /**
+     * Nanoseconds it takes to refill a single token
+     */
+    private final long interval;
+
+    /**
+     * Nanoseconds it takes to refill the whole bucket
+     */
+    private final long capacity;
+
+    /**
+     * Time in nanoseconds at which the bucket will be full again
+     */
+    private final AtomicLong fullAt;
+
+    /**
+     * @param permitsPerSecond The refill rate of the bucket
+     * @param burst            The max number of tokens the bucket holds
+     */
+    TokenBucket(double permitsPerSecond, int burst) {
+        this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.capacity = interval * Math.max(1, burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return <code>false</code> if the bucket is empty
+     */
+    boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + interval;
+            if (next - now > capacity) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the bucket is full, i.e. it has not been used for a while
+     */
+    boolean isFull() {
+        return fullAt.get() - System.nanoTime() <= 0;
+    }
+}
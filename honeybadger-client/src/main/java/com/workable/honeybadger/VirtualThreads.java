@@ -0,0 +1,59 @@
+package com.workable.honeybadger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the virtual threads of Java 21+, looked up reflectively so that the client still runs on older JVMs.
+ */
+final class VirtualThreads {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Method OF_VIRTUAL = method("java.lang.Thread", "ofVirtual");
+
+    private static final Method NAME = method("java.lang.Thread$Builder", "name", String.class, long.class);
+
+    private static final Method FACTORY = method("java.lang.Thread$Builder", "factory");
+
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR = method("java.util.concurrent.Executors",
+                                                                      "newThreadPerTaskExecutor", ThreadFactory.class);
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return OF_VIRTUAL != null && NAME != null && FACTORY != null && NEW_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @param name The name prefix of the threads, followed by a counter
+     * @return an executor starting a virtual thread per task, or <code>null</code> before Java 21
+     */
+    static ExecutorService newThreadPerTaskExecutor(String name) {
+        if (!isSupported()) {
+            return null;
+        }
+        try {
+            // Through the public builder interface, the builder classes are internal
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name, 0L);
+            ThreadFactory factory = (ThreadFactory) FACTORY.invoke(builder);
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.warn("Could not create virtual threads", e);
+            return null;
+        }
+    }
+
+    private static Method method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            return Class.forName(className).getMethod(name, parameterTypes);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
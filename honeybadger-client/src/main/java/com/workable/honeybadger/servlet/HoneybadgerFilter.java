@@ -4,6 +4,9 @@ import com.workable.honeybadger.*;
 import com.workable.honeybadger.Error;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -11,6 +14,7 @@ import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 
 import static com.workable.honeybadger.HoneybadgerClient.HONEYBADGER_API_KEY_SYS_PROP_KEY;
 import static com.workable.honeybadger.HoneybadgerClient.HONEYBADGER_EXCLUDED_CLASSES_SYS_PROP_KEY;
@@ -22,8 +26,40 @@ import static com.workable.honeybadger.HoneybadgerClient.HONEYBADGER_URL_SYS_PRO
  */
 public class HoneybadgerFilter implements Filter {
 
+    /**
+     * Comma delimited list of the request headers reported, <code>*</code> for all of them.
+     */
+    public static final String REQUEST_HEADERS_PARAM = "honeybadger.request.headers";
+
+    /**
+     * Whether the request parameters are reported.
+     */
+    public static final String REQUEST_PARAMETERS_PARAM = "honeybadger.request.parameters";
+
+    /**
+     * Max number of request parameters reported.
+     */
+    public static final String REQUEST_MAX_PARAMETERS_PARAM = "honeybadger.request.maxParameters";
+
+    /**
+     * Max length of a reported header or parameter value.
+     */
+    public static final String REQUEST_MAX_VALUE_LENGTH_PARAM = "honeybadger.request.maxValueLength";
+
+    /**
+     * Max size in bytes of a form body whose parameters are reported.
+     */
+    public static final String REQUEST_MAX_FORM_SIZE_PARAM = "honeybadger.request.maxFormSize";
+
+    /**
+     * Max time in milliseconds to wait on destroy for the queued errors to be sent
+     */
+    private static final long CLOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
     private HoneybadgerClient reporter;
 
+    private RequestCapture requestCapture;
+
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
         setSysPropFromfilterConfig(filterConfig, HONEYBADGER_URL_SYS_PROP_KEY);
@@ -32,6 +68,7 @@ public class HoneybadgerFilter implements Filter {
         setSysPropFromfilterConfig(filterConfig, HONEYBADGER_EXCLUDED_CLASSES_SYS_PROP_KEY);
 
         reporter = new HoneybadgerClient();
+        requestCapture = requestCapture(filterConfig);
     }
 
     @Override
@@ -42,15 +79,71 @@ public class HoneybadgerFilter implements Filter {
             chain.doFilter(request, response);
         } catch (Throwable e) {
             Error error = new Error(e);
-            error.setContext(request);
+            // Copied here, the container may recycle the request before the error is dispatched. Excluded errors
+            // are only counted, so they skip the copy.
+            if (request instanceof HttpServletRequest && !reporter.shouldExclude(e)) {
+                error.setContext(capture((HttpServletRequest) request));
+            }
             reporter.reportError(error);
             throw e;
         }
     }
 
+    /**
+     * @return the snapshot of the request, or <code>null</code> if it could not be read, so that the error of the
+     * application is still reported and rethrown
+     */
+    private RequestSnapshot capture(HttpServletRequest request) {
+        try {
+            return requestCapture.capture(request);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
     @Override
     public void destroy() {
-        // do nothing
+        // Stops the threads of the client, which would otherwise outlive a redeployed application
+        if (reporter != null) {
+            reporter.close(CLOSE_TIMEOUT);
+            reporter = null;
+        }
+    }
+
+    private static RequestCapture requestCapture(FilterConfig filterConfig) {
+        List<String> headers = RequestCapture.DEFAULT_HEADERS;
+        String headersParam = filterConfig.getInitParameter(REQUEST_HEADERS_PARAM);
+        if (headersParam != null && headersParam.trim().equals("*")) {
+            headers = null;
+        } else if (headersParam != null) {
+            headers = new ArrayList<>();
+            for (String header : headersParam.split(",")) {
+                if (!header.trim().isEmpty()) {
+                    headers.add(header.trim());
+                }
+            }
+        }
+
+        String parameters = filterConfig.getInitParameter(REQUEST_PARAMETERS_PARAM);
+        return new RequestCapture(headers, parameters == null || Boolean.parseBoolean(parameters.trim()),
+                                  intParam(filterConfig, REQUEST_MAX_PARAMETERS_PARAM,
+                                           RequestCapture.DEFAULT_MAX_PARAMETERS),
+                                  intParam(filterConfig, REQUEST_MAX_VALUE_LENGTH_PARAM,
+                                           RequestCapture.DEFAULT_MAX_VALUE_LENGTH),
+                                  intParam(filterConfig, REQUEST_MAX_FORM_SIZE_PARAM,
+                                           RequestCapture.DEFAULT_MAX_FORM_SIZE));
+    }
+
+    private static int intParam(FilterConfig filterConfig, String param, int defaultValue) {
+        String val = filterConfig.getInitParameter(param);
+        if (val == null || val.trim().equals("")) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(val.trim());
+        } catch (NumberFormatException e) {
+            throw new HoneybadgerException("Invalid value of the filter parameter " + param + ": " + val, e);
+        }
     }
 
     /**
@@ -14,7 +14,7 @@ import javax.servlet.http.HttpServletRequest;
 
 /**
  * Parses the properties of a {@link javax.servlet.http.HttpServletRequest} object and turns it into the Honeybadger
- * JSON format.
+ * JSON format. {@link RequestSnapshot}s taken from requests are accepted as well.
  */
 public class HttpServletRequestInfoGenerator
     implements RequestInfoGenerator<HttpServletRequest> {
@@ -35,6 +35,9 @@ public class HttpServletRequestInfoGenerator
         if (requestSource == null){
             return new JsonObject();
         }
+        if (requestSource instanceof RequestSnapshot) {
+            return ((RequestSnapshot) requestSource).toJson();
+        }
         if (!(requestSource instanceof HttpServletRequest)) {
             throw new HoneybadgerException("Request object is not instance " +
                                            "of HttpServletRequest");
@@ -0,0 +1,176 @@
+package com.workable.honeybadger.servlet;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Takes bounded {@link RequestSnapshot}s of servlet requests: only the allowed headers are copied, the parameters are
+ * optional and limited in number, every value is truncated and form bodies above a size are not parsed.
+ */
+public class RequestCapture {
+
+    /**
+     * Headers captured by default, the credentials (Authorization, Cookie) being left out
+     */
+    public static final List<String> DEFAULT_HEADERS = Collections.unmodifiableList(Arrays.asList(
+        "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Content-Length", "Content-Type", "Host",
+        "Referer", "User-Agent", "X-Forwarded-For", "X-Forwarded-Proto", "X-Request-Id"));
+
+    public static final int DEFAULT_MAX_PARAMETERS = 50;
+
+    public static final int DEFAULT_MAX_VALUE_LENGTH = 1024;
+
+    public static final int DEFAULT_MAX_FORM_SIZE = 64 * 1024;
+
+    private static final String FORM = "application/x-www-form-urlencoded";
+
+    /**
+     * The allowed headers, all of them if <code>null</code>
+     */
+    private final List<String> headers;
+    private final boolean parameters;
+    private final int maxParameters;
+    private final int maxValueLength;
+    private final int maxFormSize;
+
+    /**
+     * Captures the default headers and up to 50 parameters, truncating values to 1024 characters and leaving out the
+     * parameters of forms above 64 KB.
+     */
+    public RequestCapture() {
+        this(DEFAULT_HEADERS, true, DEFAULT_MAX_PARAMETERS, DEFAULT_MAX_VALUE_LENGTH, DEFAULT_MAX_FORM_SIZE);
+    }
+
+    /**
+     * @param headers        The headers captured, all of them if <code>null</code>
+     * @param parameters     Whether the request parameters are captured
+     * @param maxParameters  Max number of parameters captured
+     * @param maxValueLength Max length of a header or parameter value, longer ones are truncated
+     * @param maxFormSize    Max size in bytes of a form body whose parameters are captured. Larger bodies, or bodies of
+     *                       unknown size, are not parsed
+     */
+    public RequestCapture(Collection<String> headers, boolean parameters, int maxParameters, int maxValueLength,
+                          int maxFormSize) {
+        this.headers = headers == null ? null : Collections.unmodifiableList(Arrays.asList(
+            headers.toArray(new String[headers.size()])));
+        this.parameters = parameters;
+        this.maxParameters = maxParameters;
+        this.maxValueLength = maxValueLength;
+        this.maxFormSize = maxFormSize;
+    }
+
+    /**
+     * Copies the request, to be called on the thread serving it.
+     */
+    public RequestSnapshot capture(HttpServletRequest request) {
+        Map<String, Object> cgiData = new LinkedHashMap<>();
+        cgiData.put("REQUEST_METHOD", request.getMethod());
+        cgiData.put("HTTP_ACCEPT", truncate(request.getHeader("Accept")));
+        cgiData.put("HTTP_USER_AGENT", truncate(request.getHeader("User-Agent")));
+        cgiData.put("HTTP_ACCEPT_ENCODING", truncate(request.getHeader("Accept-Encoding")));
+        cgiData.put("HTTP_ACCEPT_LANGUAGE", truncate(request.getHeader("Accept-Language")));
+        cgiData.put("HTTP_ACCEPT_CHARSET", truncate(request.getHeader("Accept-Charset")));
+        cgiData.put("SERVER_NAME", request.getServerName());
+        cgiData.put("SERVER_PORT", request.getServerPort());
+        cgiData.put("CONTENT_TYPE", truncate(request.getContentType()));
+        cgiData.put("CONTENT_LENGTH", request.getContentLength());
+        cgiData.put("REMOTE_ADDR", request.getRemoteAddr());
+        cgiData.put("REMOTE_PORT", request.getRemotePort());
+        cgiData.put("QUERY_STRING", truncate(request.getQueryString()));
+        cgiData.put("PATH_INFO", truncate(request.getPathInfo()));
+
+        return new RequestSnapshot(truncate(HttpServletRequestInfoGenerator.getFullURL(request)), cgiData,
+                                   headers(request), parameters(request));
+    }
+
+    private Map<String, String> headers(HttpServletRequest request) {
+        Map<String, String> captured = new LinkedHashMap<>();
+        if (headers != null) {
+            for (String name : headers) {
+                String value = request.getHeader(name);
+                if (value != null) {
+                    captured.put(name, truncate(value));
+                }
+            }
+            return captured;
+        }
+
+        Enumeration<?> names = request.getHeaderNames();
+        if (names != null) {
+            while (names.hasMoreElements()) {
+                String name = (String) names.nextElement();
+                captured.put(name, truncate(request.getHeader(name)));
+            }
+        }
+        return captured;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> parameters(HttpServletRequest request) {
+        Map<String, String> captured = new LinkedHashMap<>();
+        if (!parameters || maxParameters <= 0 || isLargeForm(request)) {
+            return captured;
+        }
+
+        try {
+            Map<String, String[]> parameterMap = request.getParameterMap();
+            if (parameterMap == null) {
+                return captured;
+            }
+            for (Map.Entry<String, String[]> entry : parameterMap.entrySet()) {
+                if (captured.size() == maxParameters) {
+                    break;
+                }
+                captured.put(entry.getKey(), truncate(csv(entry.getValue())));
+            }
+        } catch (RuntimeException e) {
+            // The container may fail to parse the body, the error at hand matters more
+            captured.put("Error getting parameters", e.getMessage());
+        }
+        return captured;
+    }
+
+    /**
+     * @return whether getting the parameters would parse a form body larger than the max form size
+     */
+    private boolean isLargeForm(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        if (contentType == null || !contentType.regionMatches(true, 0, FORM, 0, FORM.length())) {
+            return false;
+        }
+        int contentLength = request.getContentLength();
+        return contentLength < 0 || contentLength > maxFormSize;
+    }
+
+    private String csv(String[] values) {
+        if (values == null || values.length == 0) {
+            return "";
+        }
+        if (values.length == 1) {
+            return values[0];
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length && builder.length() <= maxValueLength; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    private String truncate(String value) {
+        if (value == null || maxValueLength <= 0 || value.length() <= maxValueLength) {
+            return value;
+        }
+        return value.substring(0, maxValueLength) + "... [truncated " + (value.length() - maxValueLength) + " chars]";
+    }
+}
@@ -0,0 +1,78 @@
+package com.workable.honeybadger.servlet;
+
+import com.google.gson.JsonObject;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable copy of the parts of a servlet request reported to Honeybadger, taken on the request thread by a
+ * {@link RequestCapture} so that the request object itself never reaches the dispatcher threads.
+ */
+public final class RequestSnapshot {
+
+    private final String url;
+    private final Map<String, Object> cgiData;
+    private final Map<String, String> headers;
+    private final Map<String, String> parameters;
+
+    RequestSnapshot(String url, Map<String, Object> cgiData, Map<String, String> headers,
+                    Map<String, String> parameters) {
+        this.url = url;
+        this.cgiData = Collections.unmodifiableMap(cgiData);
+        this.headers = Collections.unmodifiableMap(headers);
+        this.parameters = Collections.unmodifiableMap(parameters);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the CGI variables, such as REQUEST_METHOD or HTTP_USER_AGENT, with String or Integer values
+     */
+    public Map<String, Object> getCgiData() {
+        return cgiData;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return the snapshot in the same format as {@link HttpServletRequestInfoGenerator}
+     */
+    public JsonObject toJson() {
+        JsonObject jsonRequest = new JsonObject();
+        jsonRequest.addProperty("url", url);
+
+        JsonObject jsonCgiData = new JsonObject();
+        for (Map.Entry<String, Object> entry : cgiData.entrySet()) {
+            if (entry.getValue() instanceof Number) {
+                jsonCgiData.addProperty(entry.getKey(), (Number) entry.getValue());
+            } else {
+                jsonCgiData.addProperty(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        jsonRequest.add("cgi_data", jsonCgiData);
+
+        JsonObject jsonParams = new JsonObject();
+        jsonParams.add("request_headers", toJson(headers));
+        jsonParams.add("request_parameters", toJson(parameters));
+        jsonRequest.add("params", jsonParams);
+
+        return jsonRequest;
+    }
+
+    private static JsonObject toJson(Map<String, String> map) {
+        JsonObject json = new JsonObject();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            json.addProperty(entry.getKey(), entry.getValue());
+        }
+        return json;
+    }
+}
@@ -0,0 +1,192 @@
+package com.workable.honeybadger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class DiskSpoolTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spool").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldReplayAfterRestart() throws IOException {
+        DiskSpool spool = new DiskSpool(directory, 1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            spool.append(notice(i));
+        }
+        spool.flush();
+
+        final List<String> delivered = new ArrayList<>();
+        spool.replay(new DiskSpool.Sink() {
+            @Override
+            public boolean deliver(byte[] notice) {
+                if (delivered.size() == 2) {
+                    return false;
+                }
+                delivered.add(new String(notice));
+                return true;
+            }
+        });
+        spool.close();
+
+        DiskSpool reopened = new DiskSpool(directory, 1024 * 1024);
+        assertThat(reopened.size(), is(3L));
+        reopened.replay(new DiskSpool.Sink() {
+            @Override
+            public boolean deliver(byte[] notice) {
+                delivered.add(new String(notice));
+                return true;
+            }
+        });
+
+        assertThat(delivered.toString(), is("[{\"id\":0}, {\"id\":1}, {\"id\":2}, {\"id\":3}, {\"id\":4}]"));
+        assertThat(reopened.isEmpty(), is(true));
+        assertThat(directory.list().length, is(0));
+    }
+
+    @Test
+    public void shouldDropTornTail() throws IOException {
+        DiskSpool spool = new DiskSpool(directory, 1024 * 1024);
+        spool.append(notice(0));
+        spool.append(notice(1));
+        spool.close();
+
+        File segment = directory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        assertThat(new DiskSpool(directory, 1024 * 1024).size(), is(1L));
+    }
+
+    @Test
+    public void shouldEvictOldestSegments() throws IOException {
+        DiskSpool spool = new DiskSpool(directory, 256 * 1024);
+        byte[] notice = new byte[10 * 1024];
+        for (int i = 0; i < 100; i++) {
+            spool.append(notice);
+            spool.flush();
+        }
+
+        assertThat(spool.getEvicted() > 0, is(true));
+        assertThat(spool.size() + spool.getEvicted(), is(100L));
+        long size = 0;
+        for (File file : directory.listFiles()) {
+            size += file.length();
+        }
+        assertThat(size <= 256 * 1024, is(true));
+        spool.close();
+    }
+
+    @Test
+    public void shouldNotHoldTheLockWhileDelivering() throws Exception {
+        final DiskSpool spool = new DiskSpool(directory, 1024 * 1024);
+        spool.append(notice(0));
+        spool.flush();
+
+        final Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    spool.append(notice(1));
+                    spool.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        int consumed = spool.replay(new DiskSpool.Sink() {
+            @Override
+            public boolean deliver(byte[] notice) {
+                if (flusher.getState() == Thread.State.NEW) {
+                    flusher.start();
+                    try {
+                        flusher.join(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return true;
+            }
+        });
+
+        assertThat(flusher.isAlive(), is(false));
+        assertThat(consumed, is(2));
+        assertThat(spool.isEmpty(), is(true));
+        spool.close();
+    }
+
+    @Test
+    public void shouldBoundTheBufferedNotices() throws IOException {
+        DiskSpool spool = new DiskSpool(directory, 64 * 1024);
+        byte[] notice = new byte[10 * 1024];
+        for (int i = 0; i < 10; i++) {
+            spool.append(notice);
+        }
+
+        assertThat(spool.size(), is(6L));
+        assertThat(spool.getEvicted(), is(4L));
+        spool.close();
+    }
+
+    @Test
+    public void shouldKeepTheNoticesAFailedFlushCouldNotWrite() throws IOException {
+        DiskSpool spool = new DiskSpool(directory, 1024 * 1024);
+        spool.append(notice(0));
+        // The segment can not be created
+        assertThat(directory.delete(), is(true));
+
+        try {
+            spool.flush();
+            assertThat("flush should have failed", false);
+        } catch (IOException e) {
+            // Expected
+        }
+        assertThat(spool.size(), is(1L));
+
+        assertThat(directory.mkdirs(), is(true));
+        spool.append(notice(1));
+        spool.flush();
+
+        final List<String> delivered = new ArrayList<>();
+        spool.replay(new DiskSpool.Sink() {
+            @Override
+            public boolean deliver(byte[] notice) {
+                delivered.add(new String(notice));
+                return true;
+            }
+        });
+        assertThat(delivered.toString(), is("[{\"id\":0}, {\"id\":1}]"));
+        spool.close();
+    }
+
+    private static byte[] notice(int id) {
+        return ("{\"id\":" + id + "}").getBytes();
+    }
+}
@@ -0,0 +1,115 @@
+package com.workable.honeybadger;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ErrorSnapshotTest {
+
+    @Test
+    public void shouldCaptureFlatCopy() {
+        Exception cause = new IllegalArgumentException("The cause");
+        Error error = new Error("Oups", new IllegalStateException("Failed", cause));
+        error.setReporter("reporter");
+        Map<String, String> context = Collections.singletonMap("user", "42");
+
+        ErrorSnapshot snapshot = ErrorSnapshot.capture(error, context);
+
+        assertThat(snapshot.className, is(IllegalStateException.class.getName()));
+        assertThat(snapshot.message(), is("Oups"));
+        assertThat(snapshot.frames, is(error.getError().getStackTrace().length));
+        assertThat(snapshot.frameMethods[0], is("shouldCaptureFlatCopy"));
+        assertThat(snapshot.cause, is("Caused by: java.lang.IllegalArgumentException: The cause"));
+        assertThat(snapshot.causeFrames, is(cause.getStackTrace().length));
+
+        // The cause only differs from the exception by the line it was created at
+        assertThat(snapshot.headers, is(new String[]{error.getError().toString(), "Caused by: " + cause}));
+        assertThat(snapshot.blockFrames, is(new int[]{snapshot.frames, 1}));
+        assertThat(snapshot.commonFrames, is(new int[]{0, snapshot.causeFrames - 1}));
+        assertThat(snapshot.frameLines.length, is(snapshot.frames + 1));
+        assertThat(snapshot.frameLines[snapshot.causeFrame(0)], is(cause.getStackTrace()[0].getLineNumber()));
+        assertThat(snapshot.frameMethods[snapshot.causeFrame(1)], is(cause.getStackTrace()[1].getMethodName()));
+        assertThat(snapshot.action(), is("shouldCaptureFlatCopy"));
+        assertThat(snapshot.size > snapshot.frameLines.length * 40, is(true));
+    }
+
+    @Test
+    public void shouldClipTheMessagesWhenCaptured() {
+        String sql = repeat('x', 5000);
+        Error error = new Error(new IllegalStateException(sql, new IllegalArgumentException(sql)));
+
+        ErrorSnapshot snapshot = ErrorSnapshot.capture(error, null, 100);
+
+        assertThat(snapshot.message(), is(repeat('x', 100) + "... [truncated 4900 chars]"));
+        assertThat(snapshot.headers[0], is("java.lang.IllegalStateException: " + snapshot.message()));
+        assertThat(snapshot.headers[1], is("Caused by: java.lang.IllegalArgumentException: " + snapshot.message()));
+        assertThat(snapshot.cause, is(snapshot.headers[1]));
+        assertThat(snapshot.size < 5000, is(true));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldRenderTheSourceLikeThePrintedStackTrace() {
+        IllegalStateException throwable = new IllegalStateException("Failed\non two lines",
+                                                                     new IllegalArgumentException("The cause"));
+        throwable.addSuppressed(new UnsupportedOperationException());
+        StringWriter printed = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(printed, true));
+
+        JsonMarshaller marshaller = new JsonMarshaller(new HashSet<String>());
+        Map<String, Object> notice = new Gson().fromJson(marshaller.marshall(new Error(throwable)), Map.class);
+        Map<String, Object> source = (Map<String, Object>) ((Map<String, Object>) notice.get("error")).get("source");
+
+        StringBuilder rendered = new StringBuilder();
+        for (int i = 1; i <= source.size(); i++) {
+            rendered.append(source.get(String.valueOf(i))).append(System.lineSeparator());
+        }
+        // Without the modules of the frames
+        assertThat(rendered.toString(), is(printed.toString().replaceAll("(\tat )(?:[^/(\\s]*/)+", "$1")));
+    }
+
+    @Test
+    public void shouldRenderTheMessageWhenFirstNeeded() {
+        final int[] renders = new int[1];
+        Error error = new Error(new IllegalStateException("Failed"));
+        error.setMessageRenderer(new Error.MessageRenderer() {
+            @Override
+            public String render() {
+                renders[0]++;
+                return "Rendered";
+            }
+        });
+
+        ErrorSnapshot snapshot = ErrorSnapshot.capture(error, null);
+        assertThat(renders[0], is(0));
+        assertThat(snapshot.message(), is("Rendered"));
+        assertThat(snapshot.message(), is("Rendered"));
+        assertThat(renders[0], is(1));
+    }
+
+    @Test
+    public void shouldMarshalLikeTheError() {
+        JsonMarshaller marshaller = new JsonMarshaller(new HashSet<String>());
+        Error error = new Error("Oups", new IllegalStateException("Failed", new IllegalArgumentException()));
+
+        String json = new String(marshaller.marshallBytes(ErrorSnapshot.capture(error, null)));
+
+        assertThat(json, is(marshaller.marshall(error)));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,71 @@
+package com.workable.honeybadger;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class GzipCompressorTest {
+
+    @Test
+    public void shouldCompressToGzip() throws IOException {
+        GzipCompressor compressor = GzipCompressor.get();
+
+        for (int length : new int[]{0, 100, 100000, 1000}) {
+            byte[] payload = payload(length);
+            int size = compressor.compress(payload);
+
+            assertThat(Arrays.equals(gunzip(compressor.buffer(), size), payload), is(true));
+            if (length >= 1000) {
+                assertThat(size < length / 4, is(true));
+            }
+        }
+        compressor.release();
+    }
+
+    @Test
+    public void shouldReuseCompressorsAcrossThreads() throws InterruptedException {
+        final GzipCompressor compressor = GzipCompressor.get();
+        compressor.release();
+
+        final GzipCompressor[] reused = new GzipCompressor[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reused[0] = GzipCompressor.get();
+                reused[0].release();
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertThat(reused[0] == compressor, is(true));
+    }
+
+    private static byte[] payload(int length) {
+        StringBuilder payload = new StringBuilder(length);
+        for (int i = 0; payload.length() < length; i++) {
+            payload.append("\tat com.workable.Service.method").append(i % 7).append("(Service.java:42)\n");
+        }
+        payload.setLength(length);
+        return payload.toString().getBytes();
+    }
+
+    private static byte[] gunzip(byte[] buffer, int size) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(buffer, 0, size));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) >= 0) {
+            out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
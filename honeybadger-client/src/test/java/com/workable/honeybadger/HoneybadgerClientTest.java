@@ -1,10 +1,40 @@
 package com.workable.honeybadger;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.core.Is.is;
 
 public class HoneybadgerClientTest {
@@ -19,4 +49,509 @@ public class HoneybadgerClientTest {
         client = new HoneybadgerClient(null, null, null, "com.workable.honeybadger.test");
         assertThat(client.shouldExclude(new IOException("This is a test")), is(false));
     }
+
+    @Test
+    public void testShouldExcludeSubclassesAndCauses() {
+        HoneybadgerClient client = new HoneybadgerClient(null, null, "java.io.IOException,java.util.concurrent", null);
+        IOException cause = new FileNotFoundException("This is a test");
+
+        assertThat(client.shouldExclude(new IOException("This is a test")), is(true));
+        assertThat(client.shouldExclude(new TimeoutException("This is a test")), is(true));
+        assertThat(client.shouldExclude(cause), is(false));
+        assertThat(client.shouldExclude(new IllegalStateException(cause)), is(false));
+
+        client.setExcludeSubclasses(true);
+        assertThat(client.shouldExclude(cause), is(true));
+        assertThat(client.shouldExclude(new IllegalStateException(cause)), is(false));
+
+        client.setExcludeCauseChain(true);
+        assertThat(client.shouldExclude(new IllegalStateException(cause)), is(true));
+        assertThat(client.shouldExclude(new IllegalStateException("This is a test")), is(false));
+    }
+
+    @Test
+    public void testBatchDispatch() throws Exception {
+        try (StubServer server = new StubServer(false, 0)) {
+            HoneybadgerClient client = new HoneybadgerClient("key", null, null, null);
+            try {
+                client.setBatchSize(10);
+                client.setBatchLinger(200);
+                client.setBatchUrl(server.batchUrl());
+
+                for (int i = 0; i < 5; i++) {
+                    client.reportError(new Error(new IllegalStateException("Oups" + i)));
+                }
+
+                assertThat(client.flush(5000), is(true));
+                assertThat(server.requests.size(), is(1));
+                assertThat(server.requests.get(0).split("\n").length, is(5));
+                assertThat(client.getQueuedBytes(), is(0L));
+            } finally {
+                client.close(5000);
+            }
+        }
+    }
+
+    @Test
+    public void testInjectedExecutorService() throws Exception {
+        final AtomicInteger executed = new AtomicInteger();
+        ExecutorService executorService = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                                                  new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                super.execute(command);
+            }
+        };
+
+        try (StubServer server = new StubServer(false, 0)) {
+            HoneybadgerClient client = new HoneybadgerClient("key", null, null, null);
+            try {
+                client.setExecutorService(executorService);
+                client.setMaxThreads(1);
+                client.setBatchSize(10);
+                client.setBatchLinger(200);
+                client.setBatchUrl(server.batchUrl());
+
+                client.reportError(new Error(new IllegalStateException("Oups")));
+
+                server.await(1);
+                assertThat(server.requests.size(), is(1));
+                assertThat(executed.get(), is(1));
+            } finally {
+                client.close(5000);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCloseReleasesInjectedExecutorService() throws Exception {
+        ThreadPoolExecutor executorService = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+                                                                    new LinkedBlockingQueue<Runnable>());
+        try (StubServer server = new StubServer(true, 0)) {
+            for (boolean ringBuffer : new boolean[]{false, true}) {
+                HoneybadgerClient client = new HoneybadgerClient("key", null, null, null);
+                client.setExecutorService(executorService);
+                client.setMaxThreads(2);
+                client.setBatchSize(10);
+                client.setBatchLinger(50);
+                client.setRingBuffer(ringBuffer);
+                client.reportError(new Error(new IllegalStateException("Oups")));
+                client.close(5000);
+
+                for (int i = 0; i < 250 && executorService.getActiveCount() > 0; i++) {
+                    Thread.sleep(20);
+                }
+                assertThat(executorService.getActiveCount(), is(0));
+                assertThat(executorService.isShutdown(), is(false));
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testVirtualThreadDispatch() throws Exception {
+        try (StubServer server = new StubServer(true, 0)) {
+            // Falls back to platform threads before Java 21
+            HoneybadgerClient client = new HoneybadgerClient("key", null, null, null);
+            try {
+                client.setVirtualThreads(true);
+                client.setMaxInFlight(2);
+
+                for (int i = 0; i < 5; i++) {
+                    client.reportError(new Error(new IllegalStateException("Oups" + i)));
+                }
+
+                server.await(5);
+                assertThat(server.requests.size(), is(5));
+            } finally {
+                client.close(5000);
+            }
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        try (StubServer server = new StubServer(false, 0)) {
+            HoneybadgerClient client = new HoneybadgerClient("key", null, "java.io.IOException", null);
+            try {
+                client.setBatchSize(10);
+                client.setBatchLinger(100);
+                client.setBatchUrl(server.batchUrl());
+                client.registerMBean("test");
+
+                for (int i = 0; i < 3; i++) {
+                    client.reportError(new Error(new IllegalStateException("Oups" + i)));
+                }
+                client.reportError(new Error(new IOException("Excluded")));
+
+                assertThat(client.flush(5000), is(true));
+
+                ObjectName name = new ObjectName(HoneybadgerClient.MBEAN_DOMAIN +
+                                                 ":type=HoneybadgerClient,name=\"test\"");
+                MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                assertThat((Long) mbeanServer.getAttribute(name, "ReportedCount"), is(4L));
+                assertThat((Long) mbeanServer.getAttribute(name, "ExcludedCount"), is(1L));
+                assertThat((Long) mbeanServer.getAttribute(name, "QueuedCount"), is(3L));
+                assertThat((Long) mbeanServer.getAttribute(name, "SentCount"), is(3L));
+                assertThat((Integer) mbeanServer.getAttribute(name, "QueueDepth"), is(0));
+                assertThat(client.getMarshalTime().getCount(), is(3L));
+                assertThat(client.getEndToEndTime().getCount(), is(1L));
+                assertThat(client.getMarshalledBytes() > 0, is(true));
+
+                client.unregisterMBean();
+                assertThat(mbeanServer.isRegistered(name), is(false));
+            } finally {
+                client.close(5000);
+            }
+        }
+    }
+
+    @Test
+    public void testReplacedMBeanIsKeptWhenTheOldClientCloses() throws Exception {
+        ObjectName name = new ObjectName(HoneybadgerClient.MBEAN_DOMAIN + ":type=HoneybadgerClient,name=\"replaced\"");
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        HoneybadgerClient previous = new HoneybadgerClient("key", null, null, null);
+        HoneybadgerClient current = new HoneybadgerClient("key", null, null, null);
+        try {
+            previous.registerMBean("replaced");
+            current.registerMBean("replaced");
+
+            // As on a reconfiguration, the new client registers before the old one is closed
+            previous.close(5000);
+            assertThat(mbeanServer.isRegistered(name), is(true));
+
+            current.close(5000);
+            assertThat(mbeanServer.isRegistered(name), is(false));
+        } finally {
+            previous.close(0);
+            current.close(0);
+        }
+    }
+
+    @Test
+    public void testFlushAndClose() throws Exception {
+        try (StubServer server = new StubServer(true, 50)) {
+            HoneybadgerClient client = new HoneybadgerClient("key", null, null, null);
+            try {
+                client.setMaxThreads(1);
+
+                for (int i = 0; i < 5; i++) {
+                    client.reportError(new Error(new IllegalStateException("Oups" + i)));
+                }
+                assertThat(client.flush(5000), is(true));
+                assertThat(server.requests.size(), is(5));
+
+                client.reportError(new Error(new IllegalStateException("Last")));
+                assertThat(client.close(5000), is(true));
+                assertThat(server.requests.size(), is(6));
+
+                client.reportError(new Error(new IllegalStateException("Closed")));
+                assertThat(client.getDroppedCount(), is(1L));
+                assertThat(client.getQueuedCount(), is(6L));
+            } finally {
+                client.close(5000);
+            }
+        }
+    }
+
+    @Test
+    public void testAggregation() throws Exception {
+        final List<Error> dispatched = new CopyOnWriteArrayList<>();
+        HoneybadgerClient client = new HoneybadgerClient(null, null, null, null) {
+            @Override
+            protected void doDispatchError(Error error) {
+                dispatched.add(error);
+            }
+        };
+        client.setAsync(false);
+        client.setAggregationWindow(200);
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                client.reportError(new Error(new IllegalStateException("Oups")));
+            }
+            client.reportError(new Error(new IllegalArgumentException("Other")));
+
+            assertThat(dispatched.size(), is(2));
+
+            for (int i = 0; i < 50 && dispatched.size() < 3; i++) {
+                Thread.sleep(100);
+            }
+
+            assertThat(dispatched.size(), is(3));
+            assertThat(dispatched.get(0).getOccurrences(), is(1));
+            assertThat(dispatched.get(2).getOccurrences(), is(9));
+            assertThat(dispatched.get(2).getError().getMessage(), is("Oups"));
+        } finally {
+            client.close(5000);
+        }
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        final List<Error> dispatched = new CopyOnWriteArrayList<>();
+        HoneybadgerClient client = new HoneybadgerClient(null, null, null, null) {
+            @Override
+            protected void doDispatchError(Error error) {
+                dispatched.add(error);
+            }
+        };
+        client.setAsync(false);
+        client.setRateLimit(3);
+        client.setErrorRateLimit(2);
+
+        for (int i = 0; i < 5; i++) {
+            client.reportError(new Error(new IllegalStateException("Oups")));
+            client.reportError(new Error(new IllegalArgumentException("Other")));
+        }
+
+        assertThat(dispatched.size(), is(3));
+        assertThat(client.getErrorRateLimitedCount(), is(6L));
+        assertThat(client.getRateLimitedCount(), is(1L));
+    }
+
+    @Test
+    public void testReportThrowable() throws Exception {
+        final List<Error> dispatched = new CopyOnWriteArrayList<>();
+        HoneybadgerClient client = new HoneybadgerClient(null, null, "java.io.IOException", null) {
+            @Override
+            protected void doDispatchError(Error error) {
+                dispatched.add(error);
+            }
+        };
+        client.setAsync(false);
+        client.setErrorRateLimit(1);
+
+        final AtomicInteger rendered = new AtomicInteger();
+        Error.MessageRenderer renderer = new Error.MessageRenderer() {
+            @Override
+            public String render() {
+                return "Rendered" + rendered.incrementAndGet();
+            }
+        };
+        client.reportError(new IOException("Excluded"), "logger", renderer);
+        client.reportError(new IllegalStateException("Oups"), "logger", renderer);
+        client.reportError(new IllegalStateException("Oups"), "logger", renderer);
+
+        assertThat(client.getReportedCount(), is(3L));
+        assertThat(client.getExcludedCount(), is(1L));
+        assertThat(client.getErrorRateLimitedCount(), is(1L));
+        assertThat(dispatched.size(), is(1));
+        assertThat(rendered.get(), is(0));
+        assertThat(dispatched.get(0).getReporter(), is("logger"));
+        assertThat(dispatched.get(0).getMessage(), is("Rendered1"));
+        assertThat(dispatched.get(0).getMessage(), is("Rendered1"));
+    }
+
+    @Test
+    public void testReportThrowableWithContext() throws Exception {
+        try (StubServer server = new StubServer(true, 0)) {
+            HoneybadgerClient client = new HoneybadgerClient("key", null, null, null);
+            try {
+                client.setErrorRateLimit(1);
+
+                final AtomicInteger rendered = new AtomicInteger();
+                Error.MessageRenderer renderer = new Error.MessageRenderer() {
+                    @Override
+                    public String render() {
+                        return "Rendered" + rendered.incrementAndGet();
+                    }
+                };
+                Map<String, String> context = Collections.singletonMap("tenant", "acme");
+                client.reportError(new IllegalStateException("Oups"), "logger", renderer, context);
+                client.reportError(new IllegalStateException("Oups"), "logger", renderer, context);
+
+                // Rendered before returning, and only once accepted
+                assertThat(rendered.get(), is(1));
+                assertThat(client.flush(5000), is(true));
+                assertThat(server.requests.size(), is(1));
+                assertThat(server.requests.get(0).contains("\"message\":\"Rendered1\""), is(true));
+                assertThat(server.requests.get(0).contains("\"tenant\":\"acme\""), is(true));
+            } finally {
+                client.close(5000);
+            }
+        }
+    }
+
+    @Test
+    public void testOverflowPolicies() throws Exception {
+        HoneybadgerClient client = new HoneybadgerClient("key", null, null, null);
+        client.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        assertThat(overflow(client), is(Arrays.asList("Oups0", "Oups1")));
+        assertThat(client.getDroppedCount(OverflowPolicy.DROP_NEWEST), is(1L));
+
+        client = new HoneybadgerClient("key", null, null, null);
+        assertThat(overflow(client), is(Arrays.asList("Oups0", "Oups2")));
+        assertThat(client.getDroppedCount(OverflowPolicy.DROP_OLDEST), is(1L));
+
+        client = new HoneybadgerClient("key", null, null, null);
+        client.setOverflowPolicy(OverflowPolicy.BLOCK);
+        client.setOverflowTimeout(50);
+        assertThat(overflow(client), is(Arrays.asList("Oups0", "Oups1")));
+        assertThat(client.getDroppedCount(OverflowPolicy.BLOCK), is(1L));
+        assertThat(client.getDroppedCount(), is(1L));
+    }
+
+    @Test
+    public void testCallerRunsOverflowPolicy() throws Exception {
+        HoneybadgerClient client = new HoneybadgerClient("key", null, null, null);
+        client.setOverflowPolicy(OverflowPolicy.CALLER_RUNS);
+        client.setOverflowTimeout(100);
+        client.setMaxConnections(2);
+
+        // Sent by the caller, which gives up on the response after the timeout
+        assertThat(overflow(client), is(Arrays.asList("Oups0", "Oups2", "Oups1")));
+        assertThat(client.getDroppedCount(OverflowPolicy.CALLER_RUNS), is(1L));
+        assertThat(client.getSentCount(), is(2L));
+    }
+
+    @Test
+    public void testSpillOverflowPolicy() throws Exception {
+        File spoolDir = Files.createTempDirectory("spool").toFile();
+        try {
+            HoneybadgerClient client = new HoneybadgerClient("key", null, null, null);
+            client.setOverflowPolicy(OverflowPolicy.SPILL);
+            client.setSpoolDir(spoolDir.getPath());
+            // The spilled error may be replayed as soon as Honeybadger responds
+            assertThat(overflow(client), hasItems("Oups0", "Oups1"));
+            assertThat(client.getSpooledCount(), is(1L));
+            assertThat(client.getDroppedCount(OverflowPolicy.SPILL), is(0L));
+        } finally {
+            for (File file : spoolDir.listFiles()) {
+                file.delete();
+            }
+            spoolDir.delete();
+        }
+    }
+
+    /**
+     * Reports three errors to a client with a single dispatcher and room for one error in its queue, while the first
+     * error is being sent, then closes the client.
+     *
+     * @return the messages of the errors posted to Honeybadger, in order
+     */
+    private static List<String> overflow(HoneybadgerClient client) throws Exception {
+        final List<String> requests = new CopyOnWriteArrayList<>();
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/v1/notices", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.add(read(exchange.getRequestBody()));
+                received.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(201, -1);
+                exchange.close();
+            }
+        });
+        ExecutorService executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+
+        System.setProperty(HoneybadgerClient.HONEYBADGER_URL_SYS_PROP_KEY,
+                           "http://localhost:" + server.getAddress().getPort() + "/v1/notices");
+        try {
+            client.setMaxThreads(1);
+            client.setQueueSize(1);
+
+            client.reportError(new Error(new IllegalStateException("Oups0")));
+            assertThat(received.await(5, TimeUnit.SECONDS), is(true));
+            client.reportError(new Error(new IllegalStateException("Oups1")));
+            client.reportError(new Error(new IllegalStateException("Oups2")));
+            release.countDown();
+            assertThat(client.flush(5000), is(true));
+
+            List<String> messages = new ArrayList<>();
+            for (String request : requests) {
+                messages.add(request.replaceAll("(?s).*\"message\":\"(Oups\\d).*", "$1"));
+            }
+            return messages;
+        } finally {
+            client.close(5000);
+            System.clearProperty(HoneybadgerClient.HONEYBADGER_URL_SYS_PROP_KEY);
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Stub of Honeybadger recording the bodies posted to it.
+     */
+    private static final class StubServer implements Closeable {
+
+        private final List<String> requests = new CopyOnWriteArrayList<>();
+        private final HttpServer server;
+        private final boolean notices;
+
+        /**
+         * @param notices <code>true</code> to receive the notices posted to the Honeybadger URL, set for the time
+         *                the stub is open, <code>false</code> to only receive the batches posted to
+         *                {@link #batchUrl()}
+         * @param delay   Time in milliseconds taken to respond
+         */
+        private StubServer(boolean notices, final long delay) throws IOException {
+            this.notices = notices;
+            this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    requests.add(read(exchange.getRequestBody()));
+                    exchange.sendResponseHeaders(201, -1);
+                    exchange.close();
+                }
+            });
+            server.start();
+            if (notices) {
+                System.setProperty(HoneybadgerClient.HONEYBADGER_URL_SYS_PROP_KEY,
+                                   "http://localhost:" + server.getAddress().getPort() + "/v1/notices");
+            }
+        }
+
+        private String batchUrl() {
+            return "http://localhost:" + server.getAddress().getPort() + "/batch";
+        }
+
+        /**
+         * Waits up to 5 seconds for the specified number of requests.
+         */
+        private void await(int count) throws InterruptedException {
+            for (int i = 0; i < 250 && requests.size() < count; i++) {
+                Thread.sleep(20);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (notices) {
+                System.clearProperty(HoneybadgerClient.HONEYBADGER_URL_SYS_PROP_KEY);
+            }
+            server.stop(0);
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
 }
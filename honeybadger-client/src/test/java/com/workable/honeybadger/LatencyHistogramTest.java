@@ -0,0 +1,31 @@
+package com.workable.honeybadger;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.core.Is.is;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void shouldApproximatePercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getPercentile(99), is(0.0));
+
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getMean(), closeTo(1.99, 0.001));
+        assertThat(histogram.getMax(), is(100.0));
+        // 1 ms falls in the bucket up to 1024 us
+        assertThat(histogram.getPercentile(50), is(1.024));
+        assertThat(histogram.getPercentile(99), is(1.024));
+        assertThat(histogram.getPercentile(100), is(100.0));
+    }
+}
@@ -5,7 +5,10 @@ import com.google.gson.Gson;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -23,6 +26,7 @@ public class MarshallerTest {
     }
 
     @Test
+    @SuppressWarnings("unchecked")
     public void shouldMarshal() throws Exception {
 
         Throwable throwable = new IllegalArgumentException("something went wrong");
@@ -35,8 +39,141 @@ public class MarshallerTest {
 
         Map<String, Object> errorMap = map.getError();
 
-        //TODO add assertions
+        assertThat((String) errorMap.get("class"), is(IllegalArgumentException.class.getName()));
+        assertThat((String) errorMap.get("message"), is("something went wrong"));
+        assertThat((Map<String, Object>) errorMap.get("source"), hasEntry("1", (Object) throwable.toString()));
+    }
+
+    @Test
+    public void shouldMarshalUtf8Bytes() throws Exception {
+
+        Throwable throwable = new IllegalStateException("caf\u00e9 <b>");
+        byte[] result = marshaller.marshallBytes(new Error(throwable));
+
+        String json = new String(result, "UTF-8");
+        assertThat(json, containsString("\"caf\u00e9 \\u003cb\\u003e\""));
+        assertThat(json, is(marshaller.marshall(new Error(throwable))));
+    }
+
+    @Test
+    public void shouldRebuildServerWhenSystemPropertiesChange() throws Exception {
+
+        Error error = new Error(new IllegalStateException("something went wrong"));
+        assertThat(marshaller.marshall(error), not(containsString("honeybadger.test.prop")));
+
+        System.setProperty("honeybadger.test.prop", "value");
+        try {
+            assertThat(marshaller.marshall(error), containsString("\"honeybadger.test.prop\":\"value\""));
+        } finally {
+            System.clearProperty("honeybadger.test.prop");
+        }
+        assertThat(marshaller.marshall(error), not(containsString("honeybadger.test.prop")));
+    }
+
+    @Test
+    public void shouldRebuildServerOnRefreshWhenAPropertyValueChanges() throws Exception {
+
+        Error error = new Error(new IllegalStateException("something went wrong"));
+        System.setProperty("honeybadger.test.prop", "before");
+        try {
+            assertThat(marshaller.marshall(error), containsString("\"honeybadger.test.prop\":\"before\""));
+
+            System.setProperty("honeybadger.test.prop", "after");
+            marshaller.refresh();
+            assertThat(marshaller.marshall(error), containsString("\"honeybadger.test.prop\":\"after\""));
+        } finally {
+            System.clearProperty("honeybadger.test.prop");
+        }
+    }
+
+    @Test
+    public void shouldReuseCachedBacktraces() throws Exception {
 
+        Error error = new Error(new IllegalStateException("something went wrong"));
+        String first = marshaller.marshall(error);
+        assertThat(marshaller.getBacktraceCacheMisses(), is(1L));
+
+        assertThat(marshaller.marshall(error), is(first));
+        assertThat(marshaller.getBacktraceCacheHits(), is(1L));
+
+        // Same frames and headers from other instances
+        for (int i = 0; i < 2; i++) {
+            marshaller.marshall(new Error(new IllegalStateException("Failed", new IOException("cause"))));
+        }
+        assertThat(marshaller.getBacktraceCacheHits(), is(2L));
+        marshaller.marshall(new Error(new IllegalStateException("Failed", new IOException("other cause"))));
+        assertThat(marshaller.getBacktraceCacheMisses(), is(3L));
+
+        marshaller.setBacktraceCacheSize(0);
+        assertThat(marshaller.marshall(error), is(first));
+        assertThat(marshaller.getBacktraceCacheHits(), is(0L));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldTruncateLongStrings() throws Exception {
+
+        marshaller.setMaxFieldSize(100);
+        Error error = new Error(new IllegalStateException(repeat('x', 5000)));
+        ErrorSnapshot snapshot = ErrorSnapshot.capture(error, Collections.singletonMap("sql", repeat('y', 5000)),
+                                                       marshaller.getMaxFieldSize());
+        String result = new String(marshaller.marshallBytes(snapshot), "UTF-8");
+
+        HoneybadgerError map = new Gson().fromJson(result, HoneybadgerError.class);
+        String message = (String) map.getError().get("message");
+        assertThat(message, startsWith(repeat('x', 100)));
+        assertThat(message, endsWith("... [truncated 4900 chars]"));
+        assertThat(result, not(containsString(repeat('y', 101))));
+        assertThat(result, not(containsString(repeat('x', 101))));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldElideFramesFromTheMiddle() throws Exception {
+
+        marshaller.setMaxNoticeSize(8 * 1024);
+        Throwable throwable = new IllegalStateException("deep");
+        throwable.setStackTrace(frames(1000));
+        String result = marshaller.marshall(new Error(throwable));
+
+        HoneybadgerError map = new Gson().fromJson(result, HoneybadgerError.class);
+        List<Map<String, Object>> backtrace = (List<Map<String, Object>>) map.getError().get("backtrace");
+        assertThat(backtrace.size(), lessThan(100));
+        assertThat((String) backtrace.get(0).get("method"), is("Frame0.call"));
+        assertThat((String) backtrace.get(backtrace.size() - 1).get("method"), is("Frame999.call"));
+        assertThat(result, containsString("frames elided\""));
+        assertThat(result, containsString("lines elided\""));
+        assertThat((Map<String, Object>) map.getError().get("source"), hasEntry("1", (Object) throwable.toString()));
+        assertThat((Map<String, Object>) map.getError().get("source"), hasKey("1001"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldDropSectionsToFitTheNotice() throws Exception {
+
+        marshaller.setMaxNoticeSize(2 * 1024);
+        Error error = new Error(new IllegalStateException("something went wrong"));
+        ErrorSnapshot snapshot = ErrorSnapshot.capture(error, Collections.singletonMap("user", "42"));
+        String result = new String(marshaller.marshallBytes(snapshot), "UTF-8");
+
+        assertThat(result.length(), lessThanOrEqualTo(2 * 1024));
+        assertThat(result, containsString("\"system_properties\":{\"truncated\":\""));
+        assertThat(result, containsString("\"context\":{\"user\":\"42\"}"));
+        new Gson().fromJson(result, HoneybadgerError.class);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static StackTraceElement[] frames(int count) {
+        StackTraceElement[] frames = new StackTraceElement[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = new StackTraceElement("Frame" + i, "call", "Frame" + i + ".java", i + 1);
+        }
+        return frames;
     }
 
     private static class HoneybadgerError {
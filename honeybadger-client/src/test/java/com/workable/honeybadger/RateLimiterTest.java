@@ -0,0 +1,43 @@
+package com.workable.honeybadger;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class RateLimiterTest {
+
+    private final Throwable throwable = new IllegalStateException("Oups");
+
+    @Test
+    public void shouldNotEvictBusyErrorsWhenFull() {
+        RateLimiter limiter = new RateLimiter(0, 1, true, 1);
+        for (int i = 0; i < RateLimiter.MAX_ERRORS; i++) {
+            assertThat(limiter.tryAcquire(throwable, "reporter" + i), is(true));
+        }
+
+        // The untracked errors share the overflow bucket
+        assertThat(limiter.tryAcquire(throwable, "new"), is(true));
+        assertThat(limiter.tryAcquire(throwable, "other"), is(false));
+
+        // The busy buckets kept their state
+        assertThat(limiter.tryAcquire(throwable, "reporter0"), is(false));
+        assertThat(limiter.tryAcquire(throwable, "reporter" + (RateLimiter.MAX_ERRORS - 1)), is(false));
+        assertThat(limiter.getErrorShed(), is(3L));
+    }
+
+    @Test
+    public void shouldEvictIdleErrorsWhenFull() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(0, 100, true, 1);
+        for (int i = 0; i < RateLimiter.MAX_ERRORS; i++) {
+            assertThat(limiter.tryAcquire(throwable, "reporter" + i), is(true));
+        }
+        // Refilled after a token interval
+        Thread.sleep(50);
+
+        for (int i = 0; i < 200; i++) {
+            assertThat(limiter.tryAcquire(throwable, "new" + i), is(true));
+        }
+        assertThat(limiter.getErrorShed(), is(0L));
+    }
+}
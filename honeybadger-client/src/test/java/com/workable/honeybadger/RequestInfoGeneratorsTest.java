@@ -0,0 +1,91 @@
+package com.workable.honeybadger;
+
+import com.google.gson.JsonObject;
+
+import com.workable.honeybadger.servlet.HttpServletRequestInfoGenerator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class RequestInfoGeneratorsTest {
+
+    @Test
+    public void shouldResolveGeneratorsByClass() {
+        assertThat(RequestInfoGenerators.forClass(HttpServletRequest.class),
+                   instanceOf(HttpServletRequestInfoGenerator.class));
+        assertThat(RequestInfoGenerators.forClass(HashMap.class), instanceOf(MapRequestInfoGenerator.class));
+        assertThat(RequestInfoGenerators.forClass(GrpcCall.class), instanceOf(GrpcCallGenerator.class));
+        assertThat(RequestInfoGenerators.forClass(String.class), nullValue());
+        Object generator = RequestInfoGenerators.forClass(HashMap.class);
+        assertThat(RequestInfoGenerators.forClass(HashMap.class), sameInstance(generator));
+    }
+
+    @Test
+    public void shouldGenerateFromMaps() {
+        Map<String, Object> cgiData = new LinkedHashMap<>();
+        cgiData.put("REQUEST_METHOD", "GET");
+        cgiData.put("SERVER_PORT", 8080);
+        Map<String, Object> context = new LinkedHashMap<>();
+        context.put("url", "netty://orders/42");
+        context.put("cgi_data", cgiData);
+        context.put("tags", Arrays.asList("a", "b"));
+
+        JsonObject json = RequestInfoGenerators.generate(context);
+
+        assertThat(json.toString(), is("{\"url\":\"netty://orders/42\",\"cgi_data\":{\"REQUEST_METHOD\":\"GET\","
+                                       + "\"SERVER_PORT\":8080},\"tags\":[\"a\",\"b\"]}"));
+    }
+
+    @Test
+    public void shouldIgnoreUnknownContexts() {
+        assertThat(RequestInfoGenerators.generate(null), nullValue());
+        assertThat(RequestInfoGenerators.generate("not a request"), nullValue());
+        Error error = new Error(new IllegalStateException());
+        error.setContext(42);
+        assertThat(ErrorSnapshot.capture(error, null).request, nullValue());
+    }
+
+    @Test
+    public void shouldUseServiceGenerators() {
+        Error error = new Error(new IllegalStateException());
+        error.setContext(new GrpcCall("orders.Get"));
+
+        ErrorSnapshot snapshot = ErrorSnapshot.capture(error, Collections.<String, String>emptyMap());
+
+        assertThat(snapshot.request.get("url").getAsString(), is("grpc://orders.Get"));
+    }
+
+    public static class GrpcCall {
+
+        private final String method;
+
+        public GrpcCall(String method) {
+            this.method = method;
+        }
+    }
+
+    public static class GrpcCallGenerator implements RequestInfoGenerator<GrpcCall> {
+
+        @Override
+        public JsonObject generateRequest(GrpcCall requestSource) {
+            JsonObject json = new JsonObject();
+            json.addProperty("url", "grpc://" + requestSource.method);
+            return json;
+        }
+
+        @Override
+        public JsonObject routeRequest(Object requestSource) {
+            return generateRequest((GrpcCall) requestSource);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.workable.honeybadger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.entity.ContentType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class RetryingSenderTest {
+
+    private final Queue<Integer> statuses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private HttpTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                Integer status = statuses.poll();
+                byte[] body = "{}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(status == null ? 201 : status, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.start();
+        transport = new HttpTransport(URI.create("http://localhost:" + server.getAddress().getPort() + "/"), "key",
+                                      2, 1000, 1000, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldRetryUntilDelivered() throws Exception {
+        statuses.add(503);
+        statuses.add(500);
+        RetryingSender sender = new RetryingSender(transport, new CircuitBreaker(5, 1000), 3, 20, 100, 10, null,
+                                                   Thread.NORM_PRIORITY);
+
+        assertThat(sender.send(transport.getUri(), "{}".getBytes("UTF-8"), ContentType.APPLICATION_JSON), is(false));
+
+        for (int i = 0; i < 50 && requests.get() < 3; i++) {
+            Thread.sleep(20);
+        }
+        sender.close();
+
+        assertThat(requests.get(), is(3));
+        assertThat(sender.getRetried(), is(2L));
+        assertThat(sender.getFailed(), is(0L));
+    }
+
+    @Test
+    public void shouldNotRetryRejectedPayloads() throws Exception {
+        statuses.add(422);
+        RetryingSender sender = new RetryingSender(transport, new CircuitBreaker(5, 1000), 3, 20, 100, 10, null,
+                                                   Thread.NORM_PRIORITY);
+
+        assertThat(sender.send(transport.getUri(), "{}".getBytes("UTF-8"), ContentType.APPLICATION_JSON), is(false));
+        sender.close();
+
+        assertThat(requests.get(), is(1));
+        assertThat(sender.getRetried(), is(0L));
+        assertThat(sender.getFailed(), is(1L));
+    }
+
+    @Test
+    public void shouldStopSendingWhenCircuitIsOpen() throws Exception {
+        statuses.add(500);
+        statuses.add(500);
+        RetryingSender sender = new RetryingSender(transport, new CircuitBreaker(2, 60000), 3, 1000, 1000, 10, null,
+                                                   Thread.NORM_PRIORITY);
+
+        sender.send(transport.getUri(), "{}".getBytes("UTF-8"), ContentType.APPLICATION_JSON);
+        sender.send(transport.getUri(), "{}".getBytes("UTF-8"), ContentType.APPLICATION_JSON);
+        sender.send(transport.getUri(), "{}".getBytes("UTF-8"), ContentType.APPLICATION_JSON);
+        Thread.sleep(200);
+        sender.close();
+
+        assertThat(requests.get(), is(2));
+        assertThat(sender.getPending(), is(3));
+    }
+
+    @Test
+    public void shouldProbeAgainWhenTheProbeIsThrottled() throws Exception {
+        statuses.add(500);
+        statuses.add(429);
+        RetryingSender sender = new RetryingSender(transport, new CircuitBreaker(1, 100), 3, 20, 100, 10, null,
+                                                   Thread.NORM_PRIORITY);
+
+        assertThat(sender.send(transport.getUri(), "{}".getBytes("UTF-8"), ContentType.APPLICATION_JSON), is(false));
+
+        for (int i = 0; i < 100 && sender.getSent() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(sender.getSent(), is(1L));
+        assertThat(sender.send(transport.getUri(), "{}".getBytes("UTF-8"), ContentType.APPLICATION_JSON), is(true));
+        sender.close();
+
+        assertThat(requests.get(), is(4));
+    }
+
+    @Test
+    public void shouldReplaySpoolOnStartup() throws Exception {
+        File directory = Files.createTempDirectory("spool").toFile();
+        DiskSpool spool = new DiskSpool(directory, 1024 * 1024);
+        spool.append("{}".getBytes("UTF-8"));
+        spool.close();
+
+        RetryingSender sender = new RetryingSender(transport, new CircuitBreaker(5, 1000), 3, 20, 100, 10,
+                                                   new DiskSpool(directory, 1024 * 1024), Thread.NORM_PRIORITY);
+        for (int i = 0; i < 50 && sender.getReplayed() == 0; i++) {
+            Thread.sleep(20);
+        }
+        sender.close();
+
+        assertThat(requests.get(), is(1));
+        assertThat(sender.getReplayed(), is(1L));
+        assertThat(directory.list().length, is(0));
+        directory.delete();
+    }
+
+    @Test
+    public void shouldSendOverTheAsyncTransport() throws Exception {
+        statuses.add(503);
+        AsyncHttpTransport asyncTransport = new AsyncHttpTransport(transport.getUri(), "key", 2, 4, 1000, 1000, 1000,
+                                                                   -1, Thread.NORM_PRIORITY);
+        RetryingSender sender = new RetryingSender(transport, asyncTransport, new CircuitBreaker(5, 1000), 3, 20, 100,
+                                                   10, null, RetryingSender.newScheduler(Thread.NORM_PRIORITY), true);
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertThat(sender.send(transport.getUri(), "{}".getBytes("UTF-8"), ContentType.APPLICATION_JSON),
+                           is(false));
+            }
+
+            for (int i = 0; i < 50 && requests.get() < 11; i++) {
+                Thread.sleep(20);
+            }
+            assertThat(sender.close(), is(0));
+        } finally {
+            asyncTransport.close();
+        }
+
+        assertThat(requests.get(), is(11));
+        assertThat(sender.getRetried(), is(1L));
+        assertThat(sender.getInFlight(), is(0));
+    }
+}
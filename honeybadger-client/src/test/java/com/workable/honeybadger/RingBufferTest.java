@@ -0,0 +1,96 @@
+package com.workable.honeybadger;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class RingBufferTest {
+
+    @Test
+    public void shouldRejectWhenFull() {
+        RingBuffer ring = new RingBuffer(3);
+        assertThat(ring.capacity(), is(4));
+
+        ErrorSnapshot first = snapshot();
+        assertThat(ring.offer(first), is(true));
+        for (int i = 0; i < 3; i++) {
+            assertThat(ring.offer(snapshot()), is(true));
+        }
+        assertThat(ring.offer(snapshot()), is(false));
+
+        RingBuffer.Entry entry = new RingBuffer.Entry();
+        assertThat(ring.poll(entry), is(true));
+        assertThat(entry.snapshot, is(first));
+        assertThat(ring.offer(snapshot()), is(true));
+    }
+
+    @Test
+    public void shouldDeliverEveryErrorOnceAcrossProducers() throws Exception {
+        final RingBuffer ring = new RingBuffer(1024);
+        final int producers = 4;
+        final int perProducer = 10000;
+        final AtomicInteger rejected = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(producers);
+
+        for (int p = 0; p < producers; p++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        if (!ring.offer(snapshot())) {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        Set<ErrorSnapshot> received = new HashSet<>();
+        RingBuffer.Entry entry = new RingBuffer.Entry();
+        while (done.getCount() > 0 || !ring.isEmpty()) {
+            if (ring.poll(entry, 10, TimeUnit.MILLISECONDS)) {
+                assertThat(received.add(entry.snapshot), is(true));
+            }
+        }
+
+        assertThat(received.size() + rejected.get(), is(producers * perProducer));
+    }
+
+    @Test
+    public void shouldWakeParkedConsumersWhenOffered() throws Exception {
+        final RingBuffer ring = new RingBuffer(4);
+        final CountDownLatch received = new CountDownLatch(1);
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (ring.poll(new RingBuffer.Entry(), 10, TimeUnit.SECONDS)) {
+                        received.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    // Test over
+                }
+            }
+        };
+        consumer.start();
+
+        // Long enough for the consumer to back off well past a few milliseconds
+        Thread.sleep(500);
+        ring.offer(snapshot());
+
+        assertThat(received.await(100, TimeUnit.MILLISECONDS), is(true));
+        consumer.interrupt();
+    }
+
+    private static ErrorSnapshot snapshot() {
+        return ErrorSnapshot.capture(new Error(new IllegalStateException()), null);
+    }
+}
@@ -0,0 +1,69 @@
+package com.workable.honeybadger;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+
+public class SamplerTest {
+
+    private final HoneybadgerClient client = new HoneybadgerClient(null, null, null, null);
+
+    @Test
+    public void shouldSampleAtTheFixedRate() {
+        Sampler sampler = new Sampler(client, 0.5, 0, 0);
+
+        Error first = new Error(new IllegalStateException("Oups"));
+        assertThat(sampler.sample(first), is(true));
+        assertThat(first.getSampleRate(), is(1.0));
+
+        int kept = 0;
+        for (int i = 0; i < 10000; i++) {
+            Error error = new Error(new IllegalStateException("Oups"));
+            if (sampler.sample(error)) {
+                assertThat(error.getSampleRate(), is(0.5));
+                kept++;
+            }
+        }
+        assertThat(kept, allOf(greaterThan(4500), lessThan(5500)));
+        assertThat(sampler.getSampled(), is(10000L - kept));
+    }
+
+    @Test
+    public void shouldSampleRepeatsAdaptivelyDuringStorms() throws Exception {
+        Sampler sampler = new Sampler(client, 1, 10, 0);
+        for (int i = 0; i < 100; i++) {
+            assertThat(sampler.sample(new Error(new IllegalStateException("Oups"))), is(true));
+        }
+        assertThat(sampler.isAdaptive(), is(false));
+
+        // The storm is noticed once the second is over
+        Thread.sleep(1100);
+        Error first = new Error(new IllegalStateException("Oups"));
+        assertThat(sampler.sample(first), is(true));
+        assertThat(first.getSampleRate(), is(1.0));
+        assertThat(sampler.isAdaptive(), is(true));
+
+        int kept = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (sampler.sample(new Error(new IllegalStateException("Oups")))) {
+                kept++;
+            }
+        }
+        assertThat(kept, lessThan(50));
+        assertThat(sampler.sample(new Error(new IllegalArgumentException("New"))), is(true));
+    }
+
+    @Test
+    public void shouldRecordTheSampleRateInTheContext() throws Exception {
+        Error error = new Error(new IllegalStateException("Oups"));
+        error.setSampleRate(0.25);
+        String json = new JsonMarshaller(java.util.Collections.<String>emptySet()).marshall(error);
+
+        assertThat(json, containsString("\"sample_rate\":0.25"));
+    }
+}
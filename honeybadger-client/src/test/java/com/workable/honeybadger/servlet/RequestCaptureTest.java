@@ -0,0 +1,110 @@
+package com.workable.honeybadger.servlet;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class RequestCaptureTest {
+
+    @Test
+    public void shouldCaptureAllowedHeadersOnly() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("User-Agent", "curl");
+        headers.put("Cookie", "session=secret");
+        HttpServletRequest request = request(headers, "text/plain", 10, params("id", "42"));
+
+        RequestSnapshot snapshot = new RequestCapture().capture(request);
+
+        assertThat(snapshot.getUrl(), is("https://www.example.com/jobs?id=42"));
+        assertThat(snapshot.getHeaders(), hasEntry("User-Agent", "curl"));
+        assertThat(snapshot.getHeaders(), not(hasKey("Cookie")));
+        assertThat(snapshot.getParameters(), hasEntry("id", "42"));
+        assertThat(snapshot.getCgiData(), hasEntry("SERVER_PORT", (Object) 443));
+
+        JsonObject json = snapshot.toJson();
+        assertThat(json.get("url").getAsString(), is("https://www.example.com/jobs?id=42"));
+        assertThat(json.getAsJsonObject("params").getAsJsonObject("request_headers").get("User-Agent")
+                       .getAsString(), is("curl"));
+        assertThat(new HttpServletRequestInfoGenerator().routeRequest(snapshot), is(json));
+    }
+
+    @Test
+    public void shouldBoundParameters() {
+        Map<String, String[]> params = params("a", "1", "b", "2", "c", "3");
+        params.put("long", new String[]{"0123456789abcdef"});
+        HttpServletRequest request = request(Collections.<String, String>emptyMap(), "text/plain", 10, params);
+
+        RequestSnapshot snapshot = new RequestCapture(null, true, 3, 10, 100).capture(request);
+
+        assertThat(snapshot.getParameters().keySet(), contains("a", "b", "c"));
+
+        snapshot = new RequestCapture(null, true, 10, 10, 100).capture(request);
+        assertThat(snapshot.getParameters(), hasEntry("long", "0123456789... [truncated 6 chars]"));
+    }
+
+    @Test
+    public void shouldNotParseLargeForms() {
+        HttpServletRequest request = request(Collections.<String, String>emptyMap(),
+                                             "application/x-www-form-urlencoded; charset=UTF-8", 1000,
+                                             params("id", "42"));
+
+        assertThat(new RequestCapture(null, true, 10, 10, 100).capture(request).getParameters().isEmpty(), is(true));
+        assertThat(new RequestCapture(null, true, 10, 10, 1000).capture(request).getParameters(),
+                   hasEntry("id", "42"));
+        assertThat(new RequestCapture(null, false, 10, 10, 1000).capture(request).getParameters().isEmpty(),
+                   is(true));
+    }
+
+    private static Map<String, String[]> params(String... namesAndValues) {
+        Map<String, String[]> params = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            params.put(namesAndValues[i], new String[]{namesAndValues[i + 1]});
+        }
+        return params;
+    }
+
+    private static HttpServletRequest request(final Map<String, String> headers, String contentType,
+                                              int contentLength, Map<String, String[]> params) {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("getMethod", "POST");
+        values.put("getServerName", "www.example.com");
+        values.put("getServerPort", 443);
+        values.put("getRequestURL", new StringBuffer("https://www.example.com/jobs"));
+        values.put("getQueryString", "id=42");
+        values.put("getContentType", contentType);
+        values.put("getContentLength", contentLength);
+        values.put("getParameterMap", params);
+
+        return (HttpServletRequest) Proxy.newProxyInstance(
+            RequestCaptureTest.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getHeaderNames")) {
+                        return Collections.enumeration(headers.keySet());
+                    }
+                    if (method.getName().equals("getHeader")) {
+                        return headers.get((String) args[0]);
+                    }
+                    Object value = values.get(method.getName());
+                    if (value == null && method.getReturnType() == int.class) {
+                        return 0;
+                    }
+                    return value;
+                }
+            });
+    }
+}
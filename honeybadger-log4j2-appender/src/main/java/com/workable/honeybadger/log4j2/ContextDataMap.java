@@ -0,0 +1,109 @@
+package com.workable.honeybadger.log4j2;
+
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable copy of the context data of an event, held in a pair of arrays.
+ * <p>
+ * The context data of the events of async loggers is reused for the next events, so it has to be copied, but it is
+ * walked without allocating an iterator and copied without the hash table and the entry per key of a
+ * {@link java.util.HashMap}. Lookups are linear, the map being only ever iterated.
+ */
+final class ContextDataMap extends AbstractMap<String, String> {
+
+    /**
+     * Stateless so that a single instance walks every context
+     */
+    private static final TriConsumer<String, Object, ContextDataMap> COPY =
+        new TriConsumer<String, Object, ContextDataMap>() {
+            @Override
+            public void accept(String key, Object value, ContextDataMap map) {
+                map.keys[map.size] = key;
+                map.values[map.size] = value == null ? null : String.valueOf(value);
+                map.size++;
+            }
+        };
+
+    private final String[] keys;
+    private final String[] values;
+    private int size;
+
+    private ContextDataMap(int capacity) {
+        this.keys = new String[capacity];
+        this.values = new String[capacity];
+    }
+
+    /**
+     * Copies the specified context data.
+     *
+     * @return the copy, or <code>null</code> if the context is empty
+     */
+    static ContextDataMap copyOf(ReadOnlyStringMap contextData) {
+        if (contextData == null || contextData.isEmpty()) {
+            return null;
+        }
+        ContextDataMap map = new ContextDataMap(contextData.size());
+        contextData.forEach(COPY, map);
+        return map;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String get(Object key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (next >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, String> entry = new SimpleImmutableEntry<>(keys[next], values[next]);
+                        next++;
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -0,0 +1,705 @@
+package com.workable.honeybadger.log4j2;
+
+import com.workable.honeybadger.Error;
+import com.workable.honeybadger.HoneybadgerClient;
+import com.workable.honeybadger.OverflowPolicy;
+
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log4j 2 appender responsible to send events carrying exceptions to Honeybadger
+ * <p>
+ * Events without an exception return right away without allocating anything. With async loggers the appender runs on
+ * the thread of the disruptor, whose events are reused: an event is never kept nor copied, only its message, formatted
+ * with the layout if any once the error is accepted, its logger name, its exception and a compact copy of its context
+ * data.
+ */
+@Plugin(name = "Honeybadger", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE, printObject = true)
+public final class HoneybadgerAppender extends AbstractAppender {
+
+    /**
+     * The client to send errors to Honeybadger
+     */
+    private final HoneybadgerClient client;
+
+    /**
+     * Register the metrics of the client as an MBean
+     */
+    private final boolean jmx;
+
+    /**
+     * Max time in milliseconds to wait on stop for the queued errors to be sent
+     */
+    private final long closeTimeout;
+
+    private HoneybadgerAppender(String name, Filter filter, Layout<? extends Serializable> layout,
+                                boolean ignoreExceptions, HoneybadgerClient client, boolean jmx, long closeTimeout) {
+        super(name, filter, layout, ignoreExceptions, null);
+        this.client = client;
+        this.jmx = jmx;
+        this.closeTimeout = closeTimeout;
+    }
+
+    @PluginBuilderFactory
+    public static <B extends Builder<B>> B newBuilder() {
+        return new Builder<B>().asBuilder();
+    }
+
+    @Override
+    public void append(final LogEvent event) {
+        Throwable throwable = event.getThrown();
+        if (throwable == null) {
+            return;
+        }
+
+        try {
+            // Formatted on this thread before the call returns, and only if the error is not excluded or dropped
+            client.reportError(throwable, event.getLoggerName(), new Error.MessageRenderer() {
+                @Override
+                public String render() {
+                    return format(event);
+                }
+            }, ContextDataMap.copyOf(event.getContextData()));
+        } catch (RuntimeException e) {
+            error("An exception occurred while creating a new event in Honeybadger", event, e);
+            if (!ignoreExceptions()) {
+                throw new AppenderLoggingException(e);
+            }
+        }
+    }
+
+    /**
+     * Formats the message of the event, which must happen before {@link #append(LogEvent)} returns as the event may
+     * be reused after.
+     */
+    private String format(LogEvent event) {
+        Layout<? extends Serializable> layout = getLayout();
+        if (layout == null) {
+            return event.getMessage().getFormattedMessage();
+        }
+        Serializable formatted = layout.toSerializable(event);
+        return formatted == null ? null : formatted.toString();
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        if (jmx) {
+            client.registerMBean(getName());
+        }
+        client.replaySpool();
+    }
+
+    /**
+     * Closes the client, waiting at most {@link #closeTimeout} for the queued errors to be sent, so that a
+     * reconfiguration does not leak its threads.
+     */
+    @Override
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        boolean stopped = super.stop(timeout, timeUnit, false);
+        stopped &= client.close(closeTimeout);
+        setStopped();
+        return stopped;
+    }
+
+    HoneybadgerClient getClient() {
+        return client;
+    }
+
+    /**
+     * Builds the appender from the attributes of its configuration element, named after the options of the other
+     * appenders.
+     */
+    public static class Builder<B extends Builder<B>> extends AbstractAppender.Builder<B>
+        implements org.apache.logging.log4j.core.util.Builder<HoneybadgerAppender> {
+
+        /**
+         * The Honebadger API Key. Cannot be null
+         */
+        @PluginBuilderAttribute
+        private String apiKey;
+
+        /**
+         * Comma delimited list of System Properties that should not be included in Error
+         */
+        @PluginBuilderAttribute
+        private String ignoredSystemProperties;
+
+        /**
+         * Comma delimited list of Exceptions that should be ignored
+         */
+        @PluginBuilderAttribute
+        private String ignoredExceptions;
+
+        /**
+         * Comma delimited list of classes or packages that cause Exceptions that should be ignored
+         */
+        @PluginBuilderAttribute
+        private String ignoredCauses;
+
+        /**
+         * If <code>true</code> erros are dispatched asynchronously (Default true)
+         */
+        @PluginBuilderAttribute
+        private boolean async = true;
+
+        /**
+         * Max threads for asynchronous error dispatching. (Default number of processors)
+         */
+        @PluginBuilderAttribute
+        private int maxThreads;
+
+        /**
+         * The thread priority of the asynchronous thread dispatchers. (Default Thread.MIN)
+         */
+        @PluginBuilderAttribute
+        private int priority;
+
+        /**
+         * The queue size of the asynchronous dispatching mechanism (Default: Integer.MAX)
+         */
+        @PluginBuilderAttribute
+        private int queueSize;
+
+        /**
+         * Max pooled HTTP connections to the Honeybadger API (Default: one per dispatcher thread)
+         */
+        @PluginBuilderAttribute
+        private int maxConnections;
+
+        /**
+         * HTTP connect timeout in milliseconds (Default: 5 seconds)
+         */
+        @PluginBuilderAttribute
+        private int connectTimeout;
+
+        /**
+         * HTTP socket timeout in milliseconds (Default: 10 seconds)
+         */
+        @PluginBuilderAttribute
+        private int socketTimeout;
+
+        /**
+         * Max errors shipped together by a dispatcher, batching is enabled when greater than one (Default: 1)
+         */
+        @PluginBuilderAttribute
+        private int batchSize;
+
+        /**
+         * Max time in milliseconds to wait for a batch to fill up (Default: 1 second)
+         */
+        @PluginBuilderAttribute
+        private long batchLinger;
+
+        /**
+         * Max size in bytes of a batch (Default: 1 MB)
+         */
+        @PluginBuilderAttribute
+        private int batchMaxBytes;
+
+        /**
+         * Endpoint accepting newline delimited JSON batches. When not set, batched errors are posted one by one
+         */
+        @PluginBuilderAttribute
+        private String batchUrl;
+
+        /**
+         * Window in milliseconds within which repeats of an error are folded into a single summary, disabled when
+         * zero (Default: 0)
+         */
+        @PluginBuilderAttribute
+        private long aggregationWindow;
+
+        /**
+         * Number of top stack frames identifying an error for aggregation (Default: 5)
+         */
+        @PluginBuilderAttribute
+        private int aggregationFrames;
+
+        /**
+         * Max number of distinct errors tracked for aggregation (Default: 1000)
+         */
+        @PluginBuilderAttribute
+        private int aggregationMaxFingerprints;
+
+        /**
+         * Max errors per second reported overall, unlimited when zero (Default: 0)
+         */
+        @PluginBuilderAttribute
+        private double rateLimit;
+
+        /**
+         * Max errors per second reported for the same error, below one for less than one a second, unlimited when
+         * zero (Default: 0)
+         */
+        @PluginBuilderAttribute
+        private double errorRateLimit;
+
+        /**
+         * If <code>true</code> the per error rate limit applies per fingerprint instead of per exception class
+         * (Default: false)
+         */
+        @PluginBuilderAttribute
+        private boolean errorRateLimitByFingerprint;
+
+        /**
+         * If <code>true</code> errors are queued in a preallocated lock-free ring buffer
+         * (Default: false)
+         */
+        @PluginBuilderAttribute
+        private boolean ringBuffer;
+
+        /**
+         * Max retries of an error after its first attempt
+         */
+        @PluginBuilderAttribute
+        private int maxRetries = 3;
+
+        /**
+         * Delay in milliseconds before the first retry, doubled on every retry
+         */
+        @PluginBuilderAttribute
+        private long retryBackoff;
+
+        /**
+         * Max delay in milliseconds between retries
+         */
+        @PluginBuilderAttribute
+        private long maxRetryBackoff;
+
+        /**
+         * Max errors waiting to be retried
+         */
+        @PluginBuilderAttribute
+        private int maxPendingRetries = 1000;
+
+        /**
+         * Consecutive failures after which sending is paused
+         */
+        @PluginBuilderAttribute
+        private int circuitBreakerThreshold;
+
+        /**
+         * Time in milliseconds sending is paused for before probing Honeybadger again
+         */
+        @PluginBuilderAttribute
+        private long circuitBreakerTimeout;
+
+        /**
+         * Directory undeliverable errors are spooled to and replayed from
+         */
+        @PluginBuilderAttribute
+        private String spoolDir;
+
+        /**
+         * Max size in bytes of the spool
+         */
+        @PluginBuilderAttribute
+        private long spoolMaxSize;
+
+        /**
+         * Whether request bodies are sent gzip compressed
+         */
+        @PluginBuilderAttribute
+        private boolean compression;
+
+        /**
+         * Min size in bytes of a request body to be compressed
+         */
+        @PluginBuilderAttribute
+        private int compressionThreshold = 1024;
+
+        /**
+         * Whether subclasses of the ignored exceptions are ignored as well
+         */
+        @PluginBuilderAttribute
+        private boolean excludeSubclasses;
+
+        /**
+         * Whether an error is ignored when any exception of its cause chain is
+         */
+        @PluginBuilderAttribute
+        private boolean excludeCauseChain;
+
+        /**
+         * Number of distinct stack traces whose rendered backtraces are cached, disabled when zero
+         */
+        @PluginBuilderAttribute
+        private int backtraceCacheSize = 256;
+
+        /**
+         * Max size in bytes of a notice, unbounded when zero
+         */
+        @PluginBuilderAttribute
+        private int maxNoticeSize = 1024 * 1024;
+
+        /**
+         * Max size in bytes of a string of a notice, unbounded when zero
+         */
+        @PluginBuilderAttribute
+        private int maxFieldSize = 64 * 1024;
+
+        /**
+         * Dispatch errors on virtual threads when the JVM supports them
+         */
+        @PluginBuilderAttribute
+        private boolean virtualThreads;
+
+        /**
+         * Max errors sent at the same time on virtual threads
+         */
+        @PluginBuilderAttribute
+        private int maxInFlight = 64;
+
+        /**
+         * Send errors with a non-blocking HTTP client
+         */
+        @PluginBuilderAttribute
+        private boolean nioTransport;
+
+        /**
+         * Register the metrics of the client as an MBean
+         */
+        @PluginBuilderAttribute
+        private boolean jmx;
+
+        /**
+         * Max time in milliseconds to wait on close for the queued errors to be sent
+         */
+        @PluginBuilderAttribute
+        private long closeTimeout = 10000;
+
+        /**
+         * Probability errors are kept with, between 0 and 1 (Default: 1)
+         */
+        @PluginBuilderAttribute
+        private double sampleRate = 1;
+
+        /**
+         * Errors per second above which sampling turns adaptive (Default: never)
+         */
+        @PluginBuilderAttribute
+        private double adaptiveSamplingThreshold;
+
+        /**
+         * Queue depth above which sampling turns adaptive (Default: never)
+         */
+        @PluginBuilderAttribute
+        private int adaptiveSamplingQueueDepth;
+
+        /**
+         * What to do with an error when the queue is full: drop-newest, drop-oldest, block, caller-runs or spill
+         * (Default: drop-oldest)
+         */
+        @PluginBuilderAttribute
+        private String overflowPolicy;
+
+        /**
+         * Max time in milliseconds to block or to send on the caller when the queue is full (Default: 100)
+         */
+        @PluginBuilderAttribute
+        private int overflowTimeout = 100;
+
+        public B setApiKey(String apiKey) {
+            this.apiKey = apiKey;
+            return asBuilder();
+        }
+
+        public B setIgnoredSystemProperties(String ignoredSystemProperties) {
+            this.ignoredSystemProperties = ignoredSystemProperties;
+            return asBuilder();
+        }
+
+        public B setIgnoredExceptions(String ignoredExceptions) {
+            this.ignoredExceptions = ignoredExceptions;
+            return asBuilder();
+        }
+
+        public B setIgnoredCauses(String ignoredCauses) {
+            this.ignoredCauses = ignoredCauses;
+            return asBuilder();
+        }
+
+        public B setAsync(boolean async) {
+            this.async = async;
+            return asBuilder();
+        }
+
+        public B setMaxThreads(int maxThreads) {
+            this.maxThreads = maxThreads;
+            return asBuilder();
+        }
+
+        public B setPriority(int priority) {
+            this.priority = priority;
+            return asBuilder();
+        }
+
+        public B setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+            return asBuilder();
+        }
+
+        public B setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return asBuilder();
+        }
+
+        public B setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return asBuilder();
+        }
+
+        public B setSocketTimeout(int socketTimeout) {
+            this.socketTimeout = socketTimeout;
+            return asBuilder();
+        }
+
+        public B setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return asBuilder();
+        }
+
+        public B setBatchLinger(long batchLinger) {
+            this.batchLinger = batchLinger;
+            return asBuilder();
+        }
+
+        public B setBatchMaxBytes(int batchMaxBytes) {
+            this.batchMaxBytes = batchMaxBytes;
+            return asBuilder();
+        }
+
+        public B setBatchUrl(String batchUrl) {
+            this.batchUrl = batchUrl;
+            return asBuilder();
+        }
+
+        public B setAggregationWindow(long aggregationWindow) {
+            this.aggregationWindow = aggregationWindow;
+            return asBuilder();
+        }
+
+        public B setAggregationFrames(int aggregationFrames) {
+            this.aggregationFrames = aggregationFrames;
+            return asBuilder();
+        }
+
+        public B setAggregationMaxFingerprints(int aggregationMaxFingerprints) {
+            this.aggregationMaxFingerprints = aggregationMaxFingerprints;
+            return asBuilder();
+        }
+
+        public B setRateLimit(double rateLimit) {
+            this.rateLimit = rateLimit;
+            return asBuilder();
+        }
+
+        public B setErrorRateLimit(double errorRateLimit) {
+            this.errorRateLimit = errorRateLimit;
+            return asBuilder();
+        }
+
+        public B setErrorRateLimitByFingerprint(boolean errorRateLimitByFingerprint) {
+            this.errorRateLimitByFingerprint = errorRateLimitByFingerprint;
+            return asBuilder();
+        }
+
+        public B setRingBuffer(boolean ringBuffer) {
+            this.ringBuffer = ringBuffer;
+            return asBuilder();
+        }
+
+        public B setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return asBuilder();
+        }
+
+        public B setRetryBackoff(long retryBackoff) {
+            this.retryBackoff = retryBackoff;
+            return asBuilder();
+        }
+
+        public B setMaxRetryBackoff(long maxRetryBackoff) {
+            this.maxRetryBackoff = maxRetryBackoff;
+            return asBuilder();
+        }
+
+        public B setMaxPendingRetries(int maxPendingRetries) {
+            this.maxPendingRetries = maxPendingRetries;
+            return asBuilder();
+        }
+
+        public B setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+            this.circuitBreakerThreshold = circuitBreakerThreshold;
+            return asBuilder();
+        }
+
+        public B setCircuitBreakerTimeout(long circuitBreakerTimeout) {
+            this.circuitBreakerTimeout = circuitBreakerTimeout;
+            return asBuilder();
+        }
+
+        public B setSpoolDir(String spoolDir) {
+            this.spoolDir = spoolDir;
+            return asBuilder();
+        }
+
+        public B setSpoolMaxSize(long spoolMaxSize) {
+            this.spoolMaxSize = spoolMaxSize;
+            return asBuilder();
+        }
+
+        public B setCompression(boolean compression) {
+            this.compression = compression;
+            return asBuilder();
+        }
+
+        public B setCompressionThreshold(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return asBuilder();
+        }
+
+        public B setExcludeSubclasses(boolean excludeSubclasses) {
+            this.excludeSubclasses = excludeSubclasses;
+            return asBuilder();
+        }
+
+        public B setExcludeCauseChain(boolean excludeCauseChain) {
+            this.excludeCauseChain = excludeCauseChain;
+            return asBuilder();
+        }
+
+        public B setBacktraceCacheSize(int backtraceCacheSize) {
+            this.backtraceCacheSize = backtraceCacheSize;
+            return asBuilder();
+        }
+
+        public B setMaxNoticeSize(int maxNoticeSize) {
+            this.maxNoticeSize = maxNoticeSize;
+            return asBuilder();
+        }
+
+        public B setMaxFieldSize(int maxFieldSize) {
+            this.maxFieldSize = maxFieldSize;
+            return asBuilder();
+        }
+
+        public B setVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return asBuilder();
+        }
+
+        public B setMaxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return asBuilder();
+        }
+
+        public B setNioTransport(boolean nioTransport) {
+            this.nioTransport = nioTransport;
+            return asBuilder();
+        }
+
+        public B setJmx(boolean jmx) {
+            this.jmx = jmx;
+            return asBuilder();
+        }
+
+        public B setCloseTimeout(long closeTimeout) {
+            this.closeTimeout = closeTimeout;
+            return asBuilder();
+        }
+
+        public B setSampleRate(double sampleRate) {
+            this.sampleRate = sampleRate;
+            return asBuilder();
+        }
+
+        public B setAdaptiveSamplingThreshold(double adaptiveSamplingThreshold) {
+            this.adaptiveSamplingThreshold = adaptiveSamplingThreshold;
+            return asBuilder();
+        }
+
+        public B setAdaptiveSamplingQueueDepth(int adaptiveSamplingQueueDepth) {
+            this.adaptiveSamplingQueueDepth = adaptiveSamplingQueueDepth;
+            return asBuilder();
+        }
+
+        public B setOverflowPolicy(String overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return asBuilder();
+        }
+
+        public B setOverflowTimeout(int overflowTimeout) {
+            this.overflowTimeout = overflowTimeout;
+            return asBuilder();
+        }
+
+        @Override
+        public HoneybadgerAppender build() {
+            HoneybadgerClient client = new HoneybadgerClient(apiKey, ignoredSystemProperties, ignoredExceptions,
+                                                             ignoredCauses);
+            client.setAsync(async);
+            client.setMaxThreads(maxThreads);
+            client.setPriority(priority);
+            client.setQueueSize(queueSize);
+            client.setMaxConnections(maxConnections);
+            client.setConnectTimeout(connectTimeout);
+            client.setSocketTimeout(socketTimeout);
+            client.setBatchSize(batchSize);
+            client.setBatchLinger(batchLinger);
+            client.setBatchMaxBytes(batchMaxBytes);
+            client.setBatchUrl(batchUrl);
+            client.setAggregationWindow(aggregationWindow);
+            client.setAggregationFrames(aggregationFrames);
+            client.setAggregationMaxFingerprints(aggregationMaxFingerprints);
+            client.setRateLimit(rateLimit);
+            client.setErrorRateLimit(errorRateLimit);
+            client.setErrorRateLimitByFingerprint(errorRateLimitByFingerprint);
+            client.setRingBuffer(ringBuffer);
+            client.setMaxRetries(maxRetries);
+            client.setRetryBackoff(retryBackoff);
+            client.setMaxRetryBackoff(maxRetryBackoff);
+            client.setMaxPendingRetries(maxPendingRetries);
+            client.setCircuitBreakerThreshold(circuitBreakerThreshold);
+            client.setCircuitBreakerTimeout(circuitBreakerTimeout);
+            client.setSpoolDir(spoolDir);
+            client.setSpoolMaxSize(spoolMaxSize);
+            client.setCompression(compression);
+            client.setCompressionThreshold(compressionThreshold);
+            client.setExcludeSubclasses(excludeSubclasses);
+            client.setExcludeCauseChain(excludeCauseChain);
+            client.setBacktraceCacheSize(backtraceCacheSize);
+            client.setMaxNoticeSize(maxNoticeSize);
+            client.setMaxFieldSize(maxFieldSize);
+            client.setVirtualThreads(virtualThreads);
+            client.setMaxInFlight(maxInFlight);
+            client.setNioTransport(nioTransport);
+            client.setSampleRate(sampleRate);
+            client.setAdaptiveSamplingThreshold(adaptiveSamplingThreshold);
+            client.setAdaptiveSamplingQueueDepth(adaptiveSamplingQueueDepth);
+            OverflowPolicy policy = OverflowPolicy.parse(overflowPolicy);
+            if (policy == null && overflowPolicy != null) {
+                LOGGER.error("Unknown overflowPolicy [" + overflowPolicy + "], using the default. Expected one of "
+                             + OverflowPolicy.names());
+            }
+            client.setOverflowPolicy(policy);
+            client.setOverflowTimeout(overflowTimeout);
+            return new HoneybadgerAppender(getName(), getFilter(), getLayout(), isIgnoreExceptions(), client, jmx,
+                                           closeTimeout);
+        }
+    }
+}
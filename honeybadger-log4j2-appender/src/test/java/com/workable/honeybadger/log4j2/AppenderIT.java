@@ -0,0 +1,74 @@
+package com.workable.honeybadger.log4j2;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+import org.junit.Test;
+
+public class AppenderIT {
+
+    private static final Logger log = LogManager.getLogger(AppenderIT.class);
+
+    @Test
+    public void shouldLogErrorFromBuggy() throws Exception {
+        Buggy buggy = new Buggy();
+        buggy.fail();
+    }
+
+
+    @Test
+    public void testNestedException() throws Exception {
+
+        try {
+            Delegate delegate = new Delegate();
+            delegate.run();
+        } catch (Exception e) {
+            log.error("Exception while runing", e);
+        }
+    }
+
+    @Test
+    public void shouldLogError2() throws Exception {
+
+        for (int i = 0; i < 25; i++) {
+            log.error("This is an error {}", i, new IllegalStateException("Oups" + i));
+        }
+    }
+
+    @Test
+    public void shouldLogErrorWithThreadContext() throws Exception {
+        ThreadContext.put("ThreadContext Entry", "ThreadContext Value");
+        try {
+            log.error("This is an error with ThreadContext",
+                      new UnsupportedOperationException("Something went wrong...", new NullPointerException()));
+        } finally {
+            ThreadContext.clearMap();
+        }
+    }
+
+    private class Buggy {
+        private final Logger log = LogManager.getLogger(Buggy.class);
+
+        public void fail() {
+            log.error("Error from buggy", new IllegalStateException("From buggy"));
+        }
+    }
+
+    private class Delegate {
+        public void run() {
+            try {
+                Failer failer = new Failer();
+                failer.fail();
+            } catch (Exception e) {
+                throw new IllegalStateException("Error while running", e);
+            }
+        }
+    }
+
+    private class Failer {
+
+        public void fail() {
+            throw new NullPointerException("Point to null");
+        }
+    }
+}
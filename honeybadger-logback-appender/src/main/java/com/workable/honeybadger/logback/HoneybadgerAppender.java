@@ -2,18 +2,23 @@ package com.workable.honeybadger.logback;
 
 import com.workable.honeybadger.Error;
 import com.workable.honeybadger.HoneybadgerClient;
+import com.workable.honeybadger.OverflowPolicy;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.classic.spi.StackTraceElementProxy;
 import ch.qos.logback.classic.spi.ThrowableProxy;
-import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
 
 
 /**
  * Appender for logback responsible to send events carrying exceptions to Honeybadger
+ * <p>
+ * Logging threads do not synchronize on the appender: events without an exception return right away, and the others
+ * are checked for exclusion and rate limits before an error is built, their message being formatted on the logging
+ * thread once the error is accepted.
  */
-public class HoneybadgerAppender extends AppenderBase<ILoggingEvent> {
+public class HoneybadgerAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 
     /**
      * The client to send errors to Honeybadger
@@ -60,6 +65,203 @@ public class HoneybadgerAppender extends AppenderBase<ILoggingEvent> {
      */
     private int queueSize;
 
+    /**
+     * Max pooled HTTP connections to the Honeybadger API (Default: one per dispatcher thread)
+     */
+    private int maxConnections;
+
+    /**
+     * HTTP connect timeout in milliseconds (Default: 5 seconds)
+     */
+    private int connectTimeout;
+
+    /**
+     * HTTP socket timeout in milliseconds (Default: 10 seconds)
+     */
+    private int socketTimeout;
+
+    /**
+     * Max errors shipped together by a dispatcher, batching is enabled when greater than one (Default: 1)
+     */
+    private int batchSize;
+
+    /**
+     * Max time in milliseconds to wait for a batch to fill up (Default: 1 second)
+     */
+    private long batchLinger;
+
+    /**
+     * Max size in bytes of a batch (Default: 1 MB)
+     */
+    private int batchMaxBytes;
+
+    /**
+     * Endpoint accepting newline delimited JSON batches. When not set, batched errors are posted one by one
+     */
+    private String batchUrl;
+
+    /**
+     * Window in milliseconds within which repeats of an error are folded into a single summary, disabled when zero (Default: 0)
+     */
+    private long aggregationWindow;
+
+    /**
+     * Number of top stack frames identifying an error for aggregation (Default: 5)
+     */
+    private int aggregationFrames;
+
+    /**
+     * Max number of distinct errors tracked for aggregation (Default: 1000)
+     */
+    private int aggregationMaxFingerprints;
+
+    /**
+     * Max errors per second reported overall, unlimited when zero (Default: 0)
+     */
+    private double rateLimit;
+
+    /**
+     * Max errors per second reported for the same error, below one for less than one a second, unlimited when zero
+     * (Default: 0)
+     */
+    private double errorRateLimit;
+
+    /**
+     * If <code>true</code> the per error rate limit applies per fingerprint instead of per exception class (Default: false)
+     */
+    private boolean errorRateLimitByFingerprint;
+
+    /**
+     * If <code>true</code> errors are queued in a preallocated lock-free ring buffer and dropped when it is full (Default: false)
+     */
+    private boolean ringBuffer;
+
+    /**
+     * Max retries of an error after its first attempt
+     */
+    private int maxRetries = 3;
+
+    /**
+     * Delay in milliseconds before the first retry, doubled on every retry
+     */
+    private long retryBackoff;
+
+    /**
+     * Max delay in milliseconds between retries
+     */
+    private long maxRetryBackoff;
+
+    /**
+     * Max errors waiting to be retried
+     */
+    private int maxPendingRetries = 1000;
+
+    /**
+     * Consecutive failures after which sending is paused
+     */
+    private int circuitBreakerThreshold;
+
+    /**
+     * Time in milliseconds sending is paused for before probing Honeybadger again
+     */
+    private long circuitBreakerTimeout;
+
+    /**
+     * Directory undeliverable errors are spooled to and replayed from
+     */
+    private String spoolDir;
+
+    /**
+     * Max size in bytes of the spool
+     */
+    private long spoolMaxSize;
+
+    /**
+     * Whether request bodies are sent gzip compressed
+     */
+    private boolean compression;
+
+    /**
+     * Min size in bytes of a request body to be compressed
+     */
+    private int compressionThreshold = 1024;
+
+    /**
+     * Whether subclasses of the ignored exceptions are ignored as well
+     */
+    private boolean excludeSubclasses;
+
+    /**
+     * Whether an error is ignored when any exception of its cause chain is
+     */
+    private boolean excludeCauseChain;
+
+    /**
+     * Number of distinct stack traces whose rendered backtraces are cached, disabled when zero
+     */
+    private int backtraceCacheSize = 256;
+
+    /**
+     * Max size in bytes of a notice, unbounded when zero
+     */
+    private int maxNoticeSize = 1024 * 1024;
+
+    /**
+     * Max size in bytes of a string of a notice, unbounded when zero
+     */
+    private int maxFieldSize = 64 * 1024;
+
+    /**
+     * Dispatch errors on virtual threads when the JVM supports them
+     */
+    private boolean virtualThreads;
+
+    /**
+     * Max errors sent at the same time on virtual threads
+     */
+    private int maxInFlight = 64;
+
+    /**
+     * Send errors with a non-blocking HTTP client
+     */
+    private boolean nioTransport;
+
+    /**
+     * Register the metrics of the client as an MBean
+     */
+    private boolean jmx;
+
+    /**
+     * Max time in milliseconds to wait on close for the queued errors to be sent
+     */
+    private long closeTimeout = 10000;
+
+    /**
+     * Probability errors are kept with, between 0 and 1 (Default: 1)
+     */
+    private double sampleRate = 1;
+
+    /**
+     * Errors per second above which sampling turns adaptive (Default: never)
+     */
+    private double adaptiveSamplingThreshold;
+
+    /**
+     * Queue depth above which sampling turns adaptive (Default: never)
+     */
+    private int adaptiveSamplingQueueDepth;
+
+    /**
+     * What to do with an error when the queue is full: drop-newest, drop-oldest, block, caller-runs or spill
+     * (Default: drop-oldest)
+     */
+    private String overflowPolicy;
+
+    /**
+     * Max time in milliseconds to block or to send on the caller when the queue is full (Default: 100)
+     */
+    private int overflowTimeout = 100;
+
     /**
      * Creates an instance of HoneybadgerAppender.
      */
@@ -90,17 +292,31 @@ public class HoneybadgerAppender extends AppenderBase<ILoggingEvent> {
      * More on <a href="http://www.slf4j.org/codes.html#substituteLogger">www.slf4j.org/codes.html#substituteLogger</a>
      */
     @Override
-    protected void append(ILoggingEvent iLoggingEvent) {
-        initHoneybadger();
-        try {
-            IThrowableProxy info = iLoggingEvent.getThrowableProxy();
-            if (info != null) {
-                final ThrowableProxy throwableProxyImpl =
-                        (ThrowableProxy) info;
-                Error error = new Error(iLoggingEvent.getFormattedMessage(),throwableProxyImpl.getThrowable());
-                error.setReporter(iLoggingEvent.getLoggerName());
-                client.reportError(error);
+    protected void append(final ILoggingEvent iLoggingEvent) {
+        IThrowableProxy info = iLoggingEvent.getThrowableProxy();
+        if (!(info instanceof ThrowableProxy)) {
+            return;
+        }
+
+        HoneybadgerClient client = this.client;
+        if (client == null) {
+            initHoneybadger();
+            client = this.client;
+            if (client == null) {
+                // Stopped meanwhile
+                return;
             }
+        }
+        try {
+            // Formatted on the logging thread once the error is accepted, the arguments of the event being free to
+            // change once logged, as AsyncAppender prepares events for deferred processing
+            client.reportError(((ThrowableProxy) info).getThrowable(), iLoggingEvent.getLoggerName(),
+                               new Error.MessageRenderer() {
+                                   @Override
+                                   public String render() {
+                                       return iLoggingEvent.getFormattedMessage();
+                                   }
+                               }, iLoggingEvent.getMDCPropertyMap());
         } catch (Exception e) {
             addError("An exception occurred while creating a new event in Honeybadger", e);
         }
@@ -110,13 +326,66 @@ public class HoneybadgerAppender extends AppenderBase<ILoggingEvent> {
      * Initialises the Honeybadger instance.
      */
     protected synchronized void initHoneybadger() {
+        if (!isStarted()) {
+            // Raced with stop(), which would never close the client
+            return;
+        }
         try {
-            if (client == null) {
-                client = new HoneybadgerClient(apiKey, ignoredSystemProperties, ignoredExceptions, ignoredCauses);
+            if (this.client == null) {
+                // Configured before being published to the logging threads
+                HoneybadgerClient client = new HoneybadgerClient(apiKey, ignoredSystemProperties, ignoredExceptions,
+                                                                 ignoredCauses);
                 client.setAsync(async);
                 client.setMaxThreads(maxThreads);
                 client.setPriority(priority);
                 client.setQueueSize(queueSize);
+                client.setMaxConnections(maxConnections);
+                client.setConnectTimeout(connectTimeout);
+                client.setSocketTimeout(socketTimeout);
+                client.setBatchSize(batchSize);
+                client.setBatchLinger(batchLinger);
+                client.setBatchMaxBytes(batchMaxBytes);
+                client.setBatchUrl(batchUrl);
+                client.setAggregationWindow(aggregationWindow);
+                client.setAggregationFrames(aggregationFrames);
+                client.setAggregationMaxFingerprints(aggregationMaxFingerprints);
+                client.setRateLimit(rateLimit);
+                client.setErrorRateLimit(errorRateLimit);
+                client.setErrorRateLimitByFingerprint(errorRateLimitByFingerprint);
+                client.setRingBuffer(ringBuffer);
+                client.setMaxRetries(maxRetries);
+                client.setRetryBackoff(retryBackoff);
+                client.setMaxRetryBackoff(maxRetryBackoff);
+                client.setMaxPendingRetries(maxPendingRetries);
+                client.setCircuitBreakerThreshold(circuitBreakerThreshold);
+                client.setCircuitBreakerTimeout(circuitBreakerTimeout);
+                client.setSpoolDir(spoolDir);
+                client.setSpoolMaxSize(spoolMaxSize);
+                client.setCompression(compression);
+                client.setCompressionThreshold(compressionThreshold);
+                client.setExcludeSubclasses(excludeSubclasses);
+                client.setExcludeCauseChain(excludeCauseChain);
+                client.setBacktraceCacheSize(backtraceCacheSize);
+                client.setMaxNoticeSize(maxNoticeSize);
+                client.setMaxFieldSize(maxFieldSize);
+                client.setVirtualThreads(virtualThreads);
+                client.setMaxInFlight(maxInFlight);
+                client.setNioTransport(nioTransport);
+                client.setSampleRate(sampleRate);
+                client.setAdaptiveSamplingThreshold(adaptiveSamplingThreshold);
+                client.setAdaptiveSamplingQueueDepth(adaptiveSamplingQueueDepth);
+                OverflowPolicy policy = OverflowPolicy.parse(overflowPolicy);
+                if (policy == null && overflowPolicy != null) {
+                    addError("Unknown overflowPolicy [" + overflowPolicy + "], using the default. Expected one of "
+                             + OverflowPolicy.names());
+                }
+                client.setOverflowPolicy(policy);
+                client.setOverflowTimeout(overflowTimeout);
+                if (jmx) {
+                    client.registerMBean(getName());
+                }
+                client.replaySpool();
+                this.client = client;
             }
         } catch (Exception e) {
             addError("An exception occurred during the creation of a Raven instance", e);
@@ -134,9 +403,15 @@ public class HoneybadgerAppender extends AppenderBase<ILoggingEvent> {
         return stackTraceElements;
     }
 
+    /**
+     * Closes the client, waiting at most {@link #closeTimeout} for the queued errors to be sent, so that a
+     * reconfiguration does not leak its threads.
+     */
     @Override
-    public void stop() {
-        if(client != null){
+    public synchronized void stop() {
+        super.stop();
+        if (client != null) {
+            client.close(closeTimeout);
             client = null;
         }
     }
@@ -172,4 +447,160 @@ public class HoneybadgerAppender extends AppenderBase<ILoggingEvent> {
     public void setQueueSize(int queueSize) {
         this.queueSize = queueSize;
     }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBatchLinger(long batchLinger) {
+        this.batchLinger = batchLinger;
+    }
+
+    public void setBatchMaxBytes(int batchMaxBytes) {
+        this.batchMaxBytes = batchMaxBytes;
+    }
+
+    public void setBatchUrl(String batchUrl) {
+        this.batchUrl = batchUrl;
+    }
+
+    public void setAggregationWindow(long aggregationWindow) {
+        this.aggregationWindow = aggregationWindow;
+    }
+
+    public void setAggregationFrames(int aggregationFrames) {
+        this.aggregationFrames = aggregationFrames;
+    }
+
+    public void setAggregationMaxFingerprints(int aggregationMaxFingerprints) {
+        this.aggregationMaxFingerprints = aggregationMaxFingerprints;
+    }
+
+    public void setRateLimit(double rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    public void setErrorRateLimit(double errorRateLimit) {
+        this.errorRateLimit = errorRateLimit;
+    }
+
+    public void setErrorRateLimitByFingerprint(boolean errorRateLimitByFingerprint) {
+        this.errorRateLimitByFingerprint = errorRateLimitByFingerprint;
+    }
+
+    public void setRingBuffer(boolean ringBuffer) {
+        this.ringBuffer = ringBuffer;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public void setRetryBackoff(long retryBackoff) {
+        this.retryBackoff = retryBackoff;
+    }
+
+    public void setMaxRetryBackoff(long maxRetryBackoff) {
+        this.maxRetryBackoff = maxRetryBackoff;
+    }
+
+    public void setMaxPendingRetries(int maxPendingRetries) {
+        this.maxPendingRetries = maxPendingRetries;
+    }
+
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    public void setCircuitBreakerTimeout(long circuitBreakerTimeout) {
+        this.circuitBreakerTimeout = circuitBreakerTimeout;
+    }
+
+    public void setSpoolDir(String spoolDir) {
+        this.spoolDir = spoolDir;
+    }
+
+    public void setSpoolMaxSize(long spoolMaxSize) {
+        this.spoolMaxSize = spoolMaxSize;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public void setExcludeSubclasses(boolean excludeSubclasses) {
+        this.excludeSubclasses = excludeSubclasses;
+    }
+
+    public void setExcludeCauseChain(boolean excludeCauseChain) {
+        this.excludeCauseChain = excludeCauseChain;
+    }
+
+    public void setBacktraceCacheSize(int backtraceCacheSize) {
+        this.backtraceCacheSize = backtraceCacheSize;
+    }
+
+    public void setMaxNoticeSize(int maxNoticeSize) {
+        this.maxNoticeSize = maxNoticeSize;
+    }
+
+    public void setMaxFieldSize(int maxFieldSize) {
+        this.maxFieldSize = maxFieldSize;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public void setNioTransport(boolean nioTransport) {
+        this.nioTransport = nioTransport;
+    }
+
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    public void setCloseTimeout(long closeTimeout) {
+        this.closeTimeout = closeTimeout;
+    }
+
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public void setAdaptiveSamplingThreshold(double adaptiveSamplingThreshold) {
+        this.adaptiveSamplingThreshold = adaptiveSamplingThreshold;
+    }
+
+    public void setAdaptiveSamplingQueueDepth(int adaptiveSamplingQueueDepth) {
+        this.adaptiveSamplingQueueDepth = adaptiveSamplingQueueDepth;
+    }
+
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setOverflowTimeout(int overflowTimeout) {
+        this.overflowTimeout = overflowTimeout;
+    }
 }